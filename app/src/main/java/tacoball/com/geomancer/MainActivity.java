@@ -172,6 +172,14 @@ public class MainActivity extends AppCompatActivity {
                 f.setArguments(args);
                 changeFragment(f);
             }
+
+            if (action.equals("DATA_UPDATED")) {
+                // 背景更新換檔，不切換畫面
+                String filename = intent.getStringExtra("filename");
+                if (filename != null) {
+                    mMapFragment.reloadData(filename);
+                }
+            }
         }
 
     };
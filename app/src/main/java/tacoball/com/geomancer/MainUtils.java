@@ -7,6 +7,7 @@ import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -28,6 +29,7 @@ public class MainUtils {
 
     // 各偏好設定 KEY 值
     private static final String PREFKEY_UPDATE_BY_MOBILE = "UPDATE_FROM_MOBILE"; // 允許行動網路更新
+    private static final String PREFKEY_DEEP_VERIFY = "deep_verify"; // 深度檢查資料
 
     // 地圖檔名
     public static final String MAP_NAME = "taiwan-taco.map";
@@ -53,6 +55,19 @@ public class MainUtils {
         return String.format(Locale.getDefault(), "http://%s/geomancer/0.1.0", MIRROR_SITES[MIRROR_NUM]);
     }
 
+    /**
+     * 取得所有更新鏡像站的網址，下載時依量測結果分配片段
+     *
+     * @return 網址
+     */
+    public static String[] getUpdateSources() {
+        String[] sources = new String[MIRROR_SITES.length];
+        for (int i=0;i<MIRROR_SITES.length;i++) {
+            sources[i] = String.format(Locale.getDefault(), "http://%s/geomancer/0.1.0", MIRROR_SITES[i]);
+        }
+        return sources;
+    }
+
     /**
      * 取得 DB 路徑
      *
@@ -188,6 +203,26 @@ public class MainUtils {
         return prefs.getBoolean(PREFKEY_UPDATE_BY_MOBILE, true);
     }
 
+    /**
+     * 是否深度檢查資料，第一次使用時依地圖是否存放在可移除的 SD 卡決定預設值
+     *
+     * @param context Activity 或 Service
+     * @param mapPath 地圖路徑
+     */
+    public static boolean isDeepVerifyEnabled(Context context, File mapPath) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(PREFKEY_DEEP_VERIFY)) {
+            boolean removable = false;
+            try {
+                removable = Environment.isExternalStorageRemovable(mapPath);
+            } catch(IllegalArgumentException ex) {
+                Log.w(TAG, getReason(ex));
+            }
+            prefs.edit().putBoolean(PREFKEY_DEEP_VERIFY, removable).apply();
+        }
+        return prefs.getBoolean(PREFKEY_DEEP_VERIFY, false);
+    }
+
     /**
      * 產生 Fragment 切換事件
      *
@@ -214,6 +249,7 @@ public class MainUtils {
         filter.addAction("SETTINGS");
         filter.addAction("CONTRIBUTORS");
         filter.addAction("LICENSE");
+        filter.addAction("DATA_UPDATED");
         return filter;
     }
 
@@ -194,6 +194,36 @@ public class MapViewFragment extends Fragment {
         }
     }
 
+    /**
+     * 背景更新換檔後重新開啟檔案
+     *
+     * @param filename 換檔的檔案名稱
+     */
+    public void reloadData(String filename) {
+        // 畫面還沒建立時不處理，建立時就會開啟新檔
+        Context context = getActivity();
+        if (context == null || getView() == null) {
+            return;
+        }
+
+        if (filename.equals(MainUtils.MAP_NAME)) {
+            mMapView.reloadMapData();
+        }
+
+        if (filename.equals(MainUtils.UNLUCKY_HOUSE)) {
+            // 先換上新連線再關閉舊連線，查詢不會遇到沒有資料庫的空窗期
+            try {
+                SQLiteDatabase oldDB = mUnluckyHouseDB;
+                mUnluckyHouseDB = MainUtils.openReadOnlyDB(context, MainUtils.UNLUCKY_HOUSE);
+                if (oldDB != null) {
+                    oldDB.close();
+                }
+            } catch(IOException ex) {
+                Log.e(TAG, ex.getMessage());
+            }
+        }
+    }
+
     /**
      * 定位與測量風水按鈕事件處理
      */
@@ -0,0 +1,220 @@
+package tacoball.com.geomancer;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import tacoball.com.geomancer.checkupdate.AutoUpdateManager;
+import tacoball.com.geomancer.checkupdate.ChangesetApplier;
+
+/**
+ * 以 SQLite 交易套用資料列變更集
+ *
+ * 資料列摘要值的計算方式 (發布端必須一致)：
+ * 依表格名稱排序，逐一讀取更新資訊 rowTables 宣告的表格，每個表格以 key 欄位排序讀取所有資料列，
+ * 每個欄位取 SQLite 的文字轉換結果 (NULL 為 \N)，欄位以 TAB 分隔、資料列以換行結尾，
+ * 以 UTF-8 編碼後計算摘要。
+ *
+ * 表格與欄位名稱來自下載的更新資訊與變更集，套用前先與 sqlite_master 及 PRAGMA table_info 比對，
+ * SQL 中的名稱也一律加上引號。
+ */
+public class SQLiteChangesetApplier implements ChangesetApplier {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override
+    public void apply(File database, List<JsonObject> changesets, SortedMap<String, String> tables, String algorithm,
+            String expected) throws IOException {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(database.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+        } catch(SQLException ex) {
+            throw new IOException(MainUtils.getReason(ex));
+        }
+
+        db.beginTransaction();
+        try {
+            // 確認宣告的表格與 key 欄位存在
+            Map<String, Set<String>> columns = new HashMap<>();
+            for (Map.Entry<String, String> t : tables.entrySet()) {
+                Set<String> names = columnsOf(db, t.getKey());
+                checkColumn(t.getKey(), names, t.getValue());
+                columns.put(t.getKey(), names);
+            }
+
+            // 依序套用變更集，只能異動宣告的表格
+            for (JsonObject changeset : changesets) {
+                String table = changeset.get("table").getAsString();
+                String key   = changeset.get("key").getAsString();
+                if (!key.equals(tables.get(table))) {
+                    throw new IOException(String.format(Locale.getDefault(), "變更集異動未宣告的表格 %s (%s)", table, key));
+                }
+                Set<String> names = columns.get(table);
+                String where = quote(key) + "=?";
+
+                String[] args = new String[1];
+                for (JsonElement id : rows(changeset, "deletes")) {
+                    args[0] = id.getAsString();
+                    db.delete(quote(table), where, args);
+                }
+
+                for (JsonElement row : rows(changeset, "updates")) {
+                    args[0] = row.getAsJsonObject().get(key).getAsString();
+                    if (db.update(quote(table), toValues(table, names, row.getAsJsonObject()), where, args) != 1) {
+                        throw new IOException(String.format(Locale.getDefault(), "%s 找不到要更新的資料 %s=%s", table, key, args[0]));
+                    }
+                }
+
+                for (JsonElement row : rows(changeset, "inserts")) {
+                    db.insertOrThrow(quote(table), null, toValues(table, names, row.getAsJsonObject()));
+                }
+            }
+
+            // 在同一個交易中驗證結果，不符就不提交
+            String actual = rowChecksum(db, tables, algorithm);
+            if (!actual.equals(expected)) {
+                throw new IOException("套用後資料列摘要值不符");
+            }
+
+            db.setTransactionSuccessful();
+        } catch(SQLException ex) {
+            throw new IOException(MainUtils.getReason(ex));
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+    }
+
+    /**
+     * 取得變更集中的資料列清單，沒有該類異動時回傳空清單
+     */
+    private JsonArray rows(JsonObject changeset, String name) {
+        if (changeset.has(name)) {
+            return changeset.getAsJsonArray(name);
+        }
+        return new JsonArray();
+    }
+
+    /**
+     * 取得表格的欄位名稱，表格不存在時拋出例外
+     */
+    private Set<String> columnsOf(SQLiteDatabase db, String table) throws IOException {
+        Cursor cur = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?", new String[] { table });
+        boolean exists = cur.moveToFirst();
+        cur.close();
+        if (!exists) {
+            throw new IOException(String.format(Locale.getDefault(), "資料庫沒有表格 %s", table));
+        }
+
+        Set<String> names = new HashSet<>();
+        cur = db.rawQuery("PRAGMA table_info(" + quote(table) + ")", null);
+        int nameIndex = cur.getColumnIndexOrThrow("name");
+        while (cur.moveToNext()) {
+            names.add(cur.getString(nameIndex));
+        }
+        cur.close();
+        return names;
+    }
+
+    /**
+     * 確認欄位屬於表格
+     */
+    private void checkColumn(String table, Set<String> names, String column) throws IOException {
+        if (!names.contains(column)) {
+            throw new IOException(String.format(Locale.getDefault(), "表格 %s 沒有欄位 %s", table, column));
+        }
+    }
+
+    /**
+     * SQL 識別字加上引號，名稱中的引號重複一次
+     */
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * JSON 資料列轉換為 ContentValues，欄位必須屬於表格
+     */
+    private ContentValues toValues(String table, Set<String> names, JsonObject row) throws IOException {
+        ContentValues values = new ContentValues();
+
+        for (Map.Entry<String, JsonElement> col : row.entrySet()) {
+            checkColumn(table, names, col.getKey());
+            JsonElement v = col.getValue();
+            if (v.isJsonNull()) {
+                values.putNull(col.getKey());
+                continue;
+            }
+
+            JsonPrimitive p = v.getAsJsonPrimitive();
+            if (p.isNumber()) {
+                String n = p.getAsString();
+                if (n.contains(".") || n.contains("e") || n.contains("E")) {
+                    values.put(col.getKey(), p.getAsDouble());
+                } else {
+                    values.put(col.getKey(), p.getAsLong());
+                }
+            } else if (p.isBoolean()) {
+                values.put(col.getKey(), p.getAsBoolean() ? 1 : 0);
+            } else {
+                values.put(col.getKey(), p.getAsString());
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * 計算資料列摘要值
+     *
+     * @param db        資料庫連線
+     * @param tables    表格與 key 欄位，依表格名稱排序
+     * @param algorithm 摘要演算法
+     * @return 摘要值 (十六進位字串)
+     */
+    private String rowChecksum(SQLiteDatabase db, SortedMap<String, String> tables, String algorithm) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IOException(String.format(Locale.getDefault(), "無法使用 %s 演算法", algorithm));
+        }
+
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, String> t : tables.entrySet()) {
+            Cursor cur = db.rawQuery(String.format("SELECT * FROM %s ORDER BY %s", quote(t.getKey()), quote(t.getValue())), null);
+            while (cur.moveToNext()) {
+                line.setLength(0);
+                for (int i=0;i<cur.getColumnCount();i++) {
+                    if (i > 0) line.append('\t');
+                    line.append(cur.isNull(i) ? "\\N" : cur.getString(i));
+                }
+                line.append('\n');
+                md.update(line.toString().getBytes(UTF8));
+            }
+            cur.close();
+        }
+
+        return AutoUpdateManager.toHex(md.digest());
+    }
+
+}
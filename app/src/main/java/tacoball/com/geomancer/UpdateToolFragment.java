@@ -3,6 +3,7 @@ package tacoball.com.geomancer;
 import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
@@ -22,10 +23,12 @@ import android.widget.TextView;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import tacoball.com.geomancer.checkupdate.AutoUpdateAdapter;
 import tacoball.com.geomancer.checkupdate.AutoUpdateManager;
 import tacoball.com.geomancer.checkupdate.CheckUpdateAdapter;
+import tacoball.com.geomancer.checkupdate.UpdateProgress;
 
 /**
  * 地圖與資料庫更新程式
@@ -103,11 +106,49 @@ public class UpdateToolFragment extends Fragment {
         // 檢查應用程式是否要求更新
         final AutoUpdateManager aum = new AutoUpdateManager(logPath, dbPath);
         aum.saveTo(MainUtils.MAP_NAME, mapPath);
-        boolean dataIsUseful = aum.isUseful("0.1.0");
+        aum.setChangesetApplier(MainUtils.UNLUCKY_HOUSE, new SQLiteChangesetApplier());
+        aum.setDownloadMode(AutoUpdateManager.DownloadMode.PARALLEL); // 高延遲行動網路下同時下載多個片段
+        // 不啟用邊下載邊解壓縮，保留壓縮檔讓行動網路中斷後可以續傳
+        for (String mirror : MainUtils.getUpdateSources()) {
+            aum.addMirror(mirror); // 更新資訊中的鏡像站之外，也量測內建的鏡像站
+        }
 
         // 強制破壞 mtime，測試檢查更新功能再開
         // aum.damageMtime("unluckyhouse.sqlite");
 
+        // 深度檢查要讀完整個地圖與資料庫，在另一個執行緒檢查，結果再交回 UI 執行緒
+        // 工作執行緒只保存 Application Context，畫面關閉後不會佔住 Activity
+        setVerifying(true);
+        final Context appContext = activity.getApplicationContext();
+        final File verifyPath = mapPath;
+        new Thread() {
+            @Override
+            public void run() {
+                aum.setDeepVerify(MainUtils.isDeepVerifyEnabled(appContext, verifyPath)); // SD 卡容易損毀，檢查整個檔案
+                final boolean dataIsUseful = aum.isUseful("0.1.0");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setVerifying(false);
+                        update(aum, dataIsUseful);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * 依檔案檢查結果與網路狀態決定更新方式
+     *
+     * @param aum          更新管理程式
+     * @param dataIsUseful 現有檔案是否堪用
+     */
+    private void update(final AutoUpdateManager aum, boolean dataIsUseful) {
+        Context activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
         // 檢查網路連線
         boolean hasNetwork = MainUtils.isNetworkConnected(activity);
 
@@ -138,8 +179,11 @@ public class UpdateToolFragment extends Fragment {
                                         builder.setMessage(msg).setCancelable(false)
                                                 .setPositiveButton(R.string.term_yes, new DialogInterface.OnClickListener() {
                                                     public void onClick(DialogInterface dialog, int id) {
-                                                        aum.addListener(updateListener);
+                                                        // 現有資料堪用，改在背景更新並直接進入地圖，換檔後地圖與資料庫自動重新開啟
+                                                        aum.setStagedUpdate(true);
+                                                        aum.addListener(new BackgroundUpdateListener(getActivity().getApplicationContext()));
                                                         aum.start(MainUtils.getUpdateSource());
+                                                        gotoMap();
                                                     }
                                                 })
                                                 .setNegativeButton(R.string.term_no, new DialogInterface.OnClickListener() {
@@ -168,7 +212,7 @@ public class UpdateToolFragment extends Fragment {
                 }
             } else {
                 // 有網路 + 資料不堪用 => 強制更新
-                aum.addListener(updateListener);
+                aum.addListener(updateListener, uiExecutor);
                 aum.start(MainUtils.getUpdateSource());
             }
         } else {
@@ -189,15 +233,14 @@ public class UpdateToolFragment extends Fragment {
     private AutoUpdateAdapter updateListener = new AutoUpdateAdapter() {
 
         @Override
-        public void onFileTransfer(String filename, int percent) {
-            String step = String.format(Locale.getDefault(), "下載檔案 %s", filename);
-            setProgress(step, percent);
-        }
-
-        @Override
-        public void onFileExtract(String filename, int percent) {
-            String step = String.format(Locale.getDefault(), "解壓縮檔案 %s", filename);
-            setProgress(step, percent);
+        public void onProgress(UpdateProgress progress) {
+            String pat = (progress.getPhase() == UpdateProgress.Phase.TRANSFER) ? "下載檔案 %s" : "解壓縮檔案 %s";
+            String step = String.format(Locale.getDefault(), pat, progress.getFilename());
+            if (progress.getEtaMillis() >= 0) {
+                step += String.format(Locale.getDefault(), " (%s/s 剩餘 %d 秒)",
+                    getPreetySize(progress.getBytesPerSecond()), progress.getEtaMillis() / 1000);
+            }
+            setProgress(step, progress.getPercent());
         }
 
         @Override
@@ -213,6 +256,43 @@ public class UpdateToolFragment extends Fragment {
 
     };
 
+    /**
+     * 更新事件改在 UI 執行緒處理，畫面關閉時隨 mHandler 一起清除
+     */
+    private Executor uiExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    /**
+     * 背景更新事件接收器，更新畫面關閉後仍會收到事件，所以只保存 Application Context
+     */
+    private static class BackgroundUpdateListener extends AutoUpdateAdapter {
+
+        private Context mAppContext;
+
+        BackgroundUpdateListener(Context appContext) {
+            mAppContext = appContext;
+        }
+
+        @Override
+        public void onFileReplaced(String filename) {
+            // 通知地圖畫面重新開啟檔案
+            Intent i = MainUtils.buildFragmentSwitchIntent("DATA_UPDATED");
+            i.putExtra("filename", filename);
+            mAppContext.sendBroadcast(i);
+        }
+
+        @Override
+        public void onError(String reason) {
+            // 正式檔案沒有異動，下次啟動再更新
+            Log.e(TAG, reason);
+        }
+
+    }
+
     /**
      * 善後動作
      */
@@ -240,6 +320,23 @@ public class UpdateToolFragment extends Fragment {
         });
     }
 
+    /**
+     * 切換檔案檢查中的畫面，檢查時間取決於檔案大小與儲存裝置速度，以不確定進度的進度條表示
+     *
+     * @param verifying 是否檢查中
+     */
+    private void setVerifying(final boolean verifying) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (verifying) {
+                    mTxvAction.setText(R.string.term_verifying);
+                }
+                mPgbAction.setIndeterminate(verifying);
+            }
+        });
+    }
+
     /**
      * 顯示錯誤訊息與修復按鈕
      *
@@ -23,7 +23,14 @@ public class AutoUpdateAdapter {
 	public void onFileBegin(String filename) {}
 
 	/**
-	 * 回報傳輸進度，每填滿一次緩衝區觸發一次
+	 * 回報下載或解壓縮進度，依回報間隔觸發，進度沒有變化時不觸發
+	 *
+	 * @param progress 進度快照，包含資料量、百分比、速率與預估剩餘時間
+	 */
+	public void onProgress(UpdateProgress progress) {}
+
+	/**
+	 * 回報傳輸進度，依回報間隔觸發
 	 * 
 	 * @param filename   更新中檔案
 	 * @param transfered 已傳輸長度
@@ -53,6 +60,13 @@ public class AutoUpdateAdapter {
 	 * @param isNew    是否有更新
 	 */
 	public void onFileComplete(String filename, boolean isNew) {}
+
+	/**
+	 * 回報背景更新的檔案已換入正式位置，此時應重新開啟檔案
+	 *
+	 * @param filename 更新完成的檔案
+	 */
+	public void onFileReplaced(String filename) {}
 	
 	/**
 	 * 回報一項警告，此時更新程序會自動修復
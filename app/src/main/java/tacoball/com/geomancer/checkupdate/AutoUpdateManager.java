@@ -1,77 +1,70 @@
 package tacoball.com.geomancer.checkupdate;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import com.google.gson.JsonParseException;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * 檔案更新管理程式
+ *
+ * 保存更新設定與事件接收器，每次檢查更新或檔案更新都會建立獨立的更新工作 (UpdateSession)，
+ * 可以同時檢查更新、更新檔案與離線檢查，彼此不共用狀態。
  * 
  * @author 小璋丸 <virus.warnning@gmail.com>
  */
 public class AutoUpdateManager {
 
-	// 外部提供的參數
-	private String baseUrl;
-	private File logPath;
-	private File filePath;
-	private Map<String, File> movePath;
-	private List<AutoUpdateAdapter> listenerList;
-	
-	// 更新資訊以及更新紀錄
-	private Gson gson = new GsonBuilder().setPrettyPrinting().create();
-	private JsonObject updateInfo;
-	private JsonObject previousUpdateLog;
-	private JsonObject currentUpdateLog;
-	
-	// 每一個更新項目用到的值
-	private String currentFilename;
-	private URL currentUrl;
-	private File currentFile;
-	private File currentGzFile;
-	private JsonObject currentFileInfo;
-
-	// 執行緒管理
-	private Thread  updateThread;
-	private Thread  checkThread;
-	private boolean userCanceled;
-
-	// 片段設定值
-	private static String digest     = "MD5";   // 摘要演算法
-	private static int    partLength = 1048576; // 片段大小
-	
-	// 緩衝區 (大小必須是 PART_SIZE 的因數)
-	// 共用緩衝區空間會用在 "摘要計算" 與 "片段下載"，"解壓縮" 則使用 IOUtils
-	private static final int BUFFER_SIZE = 32768;
-	private static final byte[] BUFFER = new byte[BUFFER_SIZE];
+	/**
+	 * 壓縮檔下載模式
+	 */
+	public enum DownloadMode {
+		SEQUENTIAL, // 逐一下載片段
+		PARALLEL,   // 多個片段同時下載，各自寫入壓縮檔的對應位置
+		STREAM      // 單一連線下載整個壓縮檔，邊下載邊驗證片段，只補抓驗證失敗的片段
+	}
+
+	// 外部提供的參數，建立更新工作時複製給 UpdateSession
+	File logPath;
+	File filePath;
+	Map<String, File> movePath;
+	Map<String, ChangesetApplier> changesetAppliers;
+	Map<String, Codec> codecs;
+	Map<String, Transport> transports;
+	List<String> mirrorUrls;
+	List<String> peerUrls;
+	List<AutoUpdateAdapter> listenerList;
+	DownloadMode downloadMode = DownloadMode.SEQUENTIAL;
+	int parallelParts = 4;
+	boolean pipelinedExtract = false;
+	boolean deepVerify = false;
+	boolean stagedUpdate = false;
+	long progressInterval = 250;
+	int  connectTimeout = 10000;
+	int  readTimeout = 15000;
+	long partDeadline = 60000;
+	long retryBaseDelay = 500;
+	long retryMaxDelay = 15000;
+	boolean peerDiscovery = false;
+	int discoveryPort = PeerDiscovery.DEFAULT_PORT;
+
+	// 工作管理，同一個紀錄檔存放位置同時只能有一個檔案更新工作
+	private UpdateJob updateJob;
+	private List<UpdateJob> jobs;
+
+	// 分享已驗證檔案給區域網路中其他裝置的節點伺服器
+	private PeerServer peerServer;
 	
 	/**
 	 * 配置檔案更新總管
@@ -83,7 +76,19 @@ public class AutoUpdateManager {
 		this.logPath = logPath;
 		this.filePath = filePath;
 		movePath = new HashMap<>();
-		listenerList = new ArrayList<>();
+		changesetAppliers = new HashMap<>();
+		codecs = new HashMap<>();
+		addCodec(new GzipCodec());
+		addCodec(new XzCodec());
+		transports = new HashMap<>();
+		Transport http = new HttpTransport();
+		addTransport("http", http);
+		addTransport("https", http);
+		addTransport("file", new FileTransport());
+		mirrorUrls = new ArrayList<>();
+		peerUrls = new ArrayList<>();
+		listenerList = new CopyOnWriteArrayList<>();
+		jobs = new CopyOnWriteArrayList<>();
 	}
 
 	/**
@@ -95,185 +100,295 @@ public class AutoUpdateManager {
 		listenerList.add(listener);
 	}
 
+	/**
+	 * 新增更新事件接收器，事件交給指定的 Executor 執行，例如切換到 UI 執行緒
+	 *
+	 * @param listener 更新事件接收器
+	 * @param executor 執行事件的 Executor
+	 */
+	public void addListener(AutoUpdateAdapter listener, Executor executor) {
+		listenerList.add(new ExecutorAdapter(listener, executor));
+	}
+
 	/**
 	 * 指定儲存路徑
 	 */
 	public void saveTo(String filename, File path) {
 		movePath.put(filename, path);
 	}
-	
+
 	/**
-	 * 啟動更新流程，會開啟另一個執行緒進行檔案更新，不阻斷現有工作
+	 * 指定資料列變更集套用程式，更新資訊提供變更集時只套用異動的資料列，不重新下載整個檔案
+	 *
+	 * @param filename 資料庫檔名
+	 * @param applier  變更集套用程式
 	 */
-	public void start(String url) {
-		if (updateThread != null) {
-			trigger.onError("不可同時進行兩個以上的更新");
-			return;
+	public void setChangesetApplier(String filename, ChangesetApplier applier) {
+		changesetAppliers.put(filename, applier);
+	}
+
+	/**
+	 * 新增壓縮格式，更新資訊以 config.codec 指定格式名稱，同名的格式會被取代
+	 *
+	 * 內建 gzip 與 xz。
+	 *
+	 * @param codec 壓縮格式
+	 */
+	public void addCodec(Codec codec) {
+		codecs.put(codec.name(), codec);
+	}
+
+	/**
+	 * 新增傳輸方式，依更新資訊與鏡像站位置的 scheme 選用，同名的 scheme 會被取代
+	 *
+	 * 內建 http、https 與 file，沒有 scheme 的絕對路徑視為 file。
+	 *
+	 * @param scheme    scheme 名稱 (不分大小寫)
+	 * @param transport 傳輸方式
+	 */
+	public void addTransport(String scheme, Transport transport) {
+		transports.put(scheme.toLowerCase(Locale.US), transport);
+	}
+
+	/**
+	 * 新增鏡像站，下載時與更新資訊中列出的鏡像站一起量測速度，把片段分散到較快的鏡像站
+	 *
+	 * @param url 與 update.json 同一層的網址
+	 */
+	public void addMirror(String url) {
+		mirrorUrls.add(url);
+	}
+
+	/**
+	 * 新增區域網路節點，更新時優先向節點取得與更新資訊相同版本的檔案區塊，
+	 * 每個區塊都以更新資訊的區塊摘要值驗證，節點無法提供的部分從鏡像站下載
+	 *
+	 * @param url 節點網址，例如 "http://192.168.1.23:40123/"
+	 */
+	public void addPeer(String url) {
+		peerUrls.add(url);
+	}
+
+	/**
+	 * 指定是否在更新前以 UDP 廣播探索區域網路中分享更新檔的節點
+	 *
+	 * 適合同一個辦公室多台裝置同時更新，只有第一台需要從鏡像站下載完整的檔案。
+	 * 只有更新資訊提供區塊摘要值 (blockChecksums) 的檔案會向節點要求。
+	 *
+	 * @param enabled 是否啟用，預設為停用
+	 */
+	public void setPeerDiscovery(boolean enabled) {
+		peerDiscovery = enabled;
+	}
+
+	/**
+	 * 指定探索區域網路節點使用的 UDP 連接埠，分享端與接收端必須相同
+	 *
+	 * @param port 連接埠，預設為 27183
+	 */
+	public void setDiscoveryPort(int port) {
+		discoveryPort = port;
+	}
+
+	/**
+	 * 開始把已驗證的檔案分享給區域網路中的其他裝置
+	 *
+	 * 以 HTTP 提供更新紀錄中列出的檔案，並回應其他裝置的探索請求。
+	 * 分享的是目前的正式檔案，更新紀錄異動後自動改為分享新的版本。
+	 *
+	 * @param  port HTTP 連接埠，0 表示自動選擇
+	 * @return 實際使用的 HTTP 連接埠，無法開始分享時回傳 -1
+	 */
+	public synchronized int startSharing(int port) {
+		if (peerServer != null) {
+			return peerServer.getPort();
 		}
 
-		// URL 防呆處理
-		baseUrl = url;
-		if (!baseUrl.endsWith("/")) {
-			baseUrl = baseUrl + "/";
+		try {
+			PeerServer server = new PeerServer(logPath, filePath, movePath, port);
+			try {
+				server.start(discoveryPort);
+			} catch(IOException ex) {
+				server.stop();
+				throw ex;
+			}
+			peerServer = server;
+			return server.getPort();
+		} catch(IOException ex) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onError("無法分享更新檔：" + ex.getMessage());
+			}
+			return -1;
 		}
+	}
 
-		// 啟動非同步更新流程
-		updateThread = new Thread() {
+	/**
+	 * 停止分享，進行中的傳輸一併中斷
+	 */
+	public synchronized void stopSharing() {
+		if (peerServer != null) {
+			peerServer.stop();
+			peerServer = null;
+		}
+	}
+
+	// 本機分享中的節點識別碼，探索時略過自己
+	synchronized String sharingPeerId() {
+		return (peerServer != null) ? peerServer.getId() : null;
+	}
+
+	/**
+	 * 指定壓縮檔下載模式
+	 *
+	 * @param mode 下載模式，預設為 SEQUENTIAL
+	 */
+	public void setDownloadMode(DownloadMode mode) {
+		downloadMode = mode;
+	}
+
+	/**
+	 * 指定平行下載模式同時下載的片段數
+	 *
+	 * @param count 同時下載的片段數 (工作執行緒數)
+	 */
+	public void setParallelParts(int count) {
+		parallelParts = Math.max(1, count);
+	}
+
+	/**
+	 * 指定是否邊下載邊解壓縮
+	 *
+	 * 啟用後已驗證的片段直接交給解壓縮執行緒寫入目標檔旁的暫存檔，不產生中間的壓縮檔，
+	 * 解壓縮時間與下載時間重疊。暫存檔驗證完成後才取代舊檔，下載中斷時舊檔維持可用。
+	 *
+	 * @param enabled 是否啟用
+	 */
+	public void setPipelinedExtract(boolean enabled) {
+		pipelinedExtract = enabled;
+	}
+
+	/**
+	 * 指定是否深度檢查現有檔案
+	 *
+	 * 啟用後離線檢查與更新前的檢查都會比對整個檔案每個片段的摘要值，
+	 * 而不只是最後一個片段，適合檔案存放在容易損毀的 SD 卡時使用。
+	 *
+	 * @param enabled 是否啟用
+	 */
+	public void setDeepVerify(boolean enabled) {
+		deepVerify = enabled;
+	}
+
+	/**
+	 * 指定是否在背景更新
+	 *
+	 * 啟用後需要更新的檔案先在同一目錄下的暫存目錄下載、解壓縮與驗證，
+	 * 更新期間正式檔案維持可用，全部完成後才以 rename 換入正式位置，
+	 * 每換入一個檔案觸發一次 onFileReplaced，讓使用中的程式重新開啟檔案。
+	 *
+	 * @param enabled 是否啟用
+	 */
+	public void setStagedUpdate(boolean enabled) {
+		stagedUpdate = enabled;
+	}
+
+	/**
+	 * 指定連線與讀取逾時，讀取逾時是最短等待時間，延遲高的鏡像站會依量測結果放寬
+	 *
+	 * @param connectMillis 連線逾時 (毫秒)，預設為 10000
+	 * @param readMillis    讀取逾時 (毫秒)，預設為 15000
+	 */
+	public void setTimeouts(int connectMillis, int readMillis) {
+		connectTimeout = Math.max(1, connectMillis);
+		readTimeout = Math.max(1, readMillis);
+	}
+
+	/**
+	 * 指定一個片段或區塊的傳輸期限，超過期限的連線直接中斷並改用其他鏡像站重試，
+	 * 避免連線沒有中斷但速度極慢時一直等待
+	 *
+	 * @param millis 傳輸期限 (毫秒)，預設為 60000
+	 */
+	public void setPartDeadline(long millis) {
+		partDeadline = Math.max(1, millis);
+	}
+
+	/**
+	 * 指定重試等待時間，每次重試等待時間加倍並加上隨機抖動
+	 *
+	 * @param baseMillis 第一次重試的等待時間 (毫秒)，預設為 500，0 表示立即重試
+	 * @param maxMillis  等待時間上限 (毫秒)，預設為 15000
+	 */
+	public void setRetryBackoff(long baseMillis, long maxMillis) {
+		retryBaseDelay = Math.max(0, baseMillis);
+		retryMaxDelay = Math.max(retryBaseDelay, maxMillis);
+	}
+
+	/**
+	 * 指定進度事件的回報間隔，間隔內的進度變化合併為一次回報
+	 *
+	 * @param millis 回報間隔 (毫秒)，預設為 250
+	 */
+	public void setProgressInterval(long millis) {
+		progressInterval = Math.max(1, millis);
+	}
+	
+	/**
+	 * 啟動更新流程，會開啟另一個執行緒進行檔案更新，不阻斷現有工作
+	 *
+	 * 網址也可以是 file:// 或本地目錄的絕對路徑，從 SD 卡或 USB 隨身碟側載完整的更新檔，
+	 * 側載時不使用鏡像站，但一樣經過片段摘要與 Merkle 樹驗證。
+	 *
+	 * @param  url 更新資訊所在的網址
+	 * @return 工作控制介面，已有檔案更新工作進行中時回傳 null
+	 */
+	public synchronized UpdateJob start(String url) {
+		if (updateJob != null && !updateJob.isDone()) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onError("不可同時進行兩個以上的更新");
+			}
+			return null;
+		}
+
+		final UpdateSession session = new UpdateSession(this, url);
+		Thread thread = new Thread() {
 			public void run() {
-				try {
-					// 下載更新資訊與轉換檔案清單
-					Set<Entry<String, JsonElement>> fileSet;
-					updateInfo = loadJSON(baseUrl + "/update.json");
-					digest = updateInfo.getAsJsonObject("config").get("digest").getAsString();
-					partLength = updateInfo.getAsJsonObject("config").get("partLength").getAsInt();
-					fileSet = updateInfo.getAsJsonObject("files").entrySet();
-					interruptUpdate("下載更新資訊後", false);
-					
-					// 載入先前更新紀錄，沒有則產生一個空結構維持正常運作
-					try {
-						previousUpdateLog = loadJSON(logPath + "/update-log.json");
-					} catch(InterruptedException ex) {
-						// 指定一個無效的檔案規格，避免 NPE 發生
-						JsonObject config = new JsonObject();
-						config.addProperty("spec", "0.0.0");
-						
-						previousUpdateLog = new JsonObject();
-						previousUpdateLog.add("files", new JsonObject());
-						previousUpdateLog.add("config", config);
-					}
-					interruptUpdate("載入更新紀錄後", false);
-					
-					// 配置本次更新紀錄
-					currentUpdateLog = new JsonObject();
-					currentUpdateLog.add("config", gson.fromJson(updateInfo.getAsJsonObject("config"), JsonObject.class));
-					
-					// 更新檔規格檢查
-					String remoteSpec = updateInfo.getAsJsonObject("config").get("spec").getAsString();
-					String localSpec  = previousUpdateLog.getAsJsonObject("config").get("spec").getAsString();
-					if (remoteSpec.equals(localSpec)) {
-						// 檔案規格相同，採納先前更新紀錄跳過不用更新的檔案
-						currentUpdateLog.add("files", gson.fromJson(previousUpdateLog.getAsJsonObject("files"), JsonObject.class));
-					} else {
-						// 檔案規格不同，不採納先前更新紀錄
-						currentUpdateLog.add("files", new JsonObject());
-					}
-					
-					// 依序更新每一個檔案
-					for (Entry<String, JsonElement> fileElement : fileSet) {
-						// 計算應儲存位置
-						currentFilename = fileElement.getKey();
-						File path = movePath.containsKey(currentFilename) ? movePath.get(currentFilename) : filePath;
-						
-						// 準備更新時需要的狀態值
-						currentFileInfo = updateInfo.getAsJsonObject("files").getAsJsonObject(currentFilename);
-						currentFile = new File(path, currentFilename);
-						currentGzFile = new File(path, currentFilename + ".gz");
-						try {
-							currentUrl = new URL(baseUrl + currentFilename + ".gz");
-						} catch(MalformedURLException ex) {
-							String reason = String.format("更新資訊網址格式錯誤 (%s)", baseUrl + currentFilename + ".gz");
-							interruptUpdate(reason, true);
-						}
-						
-						// 更新檔案
-						update();
-						
-						// 儲存更新紀錄
-						saveJSON(logPath + "/update-log.json", currentUpdateLog);
-					}
-					
-					// 回報全部完成
-					trigger.onComplete();
-				} catch(InterruptedException ex) {
-					if (userCanceled) {
-						trigger.onUserCancel("更新作業已取消：" + ex.getMessage());
-					} else {
-						trigger.onError("更新作業異常終止：" + ex.getMessage());
-					}
-				}
+				session.runUpdate();
 			}
 		};
-		updateThread.start();
+		updateJob = launch(session, thread);
+		return updateJob;
 	}
 	
 	/**
-	 * 檢查是否需要更新
+	 * 檢查是否需要更新，可以與檔案更新同時進行
+	 *
+	 * @param  url     更新資訊所在的網址
+	 * @param  adapter 檢查結果接收器
+	 * @return 工作控制介面
 	 */
-	public void checkUpdate(String url, final CheckUpdateAdapter adapter) {
-		// URL 防呆處理
-		baseUrl = url;
-		if (!baseUrl.endsWith("/")) {
-			baseUrl = baseUrl + "/";
-		}
-		
-		checkThread = new Thread() {
+	public UpdateJob checkUpdate(String url, final CheckUpdateAdapter adapter) {
+		final UpdateSession session = new UpdateSession(this, url);
+		Thread thread = new Thread() {
 			public void run() {
-				try {
-					// 下載更新資訊與轉換檔案清單
-					Set<Entry<String, JsonElement>> fileSet;
-					updateInfo = loadJSON(baseUrl + "/update.json");
-					digest = updateInfo.getAsJsonObject("config").get("digest").getAsString();
-					partLength = updateInfo.getAsJsonObject("config").get("partLength").getAsInt();
-					fileSet = updateInfo.getAsJsonObject("files").entrySet();
-					
-					// 載入先前更新紀錄，沒有則產生一個空結構維持正常運作
-					try {
-						previousUpdateLog = loadJSON(logPath + "/update-log.json");
-					} catch(InterruptedException ex) {
-						// 指定一個無效的檔案規格，避免 NPE 發生
-						JsonObject config = new JsonObject();
-						config.addProperty("spec", "0.0.0");
-						previousUpdateLog = new JsonObject();
-						previousUpdateLog.add("files", new JsonObject());
-						previousUpdateLog.add("config", config);
-					}
-					
-					// 計算需要更新的檔案大小
-					long totalLength = 0;
-					String lastModified = "";
-					JsonObject localFiles = previousUpdateLog.get("files").getAsJsonObject();
-					for (Entry<String, JsonElement> fileElement : fileSet) {
-						// 1. 更新紀錄不存在需要更新              (常規檢查)
-						// 2. 更新紀錄 mtime 異動時需要更新
-						// 3. 檔案不存在需要更新                  (破壞檢查)
-						// 4. 檔案 checksum 與計算結果不符需要更新
-						boolean latest   = false;
-						String  filename = fileElement.getKey();
-						JsonObject rmtFile = fileElement.getValue().getAsJsonObject();
-						
-						if (localFiles.has(filename)) {
-							JsonObject locFile = localFiles.getAsJsonObject(filename);
-							long rmtMtime = rmtFile.get("mtime").getAsLong();
-							long locMtime = locFile.get("mtime").getAsLong();
-							if (rmtMtime <= locMtime) {
-								String locChecksum = locFile.get("checksum").getAsString();
-								File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
-								File f = new File(path, filename);
-								if (f.exists()) {
-									int partNumber = (int)((f.length() - 1) / partLength);
-									if (checkPart(f, partNumber, locChecksum)) {
-										latest = true;	
-									}	
-								}
-							}
-						}
-						
-						if (!latest) {
-							totalLength += rmtFile.get("length").getAsLong();
-							String date = rmtFile.get("isoTime").getAsString();
-							if (date.compareTo(lastModified) > 0) {
-								lastModified = date;
-							}
-						}
-					}
-					
-					adapter.onCheck(totalLength, lastModified);
-				} catch(InterruptedException ex) {
-					adapter.onError(ex.getMessage());
-				}
+				session.runCheck(adapter);
 			}
 		};
-		checkThread.start();
+		return launch(session, thread);
+	}
+
+	// 啟動工作並加入管理清單，已結束的工作順便移除
+	private UpdateJob launch(UpdateSession session, Thread thread) {
+		for (UpdateJob job : jobs) {
+			if (job.isDone()) {
+				jobs.remove(job);
+			}
+		}
+
+		UpdateJob job = new UpdateJob(session, thread);
+		jobs.add(job);
+		thread.start();
+		return job;
 	}
 	
 	/**
@@ -282,12 +397,7 @@ public class AutoUpdateManager {
 	 * @return 上次更新到現在的天數
 	 */
 	public int getDaysFromLastUpdate() {
-		long lastModified = 0;
-		File f = new File(logPath, "update-log.json");
-		if (f.exists()) {
-			lastModified = f.lastModified();
-		}
-		
+		long lastModified = UpdateJournal.lastModified(logPath);
 		return (int)((System.currentTimeMillis() - lastModified) / 86400000);
 	}
 	
@@ -297,48 +407,55 @@ public class AutoUpdateManager {
 	 * @param filename 要破壞 mtime 的檔案名稱
 	 */
 	public void damageMtime(String filename) {
+		UpdateJournal journal = UpdateJournal.open(logPath);
 		try {
-			JsonObject json = loadJSON(logPath + "/update-log.json");
+			JsonObject json;
+			try {
+				json = journal.load();
+			} catch(IOException|JsonParseException ex) {
+				json = null;
+			}
+			if (json == null) {
+				System.err.println("無法載入更新紀錄");
+				return;
+			}
+
 			JsonObject fileNode = json.getAsJsonObject("files").getAsJsonObject(filename);
 			long mtime = fileNode.get("mtime").getAsLong();
 			fileNode.remove("mtime");
 			fileNode.addProperty("mtime", mtime-1);
-			saveJSON(logPath + "/update-log.json", json);
-		} catch(InterruptedException ex) {
-			System.err.println(ex.getMessage());
+			journal.put(filename, fileNode);
+		} catch(IOException ex) {
+			System.err.println("無法儲存更新紀錄");
+		} finally {
+			try {
+				journal.close();
+			} catch(IOException ex) {
+				System.err.println("無法儲存更新紀錄");
+			}
 		}
 	}
 	
 	/**
-	 * 等待更新程式結束，僅供單元測試等待答案用
+	 * 等待所有工作結束，僅供單元測試等待答案用
 	 */
 	public void waitUntilComplete() {
-		if (updateThread != null) {
+		for (UpdateJob job : jobs) {
 			try {
-				updateThread.join();
+				job.join();
 			} catch(InterruptedException ex) {
 				System.err.println("更新程式中斷");
-			}	
-		} else {
-			// System.err.println("尚未啟動更新程式");
-		}
-		
-		if (checkThread != null) {
-			try {
-				checkThread.join();
-			} catch(InterruptedException ex) {
-				System.err.println("檢查程式中斷");
 			}
-		} else {
-			// System.err.println("尚未啟動檢查程式");
 		}
 	}
 
 	/**
-	 * 取消更新流程
+	 * 取消所有進行中的工作
 	 */
 	public void cancel() {
-		userCanceled = true;
+		for (UpdateJob job : jobs) {
+			job.cancel();
+		}
 	}
 	
 	/**
@@ -348,9 +465,8 @@ public class AutoUpdateManager {
 	 */
 	public boolean isUseful(String expectedSpec) {
 		// 檢查更新紀錄是否存在
-		try {
-			previousUpdateLog = loadJSON(logPath + "/update-log.json");
-		} catch(InterruptedException ex) {
+		JsonObject previousUpdateLog = loadLog();
+		if (previousUpdateLog == null) {
 			return false;
 		}
 		
@@ -369,463 +485,91 @@ public class AutoUpdateManager {
 		
 		// 檢查檔案是否存在與摘要是否正確
 		// 可能發生在 SD 卡受損時
-		Set<Entry<String, JsonElement>> files = previousUpdateLog.getAsJsonObject("files").entrySet();
-		for (Entry<String, JsonElement> e : files) {
-			String filename = e.getKey();
-			String checksum = e.getValue().getAsJsonObject().get("checksum").getAsString();
-			
-			File savePath = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
-			File file = new File(savePath, filename);
-			int  partNumber = (int)((file.length() - 1) / partLength);    
-			
-			try {
-				if (!file.exists() || !checkPart(file, partNumber, checksum)) {
-					return false;
-				}
-			} catch(InterruptedException ex) {
+		Map<String, List<Integer>> corrupted = verify(previousUpdateLog, deepVerify);
+		for (List<Integer> parts : corrupted.values()) {
+			if (!parts.isEmpty()) {
 				return false;
 			}
 		}
 		
 		return true;
 	}
-	
+
 	/**
-	 * 中斷更新動作
+	 * 深度檢查現有檔案，以多執行緒計算整個檔案每個片段的摘要值並與更新紀錄比對
 	 *
-	 * @param reason      中斷更新原因
-	 * @param selfAborted 是否因更新過程錯誤
+	 * 更新紀錄沒有片段摘要值的檔案 (舊版紀錄) 只檢查最後一個片段。
+	 *
+	 * @return 各檔案損毀的片段編號，檔案完整時為空清單，更新紀錄不存在時回傳空的對照表
 	 */
-	private void interruptUpdate(String reason, boolean selfAborted) throws InterruptedException {
-		if (userCanceled || selfAborted) {
-			throw new InterruptedException(reason);
-		}
-	}
-	
-	/**
-	 * 更新一個檔案
-	 */
-	private void update() throws InterruptedException {
-		trigger.onFileBegin(currentFilename);
-
-		if (isExpired()) {
-			final int FILE_RETRY_LIMIT = 3;
-			int fileRetry = -1; // 第 0 次執行不算 retry，所以起始值應該設 -1
-			boolean validated = false;
-			
-			// 檔案重試迴圈
-			while (fileRetry < FILE_RETRY_LIMIT && !validated) {
-				// 下載壓縮檔 (局部容錯)
-				int partNumber = 0;
-				boolean hasNextPart;
-				do {
-					boolean partOk;
-					String expected = currentFileInfo.getAsJsonArray("partChecksums").get(partNumber).getAsString();
-					
-					// 下載片段
-					hasNextPart = downloadPart(partNumber);
-					partOk = checkPart(currentGzFile, partNumber, expected);
-					
-					// 片段自動修復 (容錯)
-					final int PART_RETRY_LIMIT = 3;
-					int partRetry = 0;
-					while (!partOk && partRetry < PART_RETRY_LIMIT) {
-						String reason = String.format(Locale.getDefault(),
-							"傳輸片段 #%d 發現內容損毀", partNumber
-						);
-						trigger.onFileWarning(currentFilename, reason);
-						downloadPart(partNumber);
-						partOk = checkPart(currentGzFile, partNumber, expected);
-						partRetry++;
-					}
-
-					// 重試依然失敗 (不容錯)
-					if (!partOk) {
-						String reason = String.format(Locale.getDefault(),
-							"傳輸片段 #%d 發現內容損毀，嘗試修復 %d 次無效",
-							partNumber, PART_RETRY_LIMIT
-						);
-						interruptUpdate(reason, true);
-					}
-					
-					partNumber++;
-				} while(hasNextPart);
-				
-				// 移除舊檔 (不容錯)
-				if (currentFile.exists()) {
-					if (!currentFile.delete()) {
-						interruptUpdate("檔案系統權限不足，無法刪除舊檔", true);
-					}
-				}
-				
-				// 解壓縮 (不容錯)
-				extract();		
-				
-				// 移除壓縮檔 (不容錯)
-				if (!currentGzFile.delete()) {
-					interruptUpdate("檔案系統權限不足，無法刪除壓縮檔", true);
-				}
-				
-				// 檢查解壓縮後最後一個片段的 MD5
-				String expected = currentFileInfo.get("checksum").getAsString();
-				partNumber = (int)((currentFile.length() - 1) / partLength);
-				validated = checkPart(currentFile, partNumber, expected);
-				if (!validated) {
-					trigger.onFileWarning(currentFilename, "解壓縮後偵測到檔案損毀");
-				}
-				
-				fileRetry++;
-			}
-			
-			if (validated) {
-				// 紀錄檔案更新資訊
-				JsonObject logInfo = new JsonObject();
-				logInfo.addProperty("mtime", currentFileInfo.get("mtime").getAsLong());
-				logInfo.addProperty("checksum", currentFileInfo.get("checksum").getAsString());
-				logInfo.addProperty("isoTime", currentFileInfo.get("isoTime").getAsString());
-				currentUpdateLog.getAsJsonObject("files").add(currentFilename, logInfo);
-				trigger.onFileComplete(currentFilename, true);
-			}
-		} else {
-			trigger.onFileComplete(currentFilename, false);
+	public Map<String, List<Integer>> deepVerify() {
+		JsonObject log = loadLog();
+		if (log == null) {
+			return new LinkedHashMap<>();
 		}
+		return verify(log, true);
 	}
-	
-	/**
-	 * 泛用 JSON 載入程式
-	 * 
-	 * @param location JSON 所在位置
-	 * @return JSON 物件
-	 */
-	private JsonObject loadJSON(String location) throws InterruptedException {
-		StringWriter out = new StringWriter();
 
-		try {
-			if (location.startsWith("http://") || location.startsWith("http://")) {
-				// 從 Web 讀取
-				URL url = new URL(location);
-				HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-				InputStream in = conn.getInputStream();
-				IOUtils.copy(in, out, "UTF-8");
-				in.close();
-			} else {
-				// 從檔案系統讀取
-				FileReader in = new FileReader(location);
-				IOUtils.copy(in, out);
-				in.close();
-			}
-	
-			out.close();
-		} catch(IOException ex) {
-			String reason = "無法載入更新紀錄";
-			if (location.startsWith("http://") || location.startsWith("http://")) {
-				reason = "無法取得更新項目資訊";
-			}
-			interruptUpdate(reason, true);
-		}
-
-		return gson.fromJson(out.toString(), JsonObject.class);
-	}
-	
 	/**
-	 * JSON 存檔程式
-	 * 
-	 * @param location 存檔位置
-	 * @param json     JSON 值內容
+	 * 比對更新紀錄中的所有檔案
+	 *
+	 * @param  log  更新紀錄
+	 * @param  deep 是否檢查每個片段
+	 * @return 各檔案損毀的片段編號
 	 */
-	private void saveJSON(String location, JsonObject json) throws InterruptedException {
-		try {
-			FileUtils.write(new File(location), gson.toJson(json), "UTF-8");
-		} catch(IOException ex) {
-			interruptUpdate("無法儲存更新紀錄", true);
-		}
-	}
-	
-	/**
-	 * 檢查檔案是否需要更新(失效)
-	 * 
-	 * 符合任一條件就需要更新：
-	 * - 檔案不存在
-	 * - 檔案沒有更新資訊
-	 * - 檔案比伺服器的還舊
-	 * - 遠短摘要值與本地端不同
-	 * - 檔案最後 1MB 摘要值錯誤
-	 * - 存放位置變更 (以後再做)
-	 */
-	private boolean isExpired() throws InterruptedException {
-		long gzLength = currentFileInfo.get("gzLength").getAsLong();
-		long exLength = currentFileInfo.get("length").getAsLong();
-
-		// 檔案不存在檢查
-		if (!currentFile.exists()) {
-			trigger.onFileExpired(currentFilename, "檔案不存在", gzLength, exLength);
-			return true;
-		}
+	private Map<String, List<Integer>> verify(JsonObject log, boolean deep) {
+		JsonObject config = log.getAsJsonObject("config");
+		String algorithm = config.get("digest").getAsString();
+		int length = config.get("partLength").getAsInt();
 
-		// 沒有更新資訊
-		if (!previousUpdateLog.getAsJsonObject("files").has(currentFilename)) {
-			trigger.onFileExpired(currentFilename, "更新紀錄檔不存在", gzLength, exLength);
-			return true;
-		}
-		
-		// 檔案比伺服器舊
-		JsonObject previousFileInfo = previousUpdateLog.getAsJsonObject("files").getAsJsonObject(currentFilename);
-		if (previousFileInfo.get("mtime").getAsLong() < currentFileInfo.get("mtime").getAsLong()) {
-			trigger.onFileExpired(currentFilename, "檔案已過時", gzLength, exLength);
-			return true;
-		}
-		
-		// 比對兩端摘要值
-		String localChecksum = previousFileInfo.get("checksum").getAsString();
-		String remoteChecksum = currentFileInfo.get("checksum").getAsString();
-		if (!localChecksum.equals(remoteChecksum)) {
-			trigger.onFileExpired(currentFilename, "檔案摘要值已變更", gzLength, exLength);
-			return true;
-		}
-		
-		// 計算最後 1MB 的 MD5 摘要
-		int partNumber = (int)((currentFile.length() - 1) / partLength);
-		if (!checkPart(currentFile, partNumber, localChecksum)) {
-			trigger.onFileExpired(currentFilename, "檔案驗證失敗，可能有毀損", gzLength, exLength);
-			return true;
+		Map<String, List<Integer>> result = new LinkedHashMap<>();
+		for (Entry<String, JsonElement> e : log.getAsJsonObject("files").entrySet()) {
+			String filename = e.getKey();
+			File savePath = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+			File file = new File(savePath, filename);
+			result.put(filename, FileVerifier.verify(file, e.getValue().getAsJsonObject(), algorithm, length, deep));
 		}
-		
-		return false;
-	}
 
-	/**
-	 * 下載檔案片段
-	 * 
-	 * @param  partNumber 片段編號
-	 * @return 是否還有下一個片段
-	 */
-	private boolean downloadPart(int partNumber) throws InterruptedException {
-		// 計算 HTTP Range 設定值
-		long offset = partNumber * partLength;
-		long end    = offset + partLength - 1;
-		String httpRange = String.format(Locale.getDefault(), "bytes=%d-%d", offset, end);
-		
-		// 配置傳輸資源
-        int ptxLen = 0;
-        int ftxLen = partNumber * partLength;
-
-        try {
-			// 配置 HTTP 連線
-			HttpURLConnection conn = (HttpURLConnection)currentUrl.openConnection();
-			conn.setRequestProperty("Range", httpRange);            // 片段下載
-			conn.setRequestProperty("Accept-Encoding", "identity"); // 防止重複壓縮，這在 Android 環境是必要的
-			InputStream in = conn.getInputStream();
-			
-			// 配置檔案系統存取
-			RandomAccessFile out = new RandomAccessFile(currentGzFile, "rw"); // "r" for seek, "w" for write
-	        out.seek(offset);
-	        
-	        do {
-	        	int ioLen = in.read(BUFFER); // -1 表示讀完
-	        	
-	        	// 最後一個片段小於 1MB 會發生
-	        	if (ioLen == -1) break;
-	        	
-	        	out.write(BUFFER, 0, ioLen);
-	        	ftxLen += ioLen;
-	        	ptxLen += ioLen;
-	        	trigger.onFileTransferLength(currentFilename, ftxLen);
-	        	
-	        	// 取消點
-	        	String progress = String.format(Locale.getDefault(), "下載 %s %d bytes 時", currentFilename, ftxLen);
-	    		interruptUpdate(progress, false);
-	        } while(ptxLen < partLength);
-	
-	        // 關閉 I/O
-	        out.close();
-			in.close();
-        } catch(IOException ex) {
-        	String reason = String.format(Locale.getDefault(), "下載片段 #%d 發生異常", partNumber);
-        	trigger.onFileWarning(currentFilename, reason);
-        }
-
-		// 如果傳輸量等於 PART_SIZE 回傳 true，告知更新程式還要繼續下載
-		return (ptxLen == partLength);
+		return result;
 	}
-	
+
 	/**
-	 * 解壓縮下載完成的檔案
+	 * 載入更新紀錄
+	 *
+	 * @return 更新紀錄，不存在或損毀時回傳 null
 	 */
-	private void extract() throws InterruptedException {
-		// 取得解壓縮後的檔案大小
-		int length = currentFileInfo.get("length").getAsInt();
-		
-		// 解壓縮
-		try {
-			InputStream  in  = new GZIPInputStream(new FileInputStream(currentGzFile));
-			OutputStream out = new FileOutputStream(currentFile);
-			int ioLen;
-			int exLen = 0;
-			int prevPercent = -1;
-	
-			do {
-				ioLen = (int)IOUtils.copyLarge(in, out, 0, BUFFER_SIZE); // 0 表示讀完
-				exLen += ioLen;
-				int percent = getPercent(exLen, length);
-				String progress = String.format(Locale.getDefault(), "解壓縮 %s %d%% 時", currentFilename, percent);
-	    		interruptUpdate(progress, false);
-	        	if (percent > prevPercent) {
-	        		trigger.onFileExtract(currentFilename, percent);
-	        		prevPercent = percent;
-	        	}
-			} while(ioLen > 0);
-			
-			// 關閉 I/O
-			out.close();
-			in.close();
-		} catch(IOException ex) {
-			interruptUpdate("解壓縮失敗", true);
+	private JsonObject loadLog() {
+		JsonObject log = UpdateJournal.read(logPath);
+		if (log == null || !log.has("config") || !log.has("files")) {
+			return null;
 		}
+		return log;
 	}
 
-	/**
-     * 取得本地檔案分段摘要
-     *
-     * @param file       本地檔案
-     * @param partNumber 分段順序
-     * @param expected   預期的摘要值
-     * @return           是否驗證成功
-     */
-    private boolean checkPart(final File file, final int partNumber, final String expected) throws InterruptedException {
-    	MessageDigest md = null;
-
-    	try {
-        	md = MessageDigest.getInstance(digest);
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-			try {
-				FileInputStream   fis = new FileInputStream(file);
-				DigestInputStream dis = new DigestInputStream(fis, md);
-
-				long off = partLength * partNumber;
-				if (dis.skip(off) < off) {
-					dis.close();
-					fis.close();
-					throw new IOException("Cannot move to offset position.");
-				}
-
-				int readlen = 1;
-				int total   = 0;
-				while (readlen > 0 && total < partLength) {
-					readlen = dis.read(BUFFER);
-					total += readlen;
-				}
-
-				dis.close();
-				fis.close();
-			} catch(IOException ex) {
-				String reason = String.format(Locale.getDefault(), "計算 %s 摘要失敗 (%s)", digest, ex.getMessage());
-				interruptUpdate(reason, true);
-			}
-
-			StringBuilder sb = new StringBuilder();
-			for (byte hash : md.digest()) {
-				String bytestr = String.format("%02x", (hash&0xff));
-				sb.append(bytestr);
-			}
-
-			String actual = sb.toString();
-			sb.delete(0, sb.length());
-
-			return actual.equals(expected);
-        } catch(NoSuchAlgorithmException ex) {
-        	String reason = String.format(Locale.getDefault(), "無法使用 %s 演算法", digest);
-        	interruptUpdate(reason, true);
-        }
-
-    	return false;
-    }
-
-	// 計算進度值，需要防止 overflow 產生負數
-	private int getPercent(int done, int total) {
-		return (int)(((float)done/total)*100);
-	}
-	
 	/**
-	 * 事件產生器，轉發事件給所有 Listener
+	 * 摘要值轉換為十六進位字串，應用程式計算摘要值時也使用這個轉換
+	 *
+	 * @param  hash 摘要值
+	 * @return 小寫十六進位字串
 	 */
-	private AutoUpdateAdapter trigger = new AutoUpdateAdapter() {
-		
-		private int  gzPercent;
-		private long gzLength;
-		
-		@Override
-		public void onFileBegin(String filename) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileBegin(filename);
-			}
-		}
-
-		@Override
-		public void onError(String reason) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onError(reason);
-			}
-		}
-
-		@Override
-		public void onFileTransferLength(String filename, long transfered) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileTransferLength(filename, transfered);
-			}
-			
-			int percent = getPercent((int)transfered, (int)gzLength);
-			if (percent > gzPercent) {
-				for (AutoUpdateAdapter l : listenerList) {
-					l.onFileTransfer(filename, percent);
-				}
-				gzPercent = percent;
-			}
-		}
-
-		@Override
-		public void onFileExtract(String filename, int percent) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileExtract(filename, percent);
-			}
-		}
-
-		@Override
-		public void onFileComplete(String filename, boolean isNew) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileComplete(filename, isNew);
-			}
-		}
-
-		@Override
-		public void onComplete() {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onComplete();
-			}
-		}
-		
-		@Override
-		public void onFileWarning(String filename, String reason) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileWarning(filename, reason);
-			}
+	public static String toHex(byte[] hash) {
+		char[] hex = new char[hash.length * 2];
+		for (int i=0;i<hash.length;i++) {
+			hex[2*i]   = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[2*i+1] = HEX_DIGITS[hash[i] & 0xf];
 		}
+		return new String(hex);
+	}
 
-		@Override
-		public void onFileExpired(String filename, String reason, long gzLength, long exLength) {
-			this.gzLength  = gzLength;
-			this.gzPercent = -1;
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onFileExpired(filename, reason, gzLength, exLength);
-			}
+	// 十六進位字串轉換為摘要值
+	static byte[] fromHex(String hex) {
+		byte[] hash = new byte[hex.length() / 2];
+		for (int i=0;i<hash.length;i++) {
+			hash[i] = (byte)((Character.digit(hex.charAt(2*i), 16) << 4) | Character.digit(hex.charAt(2*i+1), 16));
 		}
+		return hash;
+	}
 
-		@Override
-		public void onUserCancel(String progress) {
-			for (AutoUpdateAdapter l : listenerList) {
-				l.onUserCancel(progress);
-			}
-		}
-		
-	};
-	
 }
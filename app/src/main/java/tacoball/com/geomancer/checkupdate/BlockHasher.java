@@ -0,0 +1,131 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多執行緒區塊摘要計算程式
+ *
+ * 每個工作執行緒使用自己的緩衝區與摘要計算器，透過 FileChannel 指定位置讀取，
+ * 不需要共用檔案指標。
+ */
+class BlockHasher {
+
+	private static final int BUFFER_SIZE = 32768;
+
+	/**
+	 * 計算檔案每個區塊的摘要值
+	 *
+	 * @param  file        本地檔案
+	 * @param  blockLength 區塊大小
+	 * @param  algorithm   摘要演算法
+	 * @param  threads     工作執行緒數
+	 * @return 各區塊摘要值 (十六進位字串)，最後一個區塊可能小於區塊大小
+	 */
+	static String[] hash(File file, final int blockLength, final String algorithm, int threads)
+			throws IOException, NoSuchAlgorithmException, InterruptedException {
+		// 提早檢查演算法，避免每個工作執行緒各自失敗
+		Digests.getInstance(algorithm);
+
+		FileInputStream fis = new FileInputStream(file);
+		final FileChannel channel = fis.getChannel();
+		final long length = channel.size();
+		final int blockCount = (int)((length + blockLength - 1) / blockLength);
+		final String[] checksums = new String[blockCount];
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, blockCount)));
+		List<Future<Void>> workers = new ArrayList<>();
+		for (int i=0;i<threads && i<blockCount;i++) {
+			workers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+					MessageDigest md = Digests.getInstance(algorithm);
+					int blockNumber;
+					while ((blockNumber = nextBlock.getAndIncrement()) < blockCount) {
+						long position = (long)blockNumber * blockLength;
+						checksums[blockNumber] = AutoUpdateManager.toHex(hashRange(channel, position, position + blockLength, md, buffer));
+					}
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
+
+		try {
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		} catch(ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		} finally {
+			pool.shutdownNow();
+			fis.close();
+		}
+
+		return checksums;
+	}
+
+	/**
+	 * 計算檔案單一區塊的摘要值
+	 *
+	 * @param  file        本地檔案
+	 * @param  blockNumber 區塊編號
+	 * @param  blockLength 區塊大小
+	 * @param  algorithm   摘要演算法
+	 * @param  buffer      讀取用緩衝區
+	 * @return 區塊摘要值 (原始位元組)，比對時不必轉換為字串
+	 */
+	static byte[] hashBlock(File file, int blockNumber, int blockLength, String algorithm, byte[] buffer)
+			throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = Digests.getInstance(algorithm);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			long position = (long)blockNumber * blockLength;
+			return hashRange(fis.getChannel(), position, position + blockLength, md, ByteBuffer.wrap(buffer));
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * 以指定位置讀取計算一段範圍的摘要值，不移動檔案指標，可多執行緒共用同一個 FileChannel
+	 *
+	 * @param  channel  檔案通道
+	 * @param  position 起始位置
+	 * @param  end      結束位置 (不含)，超過檔案長度時讀到檔尾為止
+	 * @param  md       摘要計算器
+	 * @param  buffer   讀取用緩衝區
+	 * @return 摘要值
+	 */
+	private static byte[] hashRange(FileChannel channel, long position, long end, MessageDigest md, ByteBuffer buffer)
+			throws IOException {
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), end - position));
+			int ioLen = channel.read(buffer, position);
+			if (ioLen == -1) break;
+			md.update(buffer.array(), buffer.arrayOffset(), ioLen);
+			position += ioLen;
+		}
+		return md.digest();
+	}
+
+}
@@ -0,0 +1,154 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * 區塊壓縮檔的索引，壓縮檔由多個可以獨立解壓縮的成員串接而成
+ *
+ * 發布端把原始檔依 blockLength (預設等於 partLength) 切成區塊，每個區塊各自壓縮成一個成員
+ * (gzip member 或 xz stream) 後依序串接，仍然是合法的單一壓縮檔，舊版也能整個解壓縮。
+ * 更新資訊以 blockIndex 列出每個成員在壓縮檔中的起點：
+ *
+ * "blockIndex": [ 0, 312345, 618002, ... ]
+ *
+ * 第 n 個成員的範圍是 blockIndex[n] 到下一個起點 (最後一個到 gzLength)，
+ * 解壓縮後就是原始檔第 n 個區塊，對應 blockChecksums 的第 n 個摘要值。
+ */
+class BlockIndex {
+
+	private final long[] offsets;
+	private final long   gzLength;
+	private final long   length;
+	private final int    blockLength;
+
+	private BlockIndex(long[] offsets, long gzLength, long length, int blockLength) {
+		this.offsets = offsets;
+		this.gzLength = gzLength;
+		this.length = length;
+		this.blockLength = blockLength;
+	}
+
+	/**
+	 * 載入更新項目的區塊索引
+	 *
+	 * @param  fileInfo    更新項目資訊
+	 * @param  blockLength 區塊大小
+	 * @return 區塊索引，沒有索引或索引與檔案長度不符時回傳 null
+	 */
+	static BlockIndex load(JsonObject fileInfo, int blockLength) {
+		if (!fileInfo.has("blockIndex")) {
+			return null;
+		}
+
+		JsonArray index = fileInfo.getAsJsonArray("blockIndex");
+		long gzLength = fileInfo.get("gzLength").getAsLong();
+		long length = fileInfo.get("length").getAsLong();
+		if (index.size() != (int)((length + blockLength - 1) / blockLength)) {
+			return null;
+		}
+
+		long[] offsets = new long[index.size()];
+		long previous = 0;
+		for (int i=0;i<offsets.length;i++) {
+			offsets[i] = index.get(i).getAsLong();
+			if (offsets[i] < previous || offsets[i] > gzLength || (i == 0 && offsets[i] != 0)) {
+				return null;
+			}
+			previous = offsets[i];
+		}
+		return new BlockIndex(offsets, gzLength, length, blockLength);
+	}
+
+	/**
+	 * 區塊數
+	 */
+	int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * 取得成員在壓縮檔中的起點
+	 *
+	 * @param blockNumber 區塊編號
+	 */
+	long offset(int blockNumber) {
+		return offsets[blockNumber];
+	}
+
+	/**
+	 * 取得成員的壓縮長度
+	 *
+	 * @param blockNumber 區塊編號
+	 */
+	int length(int blockNumber) {
+		long end = (blockNumber + 1 < offsets.length) ? offsets[blockNumber + 1] : gzLength;
+		return (int)(end - offsets[blockNumber]);
+	}
+
+	/**
+	 * 取得區塊解壓縮後的長度，最後一個區塊可能小於區塊大小
+	 *
+	 * @param blockNumber 區塊編號
+	 */
+	int rawLength(int blockNumber) {
+		return (int)Math.min(blockLength, length - (long)blockNumber * blockLength);
+	}
+
+	/**
+	 * 從本地壓縮檔讀取一個成員，以指定位置讀取，多個執行緒可以共用同一個 FileChannel
+	 *
+	 * @param  channel     壓縮檔
+	 * @param  blockNumber 區塊編號
+	 * @return 成員內容
+	 */
+	byte[] read(FileChannel channel, int blockNumber) throws IOException {
+		ByteBuffer member = ByteBuffer.allocate(length(blockNumber));
+		long position = offsets[blockNumber];
+		while (member.hasRemaining()) {
+			int ioLen = channel.read(member, position);
+			if (ioLen == -1) {
+				throw new EOFException();
+			}
+			position += ioLen;
+		}
+		return member.array();
+	}
+
+	/**
+	 * 解壓縮一個成員
+	 *
+	 * @param  codec       壓縮格式
+	 * @param  member      成員內容
+	 * @param  blockNumber 區塊編號
+	 * @return 區塊內容
+	 * @throws IOException 壓縮格式錯誤或解壓縮後長度不符
+	 */
+	byte[] decode(Codec codec, byte[] member, int blockNumber) throws IOException {
+		byte[] block = new byte[rawLength(blockNumber)];
+		InputStream in = codec.decode(new ByteArrayInputStream(member));
+		try {
+			int total = 0;
+			int ioLen;
+			while (total < block.length && (ioLen = in.read(block, total, block.length - total)) != -1) {
+				total += ioLen;
+			}
+			if (total < block.length || in.read() != -1) {
+				String reason = String.format(Locale.getDefault(), "區塊 #%d 解壓縮後長度不符", blockNumber);
+				throw new IOException(reason);
+			}
+		} finally {
+			in.close();
+		}
+		return block;
+	}
+
+}
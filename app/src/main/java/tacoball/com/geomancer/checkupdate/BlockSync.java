@@ -0,0 +1,456 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一個檔案的區塊差異同步與修復
+ *
+ * 更新資訊提供解壓縮後每個區塊的摘要值 (blockChecksums) 時，只下載與本地檔案不同或損毀的區塊，
+ * 直接寫入本地檔案的對應位置。區塊先向持有相同版本檔案的區域網路節點要求，
+ * 節點無法提供時改從鏡像站下載，有區塊索引時只下載壓縮檔中對應的成員。
+ */
+class BlockSync {
+
+	// 區塊重試次數上限
+	private static final int BLOCK_RETRY_LIMIT = 3;
+
+	private final TransferContext context;
+	private final PeerManager peers;
+	private final String     digest;
+	private final int        blockLength;
+	private final String     filename;
+	private final File       file;
+	private final JsonObject fileInfo;
+	private final BlockIndex blockIndex;
+	private final AtomicLong transfered;
+	private final byte[]     buffer;
+
+	// 修復後已逐一驗證的本地片段摘要值
+	private String[] localChecksums;
+
+	/**
+	 * 配置區塊同步
+	 *
+	 * @param context     傳輸資源
+	 * @param peers       區域網路節點，沒有時為 null
+	 * @param digest      區塊摘要演算法
+	 * @param blockLength 區塊大小
+	 * @param filename    檔名
+	 * @param file        本地檔案
+	 * @param fileInfo    更新項目資訊
+	 * @param blockIndex  區塊索引，不是區塊壓縮檔時為 null
+	 * @param transfered  傳輸量，供進度回報
+	 * @param buffer      呼叫端執行緒的緩衝區
+	 */
+	BlockSync(TransferContext context, PeerManager peers, String digest, int blockLength, String filename, File file,
+			JsonObject fileInfo, BlockIndex blockIndex, AtomicLong transfered, byte[] buffer) {
+		this.context = context;
+		this.peers = peers;
+		this.digest = digest;
+		this.blockLength = blockLength;
+		this.filename = filename;
+		this.file = file;
+		this.fileInfo = fileInfo;
+		this.blockIndex = blockIndex;
+		this.transfered = transfered;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * 區塊差異同步，只下載與本地檔案不同的區塊
+	 *
+	 * 先以多執行緒計算本地檔案的區塊摘要，再以 Range 向鏡像站下載不同的區塊。
+	 * 區域網路節點持有相同版本的檔案時，本地檔案不存在也先向節點同步，
+	 * 節點無法提供的區塊再依同樣的規則向鏡像站下載。
+	 *
+	 * @return 是否完成同步，沒有區塊資訊、本地檔案不存在、差異大於壓縮檔或區塊下載失敗時回傳 false 改為完整下載
+	 */
+	boolean sync() throws InterruptedException {
+		if (!fileInfo.has("blockChecksums")) {
+			return false;
+		}
+		boolean fromPeers = peers != null && peers.holds(filename, fileInfo);
+		if (!fromPeers && !file.exists()) {
+			return false;
+		}
+
+		List<Integer> blocks = findDifferentBlocks();
+		if (blocks == null) {
+			return false;
+		}
+
+		long exLength = fileInfo.get("length").getAsLong();
+		int blockCount = fileInfo.getAsJsonArray("blockChecksums").size();
+		if (fromPeers && !blocks.isEmpty()) {
+			String reason = String.format(Locale.getDefault(), "從區域網路節點同步 %d/%d 個區塊", blocks.size(), blockCount);
+			context.trigger.onFileExpired(filename, reason, blocksLength(blocks, false), exLength);
+			blocks = writePeerBlocks(blocks);
+			if (blocks.isEmpty()) {
+				return true;
+			}
+
+			reason = String.format(Locale.getDefault(), "%d 個區塊無法從區域網路節點取得，改從鏡像站下載", blocks.size());
+			context.trigger.onFileWarning(filename, reason);
+			transfered.set(0);
+		}
+
+		// 差異太大時，直接下載壓縮檔比較划算
+		long syncLength = blocksLength(blocks, blockIndex != null);
+		long gzLength = fileInfo.get("gzLength").getAsLong();
+		if (syncLength >= gzLength) {
+			if (fromPeers) {
+				context.trigger.onFileExpired(filename, "改為完整下載", gzLength, exLength);
+			}
+			return false;
+		}
+
+		String reason = String.format(Locale.getDefault(), "差異同步 %d/%d 個區塊", blocks.size(), blockCount);
+		context.trigger.onFileExpired(filename, reason, syncLength, exLength);
+		if (!writeBlocks(blocks)) {
+			context.trigger.onFileWarning(filename, "差異同步失敗，改為完整下載");
+			transfered.set(0);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 以 Merkle 樹確認整個檔案，只重新下載損毀的區塊
+	 *
+	 * 更新資訊同時提供區塊摘要值與 Merkle 樹根節點 (merkleRoot) 時才會執行，
+	 * 根節點一致表示整個檔案正確，不一致時只往不同的子樹找出損毀的區塊修復，
+	 * 不必透過檔案重試迴圈重新下載整個檔案。
+	 *
+	 * @param  partLength 片段大小，與區塊大小相同時記下本地片段摘要值
+	 * @return 檔案是否完整或已修復，沒有 Merkle 樹資訊時回傳 true 交給最後一個片段的檢查，
+	 *         區塊下載失敗時回傳 false 交給檔案重試迴圈
+	 */
+	boolean repair(int partLength) throws InterruptedException {
+		localChecksums = null;
+		if (!fileInfo.has("blockChecksums") || !fileInfo.has("merkleRoot")) {
+			return true;
+		}
+
+		List<Integer> blocks = findDifferentBlocks();
+		if (blocks == null) {
+			return false;
+		}
+
+		if (!blocks.isEmpty()) {
+			String reason = String.format(Locale.getDefault(), "檔案有 %d 個區塊損毀，只修復損毀的區塊", blocks.size());
+			context.trigger.onFileWarning(filename, reason);
+			transfered.set(0);
+			if (!writeBlocks(blocks)) {
+				return false;
+			}
+		}
+
+		// 修復後每個區塊都已逐一驗證，區塊與片段大小相同時可以直接做為本地片段摘要值
+		if (blockLength == partLength) {
+			JsonArray blockChecksums = fileInfo.getAsJsonArray("blockChecksums");
+			localChecksums = new String[blockChecksums.size()];
+			for (int i=0;i<localChecksums.length;i++) {
+				localChecksums[i] = blockChecksums.get(i).getAsString();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * 最近一次 repair() 確認過的本地片段摘要值
+	 *
+	 * @return 摘要值，沒有確認整個檔案或區塊與片段大小不同時回傳 null
+	 */
+	String[] localChecksums() {
+		return localChecksums;
+	}
+
+	/**
+	 * 下載區塊並寫入本地檔案的對應位置，最後調整為更新資訊中的檔案長度
+	 *
+	 * 只有取消才拋出 InterruptedException，區塊重試依然失敗時停止寫入並回傳 false，
+	 * 由呼叫端改為完整下載或交給檔案重試迴圈。
+	 *
+	 * @param  blocks 區塊編號
+	 * @return 是否所有區塊都已寫入
+	 */
+	boolean writeBlocks(List<Integer> blocks) throws InterruptedException {
+		try {
+			// 取消時 fetchBlock 拋出 InterruptedException，也要關閉檔案
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				for (int blockNumber : blocks) {
+					byte[] data = fetchBlock(blockNumber);
+					if (data == null) {
+						return false;
+					}
+					out.seek((long)blockNumber * blockLength);
+					out.write(data);
+				}
+				out.setLength(fileInfo.get("length").getAsLong());
+				return true;
+			} finally {
+				out.close();
+			}
+		} catch(IOException ex) {
+			throw new InterruptedException("無法寫入差異區塊");
+		}
+	}
+
+	/**
+	 * 計算本地檔案的區塊摘要，找出與更新資訊不同的區塊
+	 *
+	 * 更新資訊提供 Merkle 樹根節點時，先比對根節點，不一致才往不同的子樹找；
+	 * 根節點與區塊摘要值不符時表示更新資訊有誤，改為逐一比對。
+	 *
+	 * @return 不同的區塊編號，無法計算本地區塊摘要時回傳 null
+	 */
+	private List<Integer> findDifferentBlocks() throws InterruptedException {
+		JsonArray blockChecksums = fileInfo.getAsJsonArray("blockChecksums");
+		String[] remoteChecksums = new String[blockChecksums.size()];
+		for (int i=0;i<remoteChecksums.length;i++) {
+			remoteChecksums[i] = blockChecksums.get(i).getAsString();
+		}
+
+		// 計算本地區塊摘要
+		String[] localChecksums = new String[0];
+		if (file.exists()) {
+			try {
+				int threads = Runtime.getRuntime().availableProcessors();
+				localChecksums = BlockHasher.hash(file, blockLength, digest, threads);
+			} catch(IOException ex) {
+				context.trigger.onFileWarning(filename, "無法計算本地檔案區塊摘要");
+				return null;
+			} catch(NoSuchAlgorithmException ex) {
+				throw unsupportedDigest();
+			}
+		}
+		context.control.checkCanceled("計算本地檔案區塊摘要後");
+
+		// 找出不同的區塊
+		try {
+			MerkleTree remoteTree = new MerkleTree(remoteChecksums, digest);
+			MerkleTree localTree  = new MerkleTree(localChecksums, digest);
+			if (fileInfo.has("merkleRoot")) {
+				if (remoteTree.root().equals(fileInfo.get("merkleRoot").getAsString())) {
+					return remoteTree.diff(localTree);
+				}
+				context.trigger.onFileWarning(filename, "Merkle 樹根節點與區塊摘要值不符");
+			}
+		} catch(NoSuchAlgorithmException ex) {
+			throw unsupportedDigest();
+		}
+
+		List<Integer> blocks = new ArrayList<>();
+		for (int i=0;i<remoteChecksums.length;i++) {
+			if (i >= localChecksums.length || !localChecksums[i].equals(remoteChecksums[i])) {
+				blocks.add(i);
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * 計算下載區塊的總傳輸量
+	 *
+	 * @param  blocks     區塊編號
+	 * @param  compressed 是否以區塊索引中的壓縮長度計算
+	 * @return 總長度
+	 */
+	private long blocksLength(List<Integer> blocks, boolean compressed) {
+		long length = fileInfo.get("length").getAsLong();
+		long total = 0;
+		for (int blockNumber : blocks) {
+			if (compressed) {
+				total += blockIndex.length(blockNumber);
+			} else {
+				total += Math.min(blockLength, length - (long)blockNumber * blockLength);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * 向區域網路節點下載區塊並寫入本地檔案的對應位置，最後調整為更新資訊中的檔案長度
+	 *
+	 * @param  blocks 區塊編號
+	 * @return 節點無法提供的區塊編號
+	 */
+	private List<Integer> writePeerBlocks(List<Integer> blocks) throws InterruptedException {
+		List<Integer> missing = new ArrayList<>();
+		try {
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				for (int blockNumber : blocks) {
+					byte[] data = fetchPeerBlock(blockNumber);
+					if (data == null) {
+						missing.add(blockNumber);
+						continue;
+					}
+					out.seek((long)blockNumber * blockLength);
+					out.write(data);
+				}
+				out.setLength(fileInfo.get("length").getAsLong());
+			} finally {
+				out.close();
+			}
+		} catch(IOException ex) {
+			throw new InterruptedException("無法寫入差異區塊");
+		}
+		return missing;
+	}
+
+	/**
+	 * 從區域網路節點下載一個區塊並以更新資訊的區塊摘要值驗證，依序嘗試持有相同版本檔案的節點
+	 *
+	 * 節點提供的是解壓縮後的原始檔，傳輸失敗或驗證失敗的區塊不再向同一個節點要求。
+	 *
+	 * @param  blockNumber 區塊編號
+	 * @return 已驗證的區塊內容，沒有節點能提供時回傳 null
+	 */
+	private byte[] fetchPeerBlock(int blockNumber) throws InterruptedException {
+		if (peers == null) {
+			return null;
+		}
+
+		String expected = fileInfo.getAsJsonArray("blockChecksums").get(blockNumber).getAsString();
+		long offset = (long)blockNumber * blockLength;
+		int length = (int)Math.min(blockLength, fileInfo.get("length").getAsLong() - offset);
+		ByteArrayOutputStream block = new ByteArrayOutputStream(length);
+
+		while (true) {
+			PeerManager.Peer peer = peers.select(filename, fileInfo, blockNumber);
+			if (peer == null) {
+				return null;
+			}
+
+			String reason;
+			Transport.Response conn = null;
+			block.reset();
+			try {
+				conn = peers.open(peer, filename, offset, length);
+				context.control.guard.watch(conn, context.partDeadline);
+				InputStream in = conn.getInputStream();
+				if (!conn.isPartial()) {
+					throw new IOException("Range is not supported.");
+				}
+
+				int ioLen;
+				while (block.size() < length && (ioLen = in.read(buffer, 0, Math.min(buffer.length, length - block.size()))) != -1) {
+					block.write(buffer, 0, ioLen);
+					transfered.addAndGet(ioLen);
+					context.checkCanceled(filename, transfered);
+				}
+				in.close();
+
+				byte[] data = block.toByteArray();
+				if (data.length == length && matches(data, expected)) {
+					return data;
+				}
+				reason = String.format(Locale.getDefault(), "從 %s 取得的區塊 #%d 驗證失敗", peer, blockNumber);
+			} catch(IOException ex) {
+				// 取消造成的連線中斷不算節點失敗
+				context.checkCanceled(filename, transfered);
+				reason = String.format(Locale.getDefault(), "從 %s 下載區塊 #%d 發生異常 (%s)", peer, blockNumber, ex.getMessage());
+			} finally {
+				if (conn != null) {
+					context.control.guard.release(conn);
+				}
+			}
+
+			peers.fail(peer, filename, blockNumber);
+			transfered.addAndGet(-block.size());
+			context.trigger.onFileWarning(filename, reason);
+		}
+	}
+
+	/**
+	 * 下載一個區塊並驗證，驗證失敗時自動重新下載
+	 *
+	 * 先向持有相同版本檔案的區域網路節點要求，節點無法提供時改從鏡像站下載，
+	 * 有區塊索引時只下載壓縮檔中對應的成員再解壓縮，否則從未壓縮檔下載。
+	 *
+	 * @param  blockNumber 區塊編號
+	 * @return 已驗證的區塊內容，重試依然失敗時回傳 null
+	 */
+	private byte[] fetchBlock(int blockNumber) throws InterruptedException {
+		byte[] peerBlock = fetchPeerBlock(blockNumber);
+		if (peerBlock != null) {
+			return peerBlock;
+		}
+
+		String expected = fileInfo.getAsJsonArray("blockChecksums").get(blockNumber).getAsString();
+		ByteArrayOutputStream block = new ByteArrayOutputStream(blockLength);
+
+		for (int blockRetry=0;blockRetry<=BLOCK_RETRY_LIMIT;blockRetry++) {
+			if (blockRetry > 0) {
+				String reason = String.format(Locale.getDefault(),
+					"傳輸區塊 #%d 發現內容損毀", blockNumber
+				);
+				context.trigger.onFileWarning(filename, reason);
+				transfered.addAndGet(-block.size());
+				block.reset();
+				context.control.backoff(blockRetry);
+			}
+
+			byte[] data;
+			if (blockIndex != null) {
+				long offset = blockIndex.offset(blockNumber);
+				int length = blockIndex.length(blockNumber);
+				context.transferRange(filename, transfered, filename + context.codec.extension(), offset, length, "區塊", blockNumber, blockRetry, buffer, block);
+				try {
+					data = blockIndex.decode(context.codec, block.toByteArray(), blockNumber);
+				} catch(IOException ex) {
+					continue;
+				}
+			} else {
+				long offset = (long)blockNumber * blockLength;
+				context.transferRange(filename, transfered, filename, offset, blockLength, "區塊", blockNumber, blockRetry, buffer, block);
+				data = block.toByteArray();
+			}
+			if (matches(data, expected)) {
+				return data;
+			}
+		}
+
+		// 重試依然失敗 (局部容錯)，例如鏡像站沒有未壓縮檔
+		String reason = String.format(Locale.getDefault(),
+			"傳輸區塊 #%d 發現內容損毀，嘗試修復 %d 次無效",
+			blockNumber, BLOCK_RETRY_LIMIT
+		);
+		context.trigger.onFileWarning(filename, reason);
+		transfered.addAndGet(-block.size());
+		return null;
+	}
+
+	// 以區塊摘要演算法比對區塊內容
+	private boolean matches(byte[] data, String expected) throws InterruptedException {
+		try {
+			MessageDigest md = Digests.getInstance(digest);
+			md.update(data);
+			return Digests.matches(md.digest(), expected);
+		} catch(NoSuchAlgorithmException ex) {
+			throw unsupportedDigest();
+		}
+	}
+
+	// 不支援區塊摘要演算法 (不容錯)
+	private InterruptedException unsupportedDigest() {
+		return new InterruptedException(String.format(Locale.getDefault(), "無法使用 %s 演算法", digest));
+	}
+
+}
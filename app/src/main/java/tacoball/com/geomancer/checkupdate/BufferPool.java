@@ -0,0 +1,46 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 傳輸與摘要計算用的緩衝區池
+ *
+ * 同時進行的更新工作與工作執行緒各自借用緩衝區，用完歸還重複使用，
+ * 不共用同一塊緩衝區，也不必每次都配置新的空間。
+ */
+class BufferPool {
+
+	// 緩衝區大小 (必須是片段大小的因數)
+	static final int BUFFER_SIZE = 32768;
+
+	// 保留的緩衝區數量上限，超過的直接交給 GC 回收
+	private static final int POOL_LIMIT = 16;
+
+	private static final BlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(POOL_LIMIT);
+
+	/**
+	 * 借用緩衝區，池中沒有時配置新的緩衝區
+	 *
+	 * @return 緩衝區
+	 */
+	static byte[] acquire() {
+		byte[] buffer = POOL.poll();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		return buffer;
+	}
+
+	/**
+	 * 歸還緩衝區，池已滿時直接丟棄
+	 *
+	 * @param buffer 緩衝區
+	 */
+	static void release(byte[] buffer) {
+		if (buffer != null && buffer.length == BUFFER_SIZE) {
+			POOL.offer(buffer);
+		}
+	}
+
+}
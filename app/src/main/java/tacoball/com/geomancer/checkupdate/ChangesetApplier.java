@@ -0,0 +1,42 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * 資料列變更集套用程式，由應用程式提供資料庫存取方式
+ *
+ * 更新資訊以 rowTables 宣告資料列摘要值涵蓋的表格與 key 欄位，例如 {"unluckyhouse": "id"}，
+ * 摘要值永遠以這組表格計算，與變更集異動了哪些表格無關。
+ *
+ * 變更集格式：
+ * {
+ *   "table":   "unluckyhouse",
+ *   "key":     "id",
+ *   "base":    "套用前的資料列摘要值",
+ *   "target":  "套用後的資料列摘要值",
+ *   "inserts": [ {"id": 1, ...}, ... ],
+ *   "updates": [ {"id": 2, ...}, ... ],
+ *   "deletes": [ 3, ... ]
+ * }
+ */
+public interface ChangesetApplier {
+
+	/**
+	 * 在單一交易中依序套用變更集，套用後資料列摘要值與預期不符時必須回復所有變更
+	 *
+	 * @param database   資料庫檔案
+	 * @param changesets 依序套用的變更集
+	 * @param tables     資料列摘要值涵蓋的表格與 key 欄位，依表格名稱排序
+	 * @param algorithm  摘要演算法
+	 * @param expected   套用後預期的資料列摘要值
+	 * @throws IOException 套用失敗、變更集異動未宣告的表格或摘要值不符，此時資料庫維持原狀
+	 */
+	void apply(File database, List<JsonObject> changesets, SortedMap<String, String> tables, String algorithm,
+			String expected) throws IOException;
+
+}
@@ -0,0 +1,121 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 一個檔案的資料列變更集更新
+ *
+ * 從本地資料列摘要值開始，依 base 串接更新資訊中的變更集直到遠端資料列摘要值，
+ * 交給應用程式提供的變更集套用程式在單一交易中套用並驗證。
+ * 變更集的下載由呼叫端負責，這裡只決定要下載哪些變更集以及套用。
+ */
+class ChangesetUpdate {
+
+	private final AutoUpdateAdapter trigger;
+	private final ChangesetApplier  applier;
+	private final String            filename;
+	private final JsonObject        fileInfo;
+	private final List<JsonObject>  chain;
+
+	private ChangesetUpdate(AutoUpdateAdapter trigger, ChangesetApplier applier, String filename, JsonObject fileInfo,
+			List<JsonObject> chain) {
+		this.trigger = trigger;
+		this.applier = applier;
+		this.filename = filename;
+		this.fileInfo = fileInfo;
+		this.chain = chain;
+	}
+
+	/**
+	 * 串接變更集
+	 *
+	 * @param  trigger          事件接收器
+	 * @param  applier          變更集套用程式，沒有時為 null
+	 * @param  filename         檔名
+	 * @param  file             本地檔案
+	 * @param  fileInfo         更新項目資訊
+	 * @param  previousFileInfo 先前的檔案紀錄，沒有時為 null
+	 * @return 變更集更新，無法套用或變更集無法串接時回傳 null 改為完整下載
+	 */
+	static ChangesetUpdate plan(AutoUpdateAdapter trigger, ChangesetApplier applier, String filename, File file,
+			JsonObject fileInfo, JsonObject previousFileInfo) {
+		if (applier == null || previousFileInfo == null || !file.exists()
+				|| !fileInfo.has("changesets") || !fileInfo.has("rowChecksum")
+				|| !fileInfo.has("rowTables") || !previousFileInfo.has("rowChecksum")) {
+			return null;
+		}
+
+		String target = fileInfo.get("rowChecksum").getAsString();
+		String base   = previousFileInfo.get("rowChecksum").getAsString();
+		JsonArray available = fileInfo.getAsJsonArray("changesets");
+		List<JsonObject> chain = new ArrayList<>();
+		while (!base.equals(target)) {
+			JsonObject next = null;
+			for (JsonElement e : available) {
+				if (e.getAsJsonObject().get("base").getAsString().equals(base)) {
+					next = e.getAsJsonObject();
+					break;
+				}
+			}
+
+			if (next == null || chain.size() >= available.size()) {
+				trigger.onFileWarning(filename, "變更集無法串接，改為完整下載");
+				return null;
+			}
+
+			chain.add(next);
+			base = next.get("target").getAsString();
+		}
+
+		return new ChangesetUpdate(trigger, applier, filename, fileInfo, chain);
+	}
+
+	/**
+	 * 依套用順序列出要下載的變更集檔案
+	 *
+	 * @return 變更集檔案相對於更新資訊的路徑
+	 */
+	List<String> files() {
+		List<String> files = new ArrayList<>();
+		for (JsonObject c : chain) {
+			files.add(c.get("file").getAsString());
+		}
+		return files;
+	}
+
+	/**
+	 * 套用變更集，資料列摘要值涵蓋更新資訊宣告的表格
+	 *
+	 * @param  file       本地檔案
+	 * @param  changesets 依序下載的變更集
+	 * @param  algorithm  摘要演算法
+	 * @return 是否完成套用，失敗時資料庫維持原狀，回傳 false 改為完整下載
+	 */
+	boolean apply(File file, List<JsonObject> changesets, String algorithm) {
+		SortedMap<String, String> tables = new TreeMap<>();
+		for (Entry<String, JsonElement> e : fileInfo.getAsJsonObject("rowTables").entrySet()) {
+			tables.put(e.getKey(), e.getValue().getAsString());
+		}
+
+		try {
+			applier.apply(file, changesets, tables, algorithm, fileInfo.get("rowChecksum").getAsString());
+			return true;
+		} catch(IOException ex) {
+			String reason = String.format(Locale.getDefault(), "套用變更集失敗 (%s)，改為完整下載", ex.getMessage());
+			trigger.onFileWarning(filename, reason);
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 更新檔壓縮格式，由更新資訊 config.codec 指定，沒有指定時使用 gzip
+ *
+ * 壓縮檔放在原始檔名加上副檔名的位置，例如 taiwan-taco.map.xz，
+ * 片段摘要值與 gzLength 都以壓縮後的內容計算。
+ */
+public interface Codec {
+
+	/**
+	 * 壓縮格式名稱，對應 config.codec
+	 */
+	String name();
+
+	/**
+	 * 壓縮檔副檔名，包含開頭的點
+	 */
+	String extension();
+
+	/**
+	 * 包裝解壓縮資料流
+	 *
+	 * @param  in 壓縮資料流
+	 * @return 解壓縮後的資料流
+	 * @throws IOException 壓縮格式錯誤
+	 */
+	InputStream decode(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,130 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 連線看守程式
+ *
+ * 記錄更新工作開啟中的連線與期限，超過期限的連線直接中斷，
+ * 取消工作時中斷所有連線，卡在 read() 的執行緒會立即收到 IOException，
+ * 不必等到讀取逾時或下一個取消點。
+ */
+class ConnectionGuard {
+
+	private final Map<Transport.Response, ScheduledFuture<?>> active = new HashMap<>();
+	private ScheduledThreadPoolExecutor timer;
+	private boolean aborted;
+
+	/**
+	 * 開始看守連線，已經看守中的連線重新計算期限
+	 *
+	 * @param conn     連線
+	 * @param deadline 期限 (毫秒)
+	 */
+	synchronized void watch(final Transport.Response conn, long deadline) throws IOException {
+		if (aborted) {
+			conn.abort();
+			throw new IOException("Transfer canceled.");
+		}
+
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ConnectionGuard");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+
+		ScheduledFuture<?> previous = active.put(conn, timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(conn);
+			}
+		}, deadline, TimeUnit.MILLISECONDS));
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	/**
+	 * 結束看守連線並關閉回應，正常讀完的 HTTP 連線會回到連線池
+	 *
+	 * @param conn 連線
+	 */
+	void release(Transport.Response conn) {
+		synchronized (this) {
+			ScheduledFuture<?> deadline = active.remove(conn);
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+		}
+
+		try {
+			conn.close();
+		} catch(IOException ex) {
+			// 連線已經中斷
+		}
+	}
+
+	/**
+	 * 中斷所有連線，之後開啟的連線也會立即中斷
+	 *
+	 * 中斷連線可能需要等待網路操作，所以在另一個執行緒進行，呼叫端 (通常是 UI 執行緒) 不會被卡住。
+	 */
+	void abortAll() {
+		final List<Transport.Response> conns;
+		synchronized (this) {
+			aborted = true;
+			for (ScheduledFuture<?> deadline : active.values()) {
+				deadline.cancel(false);
+			}
+			conns = new ArrayList<>(active.keySet());
+			active.clear();
+		}
+
+		if (!conns.isEmpty()) {
+			Thread t = new Thread("ConnectionGuard") {
+				public void run() {
+					for (Transport.Response conn : conns) {
+						conn.abort();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * 停止計時執行緒
+	 */
+	synchronized void shutdown() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	// 連線超過期限
+	private void expire(Transport.Response conn) {
+		synchronized (this) {
+			if (active.remove(conn) == null) {
+				return;
+			}
+		}
+		conn.abort();
+	}
+
+}
@@ -0,0 +1,46 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * 以 MessageDigest 介面包裝 CRC32，結果為 4 bytes 大端序
+ */
+class Crc32Digest extends MessageDigest {
+
+	private final CRC32 crc = new CRC32();
+
+	Crc32Digest() {
+		super(Digests.CRC32);
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 4;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		crc.update(input);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		crc.update(input, offset, len);
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long value = crc.getValue();
+		crc.reset();
+		return new byte[] {
+			(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value
+		};
+	}
+
+	@Override
+	protected void engineReset() {
+		crc.reset();
+	}
+
+}
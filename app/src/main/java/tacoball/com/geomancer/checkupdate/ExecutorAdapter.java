@@ -0,0 +1,147 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 把事件轉交給指定的 Executor 執行的更新事件接收器
+ *
+ * 事件接收器可以指定在自己的執行緒 (例如 UI 執行緒) 收到事件，
+ * 更新工作與進度取樣執行緒只負責送出，不等待事件處理完成。
+ */
+class ExecutorAdapter extends AutoUpdateAdapter {
+
+	private final AutoUpdateAdapter listener;
+	private final Executor executor;
+
+	/**
+	 * 配置事件轉交
+	 *
+	 * @param listener 事件接收器
+	 * @param executor 執行事件的 Executor
+	 */
+	ExecutorAdapter(AutoUpdateAdapter listener, Executor executor) {
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	@Override
+	public void onFileExpired(final String filename, final String reason, final long gzLength, final long exLength) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileExpired(filename, reason, gzLength, exLength);
+			}
+		});
+	}
+
+	@Override
+	public void onFileBegin(final String filename) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileBegin(filename);
+			}
+		});
+	}
+
+	@Override
+	public void onProgress(final UpdateProgress progress) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onProgress(progress);
+			}
+		});
+	}
+
+	@Override
+	public void onFileTransferLength(final String filename, final long transfered) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileTransferLength(filename, transfered);
+			}
+		});
+	}
+
+	@Override
+	public void onFileTransfer(final String filename, final int percent) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileTransfer(filename, percent);
+			}
+		});
+	}
+
+	@Override
+	public void onFileExtract(final String filename, final int percent) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileExtract(filename, percent);
+			}
+		});
+	}
+
+	@Override
+	public void onFileComplete(final String filename, final boolean isNew) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileComplete(filename, isNew);
+			}
+		});
+	}
+
+	@Override
+	public void onFileReplaced(final String filename) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileReplaced(filename);
+			}
+		});
+	}
+
+	@Override
+	public void onFileWarning(final String filename, final String reason) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onFileWarning(filename, reason);
+			}
+		});
+	}
+
+	@Override
+	public void onComplete() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onComplete();
+			}
+		});
+	}
+
+	@Override
+	public void onError(final String reason) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onError(reason);
+			}
+		});
+	}
+
+	@Override
+	public void onUserCancel(final String progress) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onUserCancel(progress);
+			}
+		});
+	}
+
+}
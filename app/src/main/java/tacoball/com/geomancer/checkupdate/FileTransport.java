@@ -0,0 +1,172 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 本地目錄傳輸方式，用於從 SD 卡或 USB 隨身碟側載更新檔
+ *
+ * 位置可以是 file:// 網址或絕對路徑，file:// 後面直接視為檔案系統路徑，不做百分比解碼。
+ * 範圍請求以 FileChannel 定位，不必從頭讀取；ETag 由檔案長度與修改時間組成，
+ * 側載目錄沒有異動時一樣能沿用上次的更新資訊與檢查結果。
+ */
+class FileTransport implements Transport {
+
+	@Override
+	public Response open(String location, Request request) throws IOException {
+		return new FileResponse(toFile(location), request);
+	}
+
+	/**
+	 * 把位置轉換為本地檔案
+	 *
+	 * @param location file:// 網址或絕對路徑
+	 */
+	static File toFile(String location) {
+		String path = location;
+		if (path.regionMatches(true, 0, "file:", 0, 5)) {
+			path = path.substring(5);
+			if (path.startsWith("//")) {
+				path = path.substring(2);
+			}
+		}
+		return new File(path);
+	}
+
+	/**
+	 * 本地檔案回應
+	 */
+	private static class FileResponse implements Response {
+
+		private final File file;
+		private final Request request;
+		private final String etag;
+		private FileInputStream fis;
+		private InputStream in;
+		private boolean closed;
+
+		FileResponse(File file, Request request) throws IOException {
+			if (!file.isFile()) {
+				throw new FileNotFoundException(file.getPath());
+			}
+			this.file = file;
+			this.request = request;
+			this.etag = String.format(Locale.US, "\"%x-%x\"", file.length(), file.lastModified());
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (closed) {
+				throw new IOException("Transfer canceled.");
+			}
+			if (in == null) {
+				fis = new FileInputStream(file);
+				fis.getChannel().position(request.getOffset());
+				in = fis;
+				if (request.getLength() >= 0) {
+					in = new LimitedInputStream(fis, request.getLength());
+				}
+			}
+			return in;
+		}
+
+		@Override
+		public boolean isNotModified() {
+			return etag.equals(request.getEtag());
+		}
+
+		@Override
+		public boolean isPartial() {
+			return true;
+		}
+
+		@Override
+		public String getEtag() {
+			return etag;
+		}
+
+		@Override
+		public String getLastModified() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format.format(new Date(file.lastModified()));
+		}
+
+		@Override
+		public void abort() {
+			try {
+				close();
+			} catch(IOException ex) {
+				// 已經關閉
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+			if (fis != null) {
+				fis.close();
+			}
+		}
+
+	}
+
+	/**
+	 * 只讀取指定長度的資料流
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private long remain;
+
+		LimitedInputStream(InputStream in, long length) {
+			super(in);
+			this.remain = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remain <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remain--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remain <= 0) {
+				return -1;
+			}
+			int ioLen = in.read(b, off, (int)Math.min(len, remain));
+			if (ioLen > 0) {
+				remain -= ioLen;
+			}
+			return ioLen;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remain));
+			remain -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remain);
+		}
+
+	}
+
+}
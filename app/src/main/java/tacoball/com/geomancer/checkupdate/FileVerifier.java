@@ -0,0 +1,248 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 本地檔案的驗證，依先前更新紀錄判斷檔案是否需要更新，並計算寫入更新紀錄的摘要值
+ *
+ * 更新紀錄中每個檔案存放最後一個片段的摘要值 (checksum)，深度檢查時另外存放每個片段的摘要值
+ * (localChecksums) 與 Merkle 樹根節點 (merkleRoot)，驗證時依更新紀錄當時的設定值計算。
+ */
+class FileVerifier {
+
+	private final AutoUpdateAdapter trigger;
+	private final JsonObject previousUpdateLog;
+	private final String     digest;
+	private final int        partLength;
+	private final boolean    deepVerify;
+
+	/**
+	 * 配置檔案驗證
+	 *
+	 * @param trigger           事件接收器
+	 * @param previousUpdateLog 先前更新紀錄
+	 * @param digest            本次更新的摘要演算法
+	 * @param partLength        本次更新的片段大小
+	 * @param deepVerify        是否檢查每個片段
+	 */
+	FileVerifier(AutoUpdateAdapter trigger, JsonObject previousUpdateLog, String digest, int partLength, boolean deepVerify) {
+		this.trigger = trigger;
+		this.previousUpdateLog = previousUpdateLog;
+		this.digest = digest;
+		this.partLength = partLength;
+		this.deepVerify = deepVerify;
+	}
+
+	/**
+	 * 比對一個檔案的片段摘要值
+	 *
+	 * 深度檢查使用更新紀錄中的 localChecksums 建立 Merkle 樹，先比對根節點 (merkleRoot)，
+	 * 不一致時才找出損毀的片段；否則只比對最後一個片段的 checksum。
+	 * 檔案不存在或無法讀取時，視為所有片段都損毀。
+	 *
+	 * @param  file      本地檔案
+	 * @param  logInfo   檔案的更新紀錄
+	 * @param  algorithm 摘要演算法
+	 * @param  length    片段大小
+	 * @param  deep      是否檢查每個片段
+	 * @return 損毀的片段編號
+	 */
+	static List<Integer> verify(File file, JsonObject logInfo, String algorithm, int length, boolean deep) {
+		List<Integer> corrupted = new ArrayList<>();
+		JsonArray expected = null;
+		if (deep && logInfo.has("localChecksums")) {
+			expected = logInfo.getAsJsonArray("localChecksums");
+		}
+
+		try {
+			if (!file.exists()) {
+				throw new IOException("檔案不存在");
+			}
+
+			if (expected != null) {
+				String[] leaves = new String[expected.size()];
+				for (int i=0;i<leaves.length;i++) {
+					leaves[i] = expected.get(i).getAsString();
+				}
+
+				// 根節點一致表示整個檔案正確，不一致時只往不同的子樹找
+				int threads = Runtime.getRuntime().availableProcessors();
+				MerkleTree actualTree = new MerkleTree(BlockHasher.hash(file, length, algorithm, threads), algorithm);
+				String expectedRoot = logInfo.has("merkleRoot")
+					? logInfo.get("merkleRoot").getAsString()
+					: new MerkleTree(leaves, algorithm).root();
+				if (!actualTree.root().equals(expectedRoot)) {
+					corrupted.addAll(new MerkleTree(leaves, algorithm).diff(actualTree));
+				}
+			} else {
+				int partNumber = (int)((file.length() - 1) / length);
+				byte[] buffer = BufferPool.acquire();
+				try {
+					byte[] actual = BlockHasher.hashBlock(file, partNumber, length, algorithm, buffer);
+					if (!Digests.matches(actual, logInfo.get("checksum").getAsString())) {
+						corrupted.add(partNumber);
+					}
+				} finally {
+					BufferPool.release(buffer);
+				}
+			}
+		} catch(IOException|NoSuchAlgorithmException|InterruptedException ex) {
+			int partCount = (expected != null) ? expected.size() : 1;
+			for (int i=0;i<partCount;i++) {
+				corrupted.add(i);
+			}
+		}
+
+		return corrupted;
+	}
+
+	/**
+	 * 不讀取檔案內容，只依檔案是否存在與更新紀錄判斷檔案是否過時
+	 *
+	 * @param  filename 檔名
+	 * @param  file     本地檔案
+	 * @param  fileInfo 更新項目資訊
+	 * @return 需要更新的原因，還不能確定時回傳 null
+	 */
+	String staleReason(String filename, File file, JsonObject fileInfo) {
+		// 檔案不存在檢查
+		if (!file.exists()) {
+			return "檔案不存在";
+		}
+
+		// 沒有更新資訊
+		if (!previousUpdateLog.getAsJsonObject("files").has(filename)) {
+			return "更新紀錄檔不存在";
+		}
+
+		// 檔案比伺服器舊
+		JsonObject previousFileInfo = previousUpdateLog.getAsJsonObject("files").getAsJsonObject(filename);
+		if (previousFileInfo.get("mtime").getAsLong() < fileInfo.get("mtime").getAsLong()) {
+			return "檔案已過時";
+		}
+
+		// 比對兩端摘要值，套用過變更集的檔案改比對資料列摘要值
+		String localChecksum = previousFileInfo.get("checksum").getAsString();
+		String remoteChecksum = fileInfo.get("checksum").getAsString();
+		if (previousFileInfo.has("rowChecksum") && fileInfo.has("rowChecksum")) {
+			localChecksum  = previousFileInfo.get("rowChecksum").getAsString();
+			remoteChecksum = fileInfo.get("rowChecksum").getAsString();
+		}
+		if (!localChecksum.equals(remoteChecksum)) {
+			return "檔案摘要值已變更";
+		}
+
+		return null;
+	}
+
+	/**
+	 * 檢查檔案是否需要更新(失效)
+	 *
+	 * 符合任一條件就需要更新：
+	 * - 檔案不存在
+	 * - 檔案沒有更新資訊
+	 * - 檔案比伺服器的還舊
+	 * - 遠端摘要值與本地端不同
+	 * - 檔案最後一個片段的摘要值錯誤，深度檢查時任一片段錯誤
+	 *
+	 * @param  filename 檔名
+	 * @param  file     本地檔案
+	 * @param  fileInfo 更新項目資訊
+	 * @return 需要更新的原因，不需要更新時回傳 null
+	 */
+	String expiredReason(String filename, File file, JsonObject fileInfo) {
+		// 檔案存在、更新紀錄、mtime 與摘要值檢查
+		String reason = staleReason(filename, file, fileInfo);
+		if (reason != null) {
+			return reason;
+		}
+
+		// 計算最後一個片段的摘要值，深度檢查時計算每個片段
+		JsonObject previousFileInfo = previousUpdateLog.getAsJsonObject("files").getAsJsonObject(filename);
+		JsonObject previousConfig = previousUpdateLog.getAsJsonObject("config");
+		List<Integer> corrupted = verify(file, previousFileInfo,
+			previousConfig.get("digest").getAsString(), previousConfig.get("partLength").getAsInt(), deepVerify);
+		if (!corrupted.isEmpty()) {
+			return String.format(Locale.getDefault(), "檔案驗證失敗，可能有毀損 (%d 個片段)", corrupted.size());
+		}
+
+		return null;
+	}
+
+	/**
+	 * 計算本地檔案每個片段的摘要值，寫入更新紀錄供深度檢查使用
+	 *
+	 * @param logInfo  檔案的更新紀錄
+	 * @param filename 檔名
+	 * @param file     本地檔案
+	 * @param leaves   已經以 Merkle 樹確認過整個檔案時的本地片段摘要值，沒有時為 null
+	 */
+	void recordLocalChecksums(JsonObject logInfo, String filename, File file, String[] leaves) throws InterruptedException {
+		try {
+			// 已經以 Merkle 樹確認過整個檔案時，不必重新計算
+			if (leaves == null) {
+				int threads = Runtime.getRuntime().availableProcessors();
+				leaves = BlockHasher.hash(file, partLength, digest, threads);
+			}
+
+			JsonArray checksums = new JsonArray();
+			for (String checksum : leaves) {
+				checksums.add(checksum);
+			}
+			logInfo.add("localChecksums", checksums);
+			logInfo.addProperty("merkleRoot", new MerkleTree(leaves, digest).root());
+		} catch(IOException ex) {
+			trigger.onFileWarning(filename, "無法計算本地檔案片段摘要，之後只能檢查最後一個片段");
+		} catch(NoSuchAlgorithmException ex) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "無法使用 %s 演算法", digest));
+		}
+	}
+
+	/**
+	 * 比對本地檔案最後一個片段的摘要值
+	 *
+	 * @param  file     本地檔案
+	 * @param  expected 預期的摘要值
+	 * @param  buffer   讀取用緩衝區
+	 * @return 是否驗證成功
+	 */
+	boolean checkLastPart(File file, String expected, byte[] buffer) throws InterruptedException {
+		return Digests.matches(partHash(file, lastPart(file), buffer), expected);
+	}
+
+	/**
+	 * 計算本地檔案最後一個片段的摘要值
+	 *
+	 * @param  file   本地檔案
+	 * @param  buffer 讀取用緩衝區
+	 * @return 摘要值 (十六進位字串)
+	 */
+	String lastPartChecksum(File file, byte[] buffer) throws InterruptedException {
+		return AutoUpdateManager.toHex(partHash(file, lastPart(file), buffer));
+	}
+
+	// 最後一個片段的編號
+	private int lastPart(File file) {
+		return (int)((file.length() - 1) / partLength);
+	}
+
+	// 計算本地檔案分段摘要 (原始位元組)
+	private byte[] partHash(File file, int partNumber, byte[] buffer) throws InterruptedException {
+		try {
+			return BlockHasher.hashBlock(file, partNumber, partLength, digest, buffer);
+		} catch(IOException ex) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "計算 %s 摘要失敗 (%s)", digest, ex.getMessage()));
+		} catch(NoSuchAlgorithmException ex) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "無法使用 %s 演算法", digest));
+		}
+	}
+
+}
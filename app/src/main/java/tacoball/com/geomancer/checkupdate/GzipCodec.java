@@ -0,0 +1,27 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * gzip 壓縮格式，舊版更新資訊沒有 config.codec 時使用
+ */
+class GzipCodec implements Codec {
+
+	@Override
+	public String name() {
+		return "gzip";
+	}
+
+	@Override
+	public String extension() {
+		return ".gz";
+	}
+
+	@Override
+	public InputStream decode(InputStream in) throws IOException {
+		return new GZIPInputStream(in, BufferPool.BUFFER_SIZE);
+	}
+
+}
@@ -0,0 +1,126 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP 與 HTTPS 傳輸方式
+ *
+ * 正常結束的回應只關閉資料流而不 disconnect()，HttpURLConnection 會把連線留在 keep-alive 連線池，
+ * 同一個鏡像站的下一個片段請求直接沿用，不必重新建立 TCP 與 TLS 連線；
+ * 只有中斷或逾時的回應才 disconnect()。
+ */
+class HttpTransport implements Transport {
+
+	@Override
+	public Response open(String location, Request request) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)new URL(location).openConnection();
+		conn.setConnectTimeout(request.getConnectTimeout());
+		conn.setReadTimeout(request.getReadTimeout());
+
+		// 防止重複壓縮，這在 Android 環境是必要的，只有 JSON 接受 gzip
+		conn.setRequestProperty("Accept-Encoding", request.isCompressed() ? "gzip" : "identity");
+
+		if (request.getOffset() > 0 || request.getLength() >= 0) {
+			String range;
+			if (request.getLength() >= 0) {
+				range = String.format(Locale.getDefault(), "bytes=%d-%d", request.getOffset(), request.getOffset() + request.getLength() - 1);
+			} else {
+				range = String.format(Locale.getDefault(), "bytes=%d-", request.getOffset());
+			}
+			conn.setRequestProperty("Range", range);
+		}
+
+		if (request.getEtag() != null) {
+			conn.setRequestProperty("If-None-Match", request.getEtag());
+		}
+		if (request.getLastModified() != null) {
+			conn.setRequestProperty("If-Modified-Since", request.getLastModified());
+		}
+
+		return new HttpResponse(conn, request);
+	}
+
+	/**
+	 * HTTP 回應，第一次取得內容或狀態時才連線
+	 */
+	private static class HttpResponse implements Response {
+
+		private final HttpURLConnection conn;
+		private final Request request;
+		private InputStream in;
+		private volatile boolean responded;
+
+		HttpResponse(HttpURLConnection conn, Request request) {
+			this.conn = conn;
+			this.request = request;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				responded = true;
+				in = conn.getInputStream();
+				if (request.isCompressed() && "gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+					in = new GZIPInputStream(in, BufferPool.BUFFER_SIZE);
+				}
+			}
+			return in;
+		}
+
+		@Override
+		public boolean isNotModified() throws IOException {
+			responded = true;
+			return conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+		}
+
+		@Override
+		public boolean isPartial() throws IOException {
+			responded = true;
+			if (request.getOffset() == 0 && conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+				// 從頭開始的範圍請求，回應整個檔案也能用，由呼叫端在要求的長度停止讀取
+				return true;
+			}
+			return conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+		}
+
+		@Override
+		public String getEtag() {
+			return conn.getHeaderField("ETag");
+		}
+
+		@Override
+		public String getLastModified() {
+			return conn.getHeaderField("Last-Modified");
+		}
+
+		@Override
+		public void abort() {
+			conn.disconnect();
+		}
+
+		@Override
+		public void close() throws IOException {
+			InputStream stream;
+			synchronized (this) {
+				stream = in;
+			}
+			if (stream != null) {
+				stream.close();
+			} else if (responded) {
+				// 只看了狀態 (例如 304)，關閉空的內容讓連線回到連線池
+				try {
+					conn.getInputStream().close();
+				} catch(IOException ex) {
+					conn.disconnect();
+				}
+			}
+		}
+
+	}
+
+}
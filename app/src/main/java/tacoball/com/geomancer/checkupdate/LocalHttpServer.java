@@ -0,0 +1,319 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 最小化的 HTTP/1.1 檔案伺服器，提供與鏡像站相同的下載介面
+ *
+ * 只支援 GET 與 HEAD、單一範圍的 Range 請求、ETag 與 If-None-Match，連線可以重複使用。
+ * 路徑只能指向根目錄下的檔案，不接受 ".." 與隱藏檔。
+ * 子類別可以覆寫 resolve() 改變檔案來源，覆寫 onRequest() 與 body() 模擬網路狀況。
+ * 區域網路分享 (PeerServer) 與測試用的模擬鏡像站 (NetworkSimulator) 都以此為基礎。
+ */
+class LocalHttpServer {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// 閒置連線保留時間
+	private static final int KEEP_ALIVE_TIMEOUT = 15000;
+
+	// 請求標頭的長度上限
+	private static final int MAX_HEADER_LENGTH = 8192;
+
+	private final File root;
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
+	private volatile boolean running;
+
+	/**
+	 * 配置伺服器，需要呼叫 start() 才開始接受連線
+	 *
+	 * @param root    檔案根目錄
+	 * @param address 綁定位址，null 表示所有網路介面
+	 * @param port    連接埠，0 表示自動選擇
+	 */
+	LocalHttpServer(File root, InetAddress address, int port) throws IOException {
+		this.root = root;
+		this.serverSocket = new ServerSocket(port, 50, address);
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LocalHttpServer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * 取得實際使用的連接埠
+	 */
+	int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * 開始接受連線
+	 */
+	void start() {
+		running = true;
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						final Socket socket = serverSocket.accept();
+						workers.execute(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						});
+					} catch(IOException ex) {
+						// 伺服器關閉
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 停止伺服器，進行中的傳輸一併中斷
+	 */
+	void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch(IOException ex) {
+			// 已經關閉
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * 依請求路徑找出檔案
+	 *
+	 * @param  path 請求路徑，不含開頭的 "/" 與查詢字串
+	 * @return 檔案，不存在或不允許存取時回傳 null
+	 */
+	protected File resolve(String path) {
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty() || segment.startsWith(".")) {
+				return null;
+			}
+		}
+
+		File f = new File(root, path);
+		return f.isFile() ? f : null;
+	}
+
+	/**
+	 * 送出回應之前呼叫，子類別可以延遲回應或丟出 IOException 直接中斷連線
+	 *
+	 * @param path  請求路徑
+	 * @param range Range 標頭，沒有時為 null
+	 */
+	protected void onRequest(String path, String range) throws IOException {
+	}
+
+	/**
+	 * 包裝回應內容的資料流，子類別可以限制頻寬、截斷或竄改內容
+	 *
+	 * @param  path   請求路徑
+	 * @param  offset 內容在檔案中的起點
+	 * @param  length 內容長度
+	 * @param  out    連線的資料流
+	 * @return 寫入回應內容用的資料流
+	 */
+	protected OutputStream body(String path, long offset, long length, OutputStream out) throws IOException {
+		return out;
+	}
+
+	// 處理一條連線上的所有請求
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+			boolean keepAlive = true;
+			while (keepAlive && running) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.isEmpty()) {
+					break;
+				}
+
+				Map<String, String> headers = new HashMap<>();
+				String line;
+				while ((line = readLine(in)) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+					}
+				}
+
+				keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+				respond(requestLine, headers, out, keepAlive);
+				out.flush();
+			}
+		} catch(IOException ex) {
+			// 連線中斷或模擬的斷線
+		} finally {
+			try {
+				socket.close();
+			} catch(IOException ex) {
+				// 已經關閉
+			}
+		}
+	}
+
+	// 回應一個請求
+	private void respond(String requestLine, Map<String, String> headers, OutputStream out, boolean keepAlive) throws IOException {
+		String[] tokens = requestLine.split(" ");
+		if (tokens.length < 2 || !(tokens[0].equals("GET") || tokens[0].equals("HEAD"))) {
+			writeStatus(out, "405 Method Not Allowed", keepAlive);
+			return;
+		}
+
+		String path = tokens[1];
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			path = path.substring(0, query);
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+
+		File file = resolve(path);
+		if (file == null) {
+			writeStatus(out, "404 Not Found", keepAlive);
+			return;
+		}
+
+		String range = headers.get("range");
+		onRequest(path, range);
+
+		long fileLength = file.length();
+		String etag = String.format(Locale.US, "\"%x-%x\"", fileLength, file.lastModified());
+		if (etag.equals(headers.get("if-none-match"))) {
+			writeHead(out, "304 Not Modified", etag, 0, null, keepAlive);
+			return;
+		}
+
+		// 解析 Range，只支援單一範圍
+		long first = 0;
+		long last  = fileLength - 1;
+		String status = "200 OK";
+		String contentRange = null;
+		if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+			try {
+				if (dash == 0) {
+					first = Math.max(0, fileLength - Long.parseLong(spec.substring(1)));
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if (dash < spec.length() - 1) {
+						last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+					}
+				}
+			} catch(NumberFormatException|StringIndexOutOfBoundsException ex) {
+				first = fileLength;
+			}
+
+			if (first > last) {
+				writeStatus(out, "416 Range Not Satisfiable", keepAlive);
+				return;
+			}
+			status = "206 Partial Content";
+			contentRange = String.format(Locale.US, "bytes %d-%d/%d", first, last, fileLength);
+		}
+
+		long length = last - first + 1;
+		writeHead(out, status, etag, length, contentRange, keepAlive);
+		if (tokens[0].equals("HEAD")) {
+			return;
+		}
+
+		// 傳送內容
+		OutputStream content = body(path, first, length, out);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		byte[] buffer = BufferPool.acquire();
+		try {
+			raf.seek(first);
+			long remain = length;
+			while (remain > 0) {
+				int ioLen = raf.read(buffer, 0, (int)Math.min(buffer.length, remain));
+				if (ioLen == -1) {
+					throw new SocketException("File truncated.");
+				}
+				content.write(buffer, 0, ioLen);
+				remain -= ioLen;
+			}
+			content.flush();
+		} finally {
+			BufferPool.release(buffer);
+			raf.close();
+		}
+	}
+
+	// 送出沒有內容的回應
+	private void writeStatus(OutputStream out, String status, boolean keepAlive) throws IOException {
+		writeHead(out, status, null, 0, null, keepAlive);
+	}
+
+	// 送出回應標頭
+	private void writeHead(OutputStream out, String status, String etag, long length, String contentRange, boolean keepAlive) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Length: ").append(length).append("\r\n");
+		sb.append("Accept-Ranges: bytes\r\n");
+		if (etag != null) {
+			sb.append("ETag: ").append(etag).append("\r\n");
+		}
+		if (contentRange != null) {
+			sb.append("Content-Range: ").append(contentRange).append("\r\n");
+		}
+		sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes(ASCII));
+	}
+
+	// 讀取一行標頭，連線結束時回傳 null
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) == '\r') {
+					sb.setLength(len - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() >= MAX_HEADER_LENGTH) {
+				throw new IOException("Header too long.");
+			}
+			sb.append((char)c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+}
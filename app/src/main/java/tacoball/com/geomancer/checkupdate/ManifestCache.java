@@ -0,0 +1,186 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * 更新資訊快取，保存最後一次取得的更新資訊與 HTTP 快取標頭，以及最後一次檢查更新的結果
+ *
+ * 紀錄格式：
+ * {
+ *   "url": "更新資訊網址",
+ *   "etag": "ETag 標頭",
+ *   "lastModified": "Last-Modified 標頭",
+ *   "manifest": { 更新資訊內容 },
+ *   "check": {
+ *     "fingerprint": "本地檔案長度與修改時間",
+ *     "totalLength": 需要更新的檔案大小,
+ *     "lastModified": "最新的檔案時間"
+ *   }
+ * }
+ */
+class ManifestCache {
+
+	// 檢查更新與檔案更新可能同時存取同一個快取檔
+	private static final Object LOCK = new Object();
+
+	private File location;
+	private Gson gson;
+	private JsonObject record;
+
+	/**
+	 * 載入更新資訊快取，快取不存在或損毀時從空紀錄開始
+	 *
+	 * @param location 快取檔位置
+	 * @param gson     JSON 轉換器
+	 */
+	ManifestCache(File location, Gson gson) {
+		this.location = location;
+		this.gson = gson;
+
+		synchronized (LOCK) {
+			try {
+				if (location.exists()) {
+					Reader in = new InputStreamReader(new FileInputStream(location), "UTF-8");
+					try {
+						record = gson.fromJson(new JsonReader(in), JsonObject.class);
+					} finally {
+						in.close();
+					}
+				}
+			} catch(Exception ex) {
+				record = null;
+			}
+		}
+
+		if (record == null) {
+			record = new JsonObject();
+		}
+	}
+
+	/**
+	 * 取得快取的 ETag
+	 *
+	 * @param  url 更新資訊網址
+	 * @return ETag，沒有快取或網址不同時回傳 null
+	 */
+	String etag(String url) {
+		return header(url, "etag");
+	}
+
+	/**
+	 * 取得快取的 Last-Modified
+	 *
+	 * @param  url 更新資訊網址
+	 * @return Last-Modified，沒有快取或網址不同時回傳 null
+	 */
+	String lastModified(String url) {
+		return header(url, "lastModified");
+	}
+
+	/**
+	 * 取得快取的更新資訊
+	 *
+	 * @param  url 更新資訊網址
+	 * @return 更新資訊，沒有快取或網址不同時回傳 null
+	 */
+	JsonObject manifest(String url) {
+		if (!matches(url) || !record.has("manifest")) {
+			return null;
+		}
+		return record.getAsJsonObject("manifest");
+	}
+
+	/**
+	 * 保存新取得的更新資訊，同時清除舊的檢查結果
+	 *
+	 * @param url          更新資訊網址
+	 * @param etag         ETag 標頭，沒有時為 null
+	 * @param lastModified Last-Modified 標頭，沒有時為 null
+	 * @param manifest     更新資訊
+	 */
+	void store(String url, String etag, String lastModified, JsonObject manifest) throws IOException {
+		JsonObject r = new JsonObject();
+		r.addProperty("url", url);
+		if (etag != null) {
+			r.addProperty("etag", etag);
+		}
+		if (lastModified != null) {
+			r.addProperty("lastModified", lastModified);
+		}
+		r.add("manifest", manifest);
+		record = r;
+		save();
+	}
+
+	/**
+	 * 取得先前的檢查結果，本地檔案有異動時視為沒有結果
+	 *
+	 * @param  fingerprint 本地檔案長度與修改時間
+	 * @return 檢查結果，沒有時回傳 null
+	 */
+	JsonObject checkResult(String fingerprint) {
+		if (!record.has("check")) {
+			return null;
+		}
+
+		JsonObject check = record.getAsJsonObject("check");
+		if (!check.get("fingerprint").getAsString().equals(fingerprint)) {
+			return null;
+		}
+		return check;
+	}
+
+	/**
+	 * 保存檢查結果
+	 *
+	 * @param fingerprint  本地檔案長度與修改時間
+	 * @param totalLength  需要更新的檔案大小
+	 * @param lastModified 最新的檔案時間
+	 */
+	void storeCheckResult(String fingerprint, long totalLength, String lastModified) throws IOException {
+		JsonObject check = new JsonObject();
+		check.addProperty("fingerprint", fingerprint);
+		check.addProperty("totalLength", totalLength);
+		check.addProperty("lastModified", lastModified);
+		record.add("check", check);
+		save();
+	}
+
+	// 快取是否屬於這個網址
+	private boolean matches(String url) {
+		return record.has("url") && record.get("url").getAsString().equals(url);
+	}
+
+	// 取得快取標頭
+	private String header(String url, String name) {
+		if (!matches(url) || !record.has(name)) {
+			return null;
+		}
+		return record.get(name).getAsString();
+	}
+
+	// 寫入快取檔，直接寫入檔案，不先轉換成字串
+	private void save() throws IOException {
+		synchronized (LOCK) {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(location), "UTF-8"));
+			try {
+				gson.toJson(record, out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+}
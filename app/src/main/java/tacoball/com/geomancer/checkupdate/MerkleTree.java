@@ -0,0 +1,111 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 片段摘要值的 Merkle 樹，用一次根節點比對確認整個檔案，不一致時只往不同的子樹找出損毀的片段
+ *
+ * 建樹方式 (發布端必須一致)：
+ * 葉節點是各片段的摘要值，上層節點是左右子節點摘要值 (原始位元組) 串接後的摘要值，
+ * 該層節點數為奇數時，最後一個節點直接升到上一層。
+ */
+class MerkleTree {
+
+	// 第 0 層是葉節點，最後一層是根節點
+	private List<String[]> levels;
+
+	/**
+	 * 以葉節點建立 Merkle 樹
+	 *
+	 * @param leaves    各片段摘要值 (十六進位字串)
+	 * @param algorithm 摘要演算法
+	 */
+	MerkleTree(String[] leaves, String algorithm) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		levels = new ArrayList<>();
+		levels.add(leaves);
+
+		String[] level = leaves;
+		while (level.length > 1) {
+			String[] parent = new String[(level.length + 1) / 2];
+			for (int i=0;i<parent.length;i++) {
+				if (2*i+1 < level.length) {
+					md.update(AutoUpdateManager.fromHex(level[2*i]));
+					md.update(AutoUpdateManager.fromHex(level[2*i+1]));
+					parent[i] = AutoUpdateManager.toHex(md.digest());
+				} else {
+					parent[i] = level[2*i];
+				}
+			}
+			levels.add(parent);
+			level = parent;
+		}
+
+		// 沒有片段時以空內容的摘要值做為根節點
+		if (leaves.length == 0) {
+			levels.add(new String[] { AutoUpdateManager.toHex(md.digest()) });
+		}
+	}
+
+	/**
+	 * 取得根節點摘要值
+	 */
+	String root() {
+		return levels.get(levels.size() - 1)[0];
+	}
+
+	/**
+	 * 取得葉節點數
+	 */
+	int size() {
+		return levels.get(0).length;
+	}
+
+	/**
+	 * 找出與另一棵樹不同的葉節點
+	 *
+	 * 兩棵樹葉節點數相同時從根節點往下只走摘要值不同的子樹，
+	 * 葉節點數不同時樹的形狀不一致，改為逐一比對，多出來的葉節點都算不同。
+	 *
+	 * @param  other 另一棵樹
+	 * @return 不同的葉節點編號，由小到大排列
+	 */
+	List<Integer> diff(MerkleTree other) {
+		List<Integer> result = new ArrayList<>();
+
+		if (size() != other.size()) {
+			String[] mine   = levels.get(0);
+			String[] theirs = other.levels.get(0);
+			for (int i=0;i<Math.max(mine.length, theirs.length);i++) {
+				if (i >= mine.length || i >= theirs.length || !mine[i].equals(theirs[i])) {
+					result.add(i);
+				}
+			}
+			return result;
+		}
+
+		descend(other, levels.size() - 1, 0, result);
+		return result;
+	}
+
+	// 比對同一位置的節點，不同時繼續比對子節點
+	private void descend(MerkleTree other, int depth, int index, List<Integer> result) {
+		if (levels.get(depth)[index].equals(other.levels.get(depth)[index])) {
+			return;
+		}
+
+		if (depth == 0) {
+			result.add(index);
+			return;
+		}
+
+		int childCount = levels.get(depth - 1).length;
+		for (int child=2*index;child<=2*index+1 && child<childCount;child++) {
+			descend(other, depth - 1, child, result);
+		}
+	}
+
+}
@@ -0,0 +1,292 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 鏡像站管理程式
+ *
+ * 先以一小段 Range 請求量測每個鏡像站的延遲與傳輸速率，
+ * 下載片段時把片段分散到速度相近的幾個鏡像站 (條帶化)，
+ * 同一個片段重試時改用下一個鏡像站，連續失敗的鏡像站暫停使用。
+ */
+class MirrorManager {
+
+	// 連續失敗幾次後暫停使用
+	private static final int FAIL_LIMIT = 3;
+
+	// 預估時間在最快鏡像站幾倍以內的都一起分擔片段
+	private static final int STRIPE_FACTOR = 2;
+
+	// 延遲高的鏡像站依延遲放寬讀取逾時
+	private static final int TIMEOUT_FACTOR = 10;
+
+	// 新量測值的權重 (指數移動平均)
+	private static final double EWMA_WEIGHT = 0.3;
+
+	/**
+	 * 一個鏡像站的量測狀態
+	 */
+	static class Mirror {
+
+		private final String baseUrl;
+		private final Transport transport;
+		private double latency   = 0;  // 回應延遲 (毫秒)
+		private double bandwidth = -1; // 傳輸速率 (bytes/ms)，-1 表示尚未量測
+		private int    failures  = 0;  // 連續失敗次數
+
+		Mirror(String baseUrl, Transport transport) {
+			this.baseUrl = baseUrl;
+			this.transport = transport;
+		}
+
+		/**
+		 * 開啟鏡像站上的指定檔案
+		 *
+		 * @param  path    相對於更新資訊的檔案路徑
+		 * @param  request 請求條件
+		 * @return 回應
+		 */
+		Transport.Response open(String path, Transport.Request request) throws IOException {
+			return transport.open(baseUrl + path, request);
+		}
+
+		// 預估傳輸一段資料所需時間 (毫秒)，尚未量測時視為與其他鏡像站相同
+		private double expectedTime(long length) {
+			if (bandwidth <= 0) {
+				return 0;
+			}
+			return latency + length / bandwidth;
+		}
+
+		private boolean isHealthy() {
+			return failures < FAIL_LIMIT;
+		}
+
+		@Override
+		public String toString() {
+			return baseUrl;
+		}
+
+	}
+
+	private List<Mirror> mirrors = new ArrayList<>();
+	private long unitLength;
+	private int  connectTimeout;
+	private int  minTimeout;
+
+	/**
+	 * 配置鏡像站清單
+	 *
+	 * @param primary        載入更新資訊的網址，一定會列入
+	 * @param transport      primary 的傳輸方式
+	 * @param unitLength     一次請求的典型資料量 (片段大小)，用來預估傳輸時間
+	 * @param connectTimeout 連線逾時 (毫秒)
+	 * @param minTimeout     讀取逾時的最小值 (毫秒)
+	 */
+	MirrorManager(String primary, Transport transport, long unitLength, int connectTimeout, int minTimeout) {
+		this.unitLength = unitLength;
+		this.connectTimeout = connectTimeout;
+		this.minTimeout = minTimeout;
+		add(primary, transport);
+	}
+
+	/**
+	 * 加入鏡像站，重複的網址會被忽略
+	 *
+	 * @param url       與更新資訊同一層的網址
+	 * @param transport 傳輸方式
+	 */
+	synchronized void add(String url, Transport transport) {
+		if (!url.endsWith("/")) {
+			url = url + "/";
+		}
+		for (Mirror m : mirrors) {
+			if (m.baseUrl.equals(url)) {
+				return;
+			}
+		}
+		mirrors.add(new Mirror(url, transport));
+	}
+
+	/**
+	 * 鏡像站數量
+	 */
+	synchronized int size() {
+		return mirrors.size();
+	}
+
+	/**
+	 * 同時向每個鏡像站下載檔案開頭的一小段，量測延遲與傳輸速率
+	 *
+	 * 只有一個鏡像站時不必量測。無法回應的鏡像站直接暫停使用。
+	 *
+	 * @param path   量測用的檔案路徑
+	 * @param length 量測資料量
+	 */
+	void probe(final String path, final int length) throws InterruptedException {
+		List<Mirror> targets;
+		synchronized (this) {
+			if (mirrors.size() < 2) {
+				return;
+			}
+			targets = new ArrayList<>(mirrors);
+		}
+
+		List<Thread> probes = new ArrayList<>();
+		for (final Mirror m : targets) {
+			Thread t = new Thread() {
+				public void run() {
+					byte[] buffer = BufferPool.acquire();
+					Transport.Response response = null;
+					try {
+						long begin = System.nanoTime();
+						response = m.open(path, new Transport.Request().range(0, length).timeouts(connectTimeout, minTimeout));
+						InputStream in = response.getInputStream();
+						long firstByte = System.nanoTime();
+
+						int total = 0;
+						int ioLen;
+						while (total < length && (ioLen = in.read(buffer, 0, Math.min(buffer.length, length - total))) != -1) {
+							total += ioLen;
+						}
+
+						report(m, firstByte - begin, System.nanoTime() - firstByte, total);
+					} catch(IOException ex) {
+						synchronized (MirrorManager.this) {
+							m.failures = FAIL_LIMIT;
+						}
+					} finally {
+						if (response != null) {
+							try {
+								response.close();
+							} catch(IOException ex) {
+								// 連線已經中斷
+							}
+						}
+						BufferPool.release(buffer);
+					}
+				}
+			};
+			t.start();
+			probes.add(t);
+		}
+
+		for (Thread t : probes) {
+			t.join();
+		}
+	}
+
+	/**
+	 * 選擇下載一段資料的鏡像站
+	 *
+	 * 依預估時間排序可用的鏡像站，預估時間在最快鏡像站 STRIPE_FACTOR 倍以內的輪流分擔，
+	 * 重試時依序改用下一個鏡像站。沒有可用的鏡像站時，全部重新開放使用。
+	 *
+	 * @param  index   片段或區塊編號
+	 * @param  attempt 第幾次嘗試 (從 0 開始)
+	 * @return 鏡像站
+	 */
+	synchronized Mirror select(int index, int attempt) {
+		List<Mirror> ranked = ranked();
+		double best = ranked.get(0).expectedTime(unitLength);
+
+		int stripe = 1;
+		while (stripe < ranked.size() && ranked.get(stripe).expectedTime(unitLength) <= best * STRIPE_FACTOR) {
+			stripe++;
+		}
+
+		return ranked.get((index % stripe + attempt) % ranked.size());
+	}
+
+	/**
+	 * 取得目前最快的鏡像站，用於單一連線下載
+	 */
+	synchronized Mirror best() {
+		return ranked().get(0);
+	}
+
+	/**
+	 * 取得鏡像站的逾時設定
+	 *
+	 * @param  m 鏡像站
+	 * @return 讀取逾時 (毫秒)
+	 */
+	synchronized int timeout(Mirror m) {
+		return (int)Math.max(minTimeout, m.latency * TIMEOUT_FACTOR);
+	}
+
+	/**
+	 * 取得鏡像站的頻寬延遲乘積，也就是一次往返延遲期間可以傳輸的資料量
+	 *
+	 * @param  m 鏡像站
+	 * @return 頻寬延遲乘積 (bytes)，尚未量測時回傳 -1
+	 */
+	synchronized long bandwidthDelayProduct(Mirror m) {
+		if (m.bandwidth < 0) {
+			return -1;
+		}
+		return (long)(m.latency * m.bandwidth);
+	}
+
+	/**
+	 * 回報一次成功的傳輸，更新延遲與傳輸速率
+	 *
+	 * @param m       鏡像站
+	 * @param latency 送出請求到收到回應的時間 (奈秒)
+	 * @param elapsed 傳輸內容的時間 (奈秒)
+	 * @param length  傳輸量
+	 */
+	synchronized void report(Mirror m, long latency, long elapsed, long length) {
+		double latencyMs = latency / 1e6;
+		double bandwidth = length / Math.max(elapsed / 1e6, 1);
+
+		if (m.bandwidth < 0) {
+			m.latency   = latencyMs;
+			m.bandwidth = bandwidth;
+		} else {
+			m.latency   = m.latency * (1 - EWMA_WEIGHT) + latencyMs * EWMA_WEIGHT;
+			m.bandwidth = m.bandwidth * (1 - EWMA_WEIGHT) + bandwidth * EWMA_WEIGHT;
+		}
+		m.failures = 0;
+	}
+
+	/**
+	 * 回報一次失敗的傳輸 (連線錯誤或逾時)
+	 *
+	 * @param m 鏡像站
+	 */
+	synchronized void fail(Mirror m) {
+		m.failures++;
+	}
+
+	// 依預估時間排序可用的鏡像站
+	private List<Mirror> ranked() {
+		List<Mirror> ranked = new ArrayList<>();
+		for (Mirror m : mirrors) {
+			if (m.isHealthy()) {
+				ranked.add(m);
+			}
+		}
+
+		if (ranked.isEmpty()) {
+			for (Mirror m : mirrors) {
+				m.failures = 0;
+			}
+			ranked.addAll(mirrors);
+		}
+
+		Collections.sort(ranked, new Comparator<Mirror>() {
+			@Override
+			public int compare(Mirror a, Mirror b) {
+				return Double.compare(a.expectedTime(unitLength), b.expectedTime(unitLength));
+			}
+		});
+		return ranked;
+	}
+
+}
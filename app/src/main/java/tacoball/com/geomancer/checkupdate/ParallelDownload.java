@@ -0,0 +1,147 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 平行下載片段 (AutoUpdateManager.DownloadMode.PARALLEL)
+ *
+ * 使用固定數量的工作執行緒，每個工作執行緒向 BufferPool 借用自己的緩衝區。
+ */
+class ParallelDownload extends PartDownload {
+
+	ParallelDownload(TransferContext context, PartLog partLog, String filename, JsonObject fileInfo, File gzFile,
+			AtomicLong transfered, byte[] buffer) {
+		super(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+	}
+
+	/**
+	 * 使用固定數量的工作執行緒同時下載多個片段
+	 *
+	 * 每個工作執行緒依序領取一段連續的未完成片段，各自完成下載、驗證與片段重試，
+	 * 任一片段重試失敗時通知其他工作執行緒停止領取新片段。
+	 */
+	@Override
+	void download() throws InterruptedException {
+		final int[] nextPart = { 0 };
+		final AtomicBoolean aborted = new AtomicBoolean(false);
+		final int workerCount = Math.min(context.parallelParts, partCount);
+
+		ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+		List<Future<Void>> workers = new ArrayList<>();
+		for (int i=0;i<workerCount;i++) {
+			workers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					byte[] buffer = BufferPool.acquire();
+					try {
+						while (!aborted.get()) {
+							// 領取下一段連續的未完成片段
+							int first;
+							int count;
+							synchronized (nextPart) {
+								first = nextPart[0];
+								while (first < partCount && partDone[first]) {
+									first++;
+								}
+								if (first >= partCount) {
+									break;
+								}
+								count = claimParts(first, workerCount);
+								nextPart[0] = first + count;
+							}
+
+							try {
+								fetchParts(first, count, buffer);
+							} catch(InterruptedException ex) {
+								aborted.set(true);
+								throw ex;
+							}
+						}
+						return null;
+					} finally {
+						BufferPool.release(buffer);
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+
+		// 等待所有工作執行緒結束，回報第一個失敗原因
+		String reason = null;
+		try {
+			for (Future<Void> worker : workers) {
+				try {
+					worker.get();
+				} catch(ExecutionException ex) {
+					if (reason == null) {
+						reason = ex.getCause().getMessage();
+					}
+				}
+			}
+		} catch(InterruptedException ex) {
+			aborted.set(true);
+			pool.shutdownNow();
+			throw ex;
+		}
+
+		if (reason != null) {
+			throw new InterruptedException(reason);
+		}
+	}
+
+	/**
+	 * 同時下載多個片段，依片段順序交給解壓縮執行緒
+	 *
+	 * @param queue       片段佇列
+	 * @param extractTask 解壓縮工作
+	 */
+	@Override
+	void receive(BlockingQueue<byte[]> queue, Future<Void> extractTask) throws InterruptedException {
+		int parallelParts = context.parallelParts;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelParts, partCount));
+		ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+		int nextPart = 0;
+
+		try {
+			while (nextPart < partCount || !window.isEmpty()) {
+				// 下載中的片段維持在工作執行緒數的兩倍，避免前面的片段卡住時佔用過多記憶體
+				while (nextPart < partCount && window.size() < parallelParts * 2) {
+					final int partNumber = nextPart++;
+					window.add(pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws InterruptedException {
+							byte[] buffer = BufferPool.acquire();
+							try {
+								return receivePart(partNumber, buffer);
+							} finally {
+								BufferPool.release(buffer);
+							}
+						}
+					}));
+				}
+
+				try {
+					handOver(queue, window.poll().get(), extractTask);
+				} catch(ExecutionException ex) {
+					throw new InterruptedException(ex.getCause().getMessage());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 壓縮檔片段下載策略，依下載模式 (AutoUpdateManager.DownloadMode) 選擇實作
+ *
+ * 每個檔案建立一個，下載壓縮檔中未完成的片段並逐一驗證 (download)，
+ * 或在邊下載邊解壓縮時依片段順序交出已驗證的片段 (receive)。
+ * 片段驗證、重試與片段下載紀錄在這裡處理，實作只決定請求的切法與連線數。
+ */
+abstract class PartDownload {
+
+	// 片段重試次數上限
+	static final int PART_RETRY_LIMIT = 3;
+
+	final TransferContext context;
+	final PartLog    partLog;
+	final String     filename;
+	final String     gzPath;        // 相對於更新資訊的壓縮檔路徑
+	final File       gzFile;
+	final String     checksum;      // 檔案摘要值，片段下載紀錄以它判斷紀錄是否屬於同一版檔案
+	final JsonArray  partChecksums;
+	final long       gzLength;
+	final int        partCount;
+	final int        partLength;
+	final AtomicLong transfered;
+	final byte[]     buffer;        // 呼叫端執行緒的緩衝區
+	boolean[] partDone;
+
+	/**
+	 * 配置片段下載
+	 *
+	 * @param context    傳輸資源
+	 * @param partLog    片段下載紀錄
+	 * @param filename   檔名
+	 * @param fileInfo   更新項目資訊
+	 * @param gzFile     壓縮檔存放位置
+	 * @param transfered 傳輸量，供進度回報
+	 * @param buffer     呼叫端執行緒的緩衝區
+	 */
+	PartDownload(TransferContext context, PartLog partLog, String filename, JsonObject fileInfo, File gzFile,
+			AtomicLong transfered, byte[] buffer) {
+		this.context = context;
+		this.partLog = partLog;
+		this.filename = filename;
+		this.gzPath = filename + context.codec.extension();
+		this.gzFile = gzFile;
+		this.checksum = fileInfo.get("checksum").getAsString();
+		this.partChecksums = fileInfo.getAsJsonArray("partChecksums");
+		this.gzLength = fileInfo.get("gzLength").getAsLong();
+		this.partCount = partChecksums.size();
+		this.partLength = context.partLength;
+		this.transfered = transfered;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * 依下載模式配置片段下載
+	 *
+	 * @param  context    傳輸資源
+	 * @param  partLog    片段下載紀錄
+	 * @param  filename   檔名
+	 * @param  fileInfo   更新項目資訊
+	 * @param  gzFile     壓縮檔存放位置
+	 * @param  transfered 傳輸量，供進度回報
+	 * @param  buffer     呼叫端執行緒的緩衝區
+	 * @return 片段下載
+	 */
+	static PartDownload create(TransferContext context, PartLog partLog, String filename, JsonObject fileInfo, File gzFile,
+			AtomicLong transfered, byte[] buffer) {
+		if (context.downloadMode == AutoUpdateManager.DownloadMode.PARALLEL) {
+			return new ParallelDownload(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+		} else if (context.downloadMode == AutoUpdateManager.DownloadMode.STREAM) {
+			return new StreamDownload(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+		}
+		return new SequentialDownload(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+	}
+
+	/**
+	 * 下載壓縮檔中未完成的片段，全部片段都驗證成功才會返回，之前要先呼叫 prepare()
+	 */
+	abstract void download() throws InterruptedException;
+
+	/**
+	 * 邊下載邊解壓縮，依片段順序把已驗證的片段交給解壓縮執行緒，不寫入壓縮檔
+	 *
+	 * @param queue       片段佇列
+	 * @param extractTask 解壓縮工作
+	 */
+	abstract void receive(BlockingQueue<byte[]> queue, Future<Void> extractTask) throws InterruptedException;
+
+	/**
+	 * 準備壓縮檔片段狀態並開始記錄，可續傳時沿用片段下載紀錄中仍然正確的片段
+	 *
+	 * @param resumable 是否接續先前的下載進度
+	 * @param verified  本次更新中已驗證過的片段 (預先下載的結果)，不必再讀回來確認；沒有時為 null
+	 */
+	void prepare(boolean resumable, boolean[] verified) throws InterruptedException {
+		if (resumable && verified != null && gzFile.exists()) {
+			partDone = verified;
+			transfered.set(gzLength);
+		} else if (resumable && gzFile.exists()) {
+			// 紀錄中已驗證的片段要再確認一次壓縮檔內容，檔案可能在中斷時損毀
+			partDone = partLog.restore(filename, checksum, partCount);
+			for (int i=0;i<partCount;i++) {
+				if (partDone[i]) {
+					partDone[i] = checkPart(i, buffer);
+				}
+				if (partDone[i]) {
+					long offset = (long)i * partLength;
+					transfered.addAndGet(Math.min(partLength, gzLength - offset));
+				}
+			}
+		} else {
+			partDone = new boolean[partCount];
+		}
+
+		// 沒有可續傳的片段時，移除殘留的壓縮檔
+		if (transfered.get() == 0 && gzFile.exists()) {
+			if (!gzFile.delete()) {
+				throw new InterruptedException("檔案系統權限不足，無法刪除壓縮檔");
+			}
+		}
+
+		try {
+			partLog.begin(filename, checksum, partDone);
+		} catch(IOException ex) {
+			throw new InterruptedException("無法儲存片段下載紀錄");
+		}
+	}
+
+	/**
+	 * 決定從指定片段開始合併幾個片段為一個請求，只合併連續未完成的片段
+	 *
+	 * @param  first   第一個片段編號 (未完成)
+	 * @param  workers 同時下載的工作執行緒數
+	 * @return 片段數
+	 */
+	int claimParts(int first, int workers) {
+		int limit = context.coalescer.parts(first, workers, partCount - first);
+		int count = 1;
+		while (count < limit && first + count < partCount && !partDone[first + count]) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * 以一次 Range 請求下載連續的片段，再逐一驗證每個片段，驗證失敗的片段單獨重新下載
+	 *
+	 * 驗證單位維持片段大小，只有請求大小依連線狀況調整，結果回報給 RangeCoalescer。
+	 *
+	 * @param first  第一個片段編號
+	 * @param count  片段數
+	 * @param buffer 傳輸用緩衝區
+	 */
+	void fetchParts(int first, int count, byte[] buffer) throws InterruptedException {
+		long offset = (long)first * partLength;
+		int length = (int)Math.min((long)count * partLength, gzLength - offset);
+
+		int ptxLen = downloadRange(first, length, 0, buffer);
+		boolean success = (ptxLen == length);
+
+		for (int i=first;i<first+count;i++) {
+			if (checkPart(i, buffer)) {
+				recordPart(i);
+				continue;
+			}
+
+			// 這個片段收到的部分不算，單獨重新下載
+			long received = Math.max(0, Math.min(partLength, ptxLen - (long)(i - first) * partLength));
+			transfered.addAndGet(-received);
+			if (success) {
+				String reason = String.format(Locale.getDefault(), "傳輸片段 #%d 發現內容損毀", i);
+				context.trigger.onFileWarning(filename, reason);
+			}
+			success = false;
+			fetchPart(i, 1, buffer);
+		}
+
+		context.coalescer.report(success);
+	}
+
+	/**
+	 * 下載並驗證一個片段，驗證失敗時自動重新下載
+	 *
+	 * @param  partNumber 片段編號
+	 * @param  attempt    第幾次嘗試，合併請求失敗後的重新下載從 1 開始，改用其他鏡像站
+	 * @param  buffer     傳輸用緩衝區
+	 * @return 片段傳輸量
+	 */
+	int fetchPart(int partNumber, int attempt, byte[] buffer) throws InterruptedException {
+		// 下載片段
+		context.control.backoff(attempt);
+		int ptxLen = downloadRange(partNumber, partLength, attempt, buffer);
+		boolean partOk = checkPart(partNumber, buffer);
+
+		// 片段自動修復 (容錯)
+		int partRetry = attempt;
+		while (!partOk && partRetry < PART_RETRY_LIMIT) {
+			String reason = String.format(Locale.getDefault(),
+				"傳輸片段 #%d 發現內容損毀", partNumber
+			);
+			context.trigger.onFileWarning(filename, reason);
+			transfered.addAndGet(-ptxLen);
+			partRetry++;
+			context.control.backoff(partRetry);
+			ptxLen = downloadRange(partNumber, partLength, partRetry, buffer);
+			partOk = checkPart(partNumber, buffer);
+		}
+
+		// 重試依然失敗 (不容錯)
+		if (!partOk) {
+			String reason = String.format(Locale.getDefault(),
+				"傳輸片段 #%d 發現內容損毀，嘗試修復 %d 次無效",
+				partNumber, PART_RETRY_LIMIT
+			);
+			throw new InterruptedException(reason);
+		}
+
+		recordPart(partNumber);
+		return ptxLen;
+	}
+
+	/**
+	 * 以一次請求下載從指定片段開始的連續資料，寫入壓縮檔的對應位置
+	 *
+	 * @param  first   第一個片段編號
+	 * @param  length  長度上限
+	 * @param  attempt 第幾次嘗試，重試時改用其他鏡像站
+	 * @param  buffer  傳輸用緩衝區
+	 * @return 傳輸量
+	 */
+	int downloadRange(int first, int length, int attempt, byte[] buffer) throws InterruptedException {
+		int ptxLen = 0;
+
+		try {
+			// 配置檔案系統存取，取消時 transferRange 拋出 InterruptedException，也要關閉檔案
+			long offset = (long)first * partLength;
+			RandomAccessFile out = new RandomAccessFile(gzFile, "rw"); // "r" for seek, "w" for write
+			try {
+				out.seek(offset);
+				ptxLen = context.transferRange(filename, transfered, gzPath, offset, length, "片段", first, attempt, buffer, Channels.newOutputStream(out.getChannel()));
+			} finally {
+				out.close();
+			}
+		} catch(IOException ex) {
+			String reason = String.format(Locale.getDefault(), "下載片段 #%d 發生異常", first);
+			context.trigger.onFileWarning(filename, reason);
+		}
+
+		return ptxLen;
+	}
+
+	/**
+	 * 下載一個片段到記憶體並驗證，驗證失敗時自動重新下載
+	 *
+	 * @param  partNumber 片段編號
+	 * @param  buffer     傳輸用緩衝區
+	 * @return 已驗證的片段內容
+	 */
+	byte[] receivePart(int partNumber, byte[] buffer) throws InterruptedException {
+		String expected = partChecksums.get(partNumber).getAsString();
+		ByteArrayOutputStream part = new ByteArrayOutputStream(partLength);
+
+		for (int partRetry=0;partRetry<=PART_RETRY_LIMIT;partRetry++) {
+			if (partRetry > 0) {
+				String reason = String.format(Locale.getDefault(),
+					"傳輸片段 #%d 發現內容損毀", partNumber
+				);
+				context.trigger.onFileWarning(filename, reason);
+				transfered.addAndGet(-part.size());
+				part.reset();
+				context.control.backoff(partRetry);
+			}
+
+			long offset = (long)partNumber * partLength;
+			context.transferRange(filename, transfered, gzPath, offset, partLength, "片段", partNumber, partRetry, buffer, part);
+			byte[] data = part.toByteArray();
+			MessageDigest md = newPartDigest();
+			md.update(data);
+			if (Digests.matches(md.digest(), expected)) {
+				return data;
+			}
+		}
+
+		// 重試依然失敗 (不容錯)
+		String reason = String.format(Locale.getDefault(),
+			"傳輸片段 #%d 發現內容損毀，嘗試修復 %d 次無效",
+			partNumber, PART_RETRY_LIMIT
+		);
+		throw new InterruptedException(reason);
+	}
+
+	/**
+	 * 結算串流中的片段摘要
+	 *
+	 * @param  partNumber 片段編號
+	 * @param  md         累積片段內容的摘要計算器，結算後會自動重置
+	 * @param  partFill   片段已接收長度
+	 * @return 是否驗證成功
+	 */
+	boolean verifyStreamedPart(int partNumber, MessageDigest md, int partFill) {
+		String expected = partChecksums.get(partNumber).getAsString();
+		if (Digests.matches(md.digest(), expected)) {
+			return true;
+		}
+
+		// 損毀片段的傳輸量不計入進度，補抓時重新計算
+		transfered.addAndGet(-partFill);
+		String reason = String.format(Locale.getDefault(), "傳輸片段 #%d 發現內容損毀", partNumber);
+		context.trigger.onFileWarning(filename, reason);
+		return false;
+	}
+
+	/**
+	 * 將片段交給解壓縮執行緒，解壓縮執行緒提早結束時不再等待
+	 *
+	 * @param queue       片段佇列
+	 * @param part        片段內容
+	 * @param extractTask 解壓縮工作
+	 */
+	static void handOver(BlockingQueue<byte[]> queue, byte[] part, Future<Void> extractTask) throws InterruptedException {
+		while (!queue.offer(part, 100, TimeUnit.MILLISECONDS)) {
+			if (extractTask.isDone()) {
+				try {
+					extractTask.get();
+				} catch(ExecutionException ex) {
+					throw new InterruptedException(ex.getCause().getMessage());
+				}
+				throw new InterruptedException("解壓縮提早結束");
+			}
+		}
+	}
+
+	/**
+	 * 記錄已驗證的片段
+	 *
+	 * @param partNumber 片段編號
+	 */
+	void recordPart(int partNumber) throws InterruptedException {
+		try {
+			partLog.markVerified(filename, partNumber);
+		} catch(IOException ex) {
+			throw new InterruptedException("無法儲存片段下載紀錄");
+		}
+	}
+
+	/**
+	 * 以片段摘要值驗證壓縮檔中的一個片段
+	 *
+	 * @param  partNumber 片段編號
+	 * @param  buffer     讀取用緩衝區
+	 * @return 是否驗證成功
+	 */
+	boolean checkPart(int partNumber, byte[] buffer) throws InterruptedException {
+		String algorithm = context.partDigest;
+		try {
+			byte[] actual = BlockHasher.hashBlock(gzFile, partNumber, partLength, algorithm, buffer);
+			return Digests.matches(actual, partChecksums.get(partNumber).getAsString());
+		} catch(IOException ex) {
+			String reason = String.format(Locale.getDefault(), "計算 %s 摘要失敗 (%s)", algorithm, ex.getMessage());
+			throw new InterruptedException(reason);
+		} catch(NoSuchAlgorithmException ex) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "無法使用 %s 演算法", algorithm));
+		}
+	}
+
+	/**
+	 * 配置片段摘要計算器
+	 */
+	MessageDigest newPartDigest() throws InterruptedException {
+		try {
+			return Digests.getInstance(context.partDigest);
+		} catch(NoSuchAlgorithmException ex) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "無法使用 %s 演算法", context.partDigest));
+		}
+	}
+
+	/**
+	 * 傳輸迴圈的取消點
+	 */
+	void checkCanceled() throws InterruptedException {
+		context.checkCanceled(filename, transfered);
+	}
+
+}
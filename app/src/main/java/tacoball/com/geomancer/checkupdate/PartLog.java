@@ -0,0 +1,350 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 片段下載紀錄，記錄每個更新項目已驗證的壓縮檔片段，讓中斷的更新可以續傳
+ *
+ * 與更新紀錄 (UpdateJournal) 相同以快照檔加上只附加的日誌檔保存，快照檔 (update-parts.json)：
+ * {
+ *   "taiwan-taco.map": {
+ *     "checksum": "更新資訊中的檔案摘要值",
+ *     "parts": "1101..." (第 n 個字元表示第 n 個片段是否已驗證)
+ *   }
+ * }
+ *
+ * 每驗證一個片段只在日誌檔 (update-parts.journal) 附加一行，不必重寫整個紀錄：
+ * {"verified": "檔名", "checksum": "檔案摘要值", "part": 片段編號}
+ *
+ * 開始或移除一個更新項目時把目前狀態寫成新的快照 (暫存檔 fsync 後換入) 並清空日誌。
+ * 載入時以快照為基礎重播日誌，摘要值與紀錄不符或寫入中斷的一行忽略。
+ * 日誌每 SYNC_BATCH 筆才 fsync，程序中止不會遺失已寫入的行，斷電時最多遺失幾個片段的進度；
+ * 續傳前已驗證的片段都會再確認一次壓縮檔內容，紀錄多出來的片段不會造成錯誤。
+ *
+ * 與更新紀錄相同，同一個紀錄檔位置只有一個實例，以 open() 取得、close() 歸還，
+ * 同時進行的下載共用同一份記憶體中的紀錄，壓縮時不會覆蓋其他使用者的進度。
+ */
+class PartLog {
+
+	static final String SNAPSHOT = "update-parts.json";
+	static final String JOURNAL  = "update-parts.journal";
+
+	// 累積幾筆異動做一次 fsync
+	private static final int SYNC_BATCH = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// 日誌一筆一行，快照也不需要縮排
+	private static final Gson GSON = new Gson();
+
+	// 使用中的實例，依紀錄檔位置區分
+	private static final Map<File, PartLog> OPENED = new HashMap<>();
+
+	private final File logPath;
+	private final File snapshotFile;
+	private final File journalFile;
+	private int users;
+
+	private JsonObject records;
+	private int pendingRecords;
+	private FileOutputStream journalOut;
+	private Writer journalWriter;
+
+	/**
+	 * 載入片段下載紀錄，紀錄不存在或損毀時從空紀錄開始
+	 *
+	 * @param logPath 紀錄檔存放位置
+	 */
+	private PartLog(File logPath) {
+		this.logPath = logPath;
+		this.snapshotFile = new File(logPath, SNAPSHOT);
+		this.journalFile = new File(logPath, JOURNAL);
+
+		try {
+			load();
+		} catch(IOException|JsonParseException|IllegalStateException ex) {
+			records = null;
+		}
+
+		if (records == null) {
+			records = new JsonObject();
+		}
+	}
+
+	/**
+	 * 取得紀錄檔位置的片段下載紀錄，用完必須呼叫 close()
+	 *
+	 * @param  logPath 紀錄檔存放位置
+	 * @return 這個位置共用的片段下載紀錄
+	 */
+	static PartLog open(File logPath) {
+		synchronized (OPENED) {
+			File key = logPath.getAbsoluteFile();
+			PartLog log = OPENED.get(key);
+			if (log == null) {
+				log = new PartLog(key);
+				OPENED.put(key, log);
+			}
+			log.users++;
+			return log;
+		}
+	}
+
+	/**
+	 * 取得先前已驗證的片段，檔案摘要值或片段數不符時視為沒有紀錄
+	 *
+	 * @param  filename  更新項目檔名
+	 * @param  checksum  更新資訊中的檔案摘要值
+	 * @param  partCount 片段數
+	 * @return 各片段是否已驗證
+	 */
+	synchronized boolean[] restore(String filename, String checksum, int partCount) {
+		boolean[] verified = new boolean[partCount];
+
+		if (records.has(filename)) {
+			JsonObject record = records.getAsJsonObject(filename);
+			String parts = record.get("parts").getAsString();
+			if (record.get("checksum").getAsString().equals(checksum) && parts.length() == partCount) {
+				for (int i=0;i<partCount;i++) {
+					verified[i] = (parts.charAt(i) == '1');
+				}
+			}
+		}
+
+		return verified;
+	}
+
+	/**
+	 * 開始記錄一個更新項目，覆蓋原有紀錄
+	 *
+	 * @param filename 更新項目檔名
+	 * @param checksum 更新資訊中的檔案摘要值
+	 * @param verified 各片段是否已驗證
+	 */
+	synchronized void begin(String filename, String checksum, boolean[] verified) throws IOException {
+		StringBuilder parts = new StringBuilder(verified.length);
+		for (boolean v : verified) {
+			parts.append(v ? '1' : '0');
+		}
+
+		JsonObject record = new JsonObject();
+		record.addProperty("checksum", checksum);
+		record.addProperty("parts", parts.toString());
+		records.add(filename, record);
+		compact();
+	}
+
+	/**
+	 * 記錄一個已驗證的片段
+	 *
+	 * @param filename   更新項目檔名
+	 * @param partNumber 片段編號
+	 */
+	synchronized void markVerified(String filename, int partNumber) throws IOException {
+		if (!records.has(filename)) {
+			return;
+		}
+
+		JsonObject record = records.getAsJsonObject(filename);
+		if (!apply(record, partNumber)) {
+			return;
+		}
+
+		JsonObject line = new JsonObject();
+		line.addProperty("verified", filename);
+		line.add("checksum", record.get("checksum"));
+		line.addProperty("part", partNumber);
+		append(line);
+	}
+
+	/**
+	 * 移除一個更新項目的紀錄，用於更新完成或需要整個重新下載時
+	 *
+	 * @param filename 更新項目檔名
+	 */
+	synchronized void remove(String filename) throws IOException {
+		if (records.remove(filename) != null) {
+			compact();
+		}
+	}
+
+	/**
+	 * 歸還片段下載紀錄，把尚未 fsync 的日誌寫入儲存裝置，最後一個使用者歸還時結束寫入
+	 */
+	void close() throws IOException {
+		synchronized (OPENED) {
+			synchronized (this) {
+				if (users == 0 || --users > 0) {
+					sync();
+					return;
+				}
+				OPENED.remove(logPath);
+				closeJournal();
+			}
+		}
+	}
+
+	// 結束日誌寫入，把尚未 fsync 的日誌寫入儲存裝置
+	private void closeJournal() throws IOException {
+		if (journalWriter != null) {
+			try {
+				sync();
+			} finally {
+				journalWriter.close();
+				journalWriter = null;
+				journalOut = null;
+			}
+		}
+	}
+
+	// 載入快照並重播日誌
+	private void load() throws IOException {
+		records = null;
+
+		if (snapshotFile.exists()) {
+			JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(snapshotFile), UTF8));
+			try {
+				JsonElement root = new JsonParser().parse(reader);
+				if (root.isJsonObject()) {
+					records = root.getAsJsonObject();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		if (records != null && journalFile.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try {
+						replay(new JsonParser().parse(line).getAsJsonObject());
+					} catch(JsonParseException|IllegalStateException|UnsupportedOperationException ex) {
+						// 寫入中斷的一行
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	// 重播一筆日誌，摘要值與目前紀錄不符時是前一版的殘留紀錄
+	private void replay(JsonObject line) {
+		String filename = line.get("verified").getAsString();
+		if (!records.has(filename)) {
+			return;
+		}
+
+		JsonObject record = records.getAsJsonObject(filename);
+		if (record.get("checksum").getAsString().equals(line.get("checksum").getAsString())) {
+			apply(record, line.get("part").getAsInt());
+		}
+	}
+
+	// 在紀錄中標示片段已驗證，片段編號超出範圍或已經標示時回傳 false
+	private boolean apply(JsonObject record, int partNumber) {
+		String parts = record.get("parts").getAsString();
+		if (partNumber < 0 || partNumber >= parts.length() || parts.charAt(partNumber) == '1') {
+			return false;
+		}
+
+		StringBuilder sb = new StringBuilder(parts);
+		sb.setCharAt(partNumber, '1');
+		record.addProperty("parts", sb.toString());
+		return true;
+	}
+
+	// 附加一筆日誌，每筆都交給作業系統，累積到 SYNC_BATCH 筆時 fsync
+	private void append(JsonObject line) throws IOException {
+		if (journalWriter == null) {
+			boolean torn = endsWithPartialLine();
+			journalOut = new FileOutputStream(journalFile, true);
+			journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, UTF8));
+			if (torn) {
+				journalWriter.write('\n');
+			}
+		}
+
+		journalWriter.write(GSON.toJson(line));
+		journalWriter.write('\n');
+		journalWriter.flush();
+		pendingRecords++;
+		if (pendingRecords >= SYNC_BATCH) {
+			sync();
+		}
+	}
+
+	// 把尚未 fsync 的日誌寫入儲存裝置
+	private void sync() throws IOException {
+		if (journalWriter != null && pendingRecords > 0) {
+			journalWriter.flush();
+			journalOut.getFD().sync();
+			pendingRecords = 0;
+		}
+	}
+
+	// 把目前狀態寫成新的快照並清空日誌，換入後、清空日誌前中斷時重播殘留日誌只會多標示片段，續傳前會再確認
+	private void compact() throws IOException {
+		closeJournal();
+
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(fos, UTF8)));
+		try {
+			GSON.toJson(records, writer);
+			writer.flush();
+			fos.getFD().sync();
+		} finally {
+			writer.close();
+		}
+
+		if (!tmp.renameTo(snapshotFile)) {
+			// 部分檔案系統不允許直接覆蓋
+			if (!snapshotFile.delete() || !tmp.renameTo(snapshotFile)) {
+				throw new IOException("無法取代片段下載紀錄");
+			}
+		}
+
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("無法清空片段下載紀錄日誌");
+		}
+	}
+
+	// 日誌最後一行是否寫入中斷 (沒有換行結尾)
+	private boolean endsWithPartialLine() throws IOException {
+		if (journalFile.length() == 0) {
+			return false;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() != '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 將佇列中已驗證的片段串接成連續資料流，供解壓縮執行緒邊下載邊解壓縮
+ *
+ * 生產端依序放入片段內容，放入長度為 0 的片段表示資料結束。
+ */
+class PartQueueInputStream extends InputStream {
+
+	// 資料結束標記
+	static final byte[] END = new byte[0];
+
+	private BlockingQueue<byte[]> queue;
+	private byte[] current;
+	private int    position;
+	private boolean ended;
+
+	/**
+	 * 配置片段資料流
+	 *
+	 * @param queue 片段佇列
+	 */
+	PartQueueInputStream(BlockingQueue<byte[]> queue) {
+		this.queue = queue;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+
+		int ioLen = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, ioLen);
+		position += ioLen;
+		return ioLen;
+	}
+
+	@Override
+	public int available() {
+		return (current == null) ? 0 : current.length - position;
+	}
+
+	/**
+	 * 目前片段讀完時，等待下一個片段
+	 *
+	 * @return 是否還有資料
+	 */
+	private boolean fill() throws IOException {
+		while (!ended && (current == null || position >= current.length)) {
+			try {
+				current  = queue.take();
+				position = 0;
+			} catch(InterruptedException ex) {
+				throw new InterruptedIOException("等待下載片段時中斷");
+			}
+			if (current == END) {
+				ended = true;
+			}
+		}
+		return !ended;
+	}
+
+}
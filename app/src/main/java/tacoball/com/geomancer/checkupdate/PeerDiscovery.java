@@ -0,0 +1,182 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 以 UDP 廣播探索區域網路中分享更新檔的節點
+ *
+ * 接收端向每個 IPv4 網路介面的廣播位址與本機送出探索請求 "GEOMANCER-PEER?"，
+ * 分享端回覆 "GEOMANCER-PEER 節點識別碼 HTTP連接埠"，接收端以回覆的來源位址組成節點網址。
+ * 探索結果只是候選清單，節點提供的內容一律依更新資訊驗證。
+ *
+ * 部分 Android 裝置預設過濾廣播封包，分享端需要由應用程式持有 WifiManager.MulticastLock 才收得到探索請求。
+ */
+class PeerDiscovery {
+
+	/**
+	 * 預設探索連接埠
+	 */
+	static final int DEFAULT_PORT = 27183;
+
+	private static final String PROBE = "GEOMANCER-PEER?";
+	private static final String REPLY = "GEOMANCER-PEER ";
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// 封包長度上限
+	private static final int PACKET_LENGTH = 256;
+
+	private final DatagramSocket socket;
+	private final String id;
+	private final int    httpPort;
+	private volatile boolean running;
+
+	/**
+	 * 配置探索回應程式，需要呼叫 start() 才開始回應
+	 *
+	 * @param port     探索連接埠
+	 * @param id       節點識別碼
+	 * @param httpPort 分享檔案的 HTTP 連接埠
+	 */
+	PeerDiscovery(int port, String id, int httpPort) throws IOException {
+		this.id = id;
+		this.httpPort = httpPort;
+		socket = new DatagramSocket(null);
+		socket.setReuseAddress(true);
+		socket.bind(new InetSocketAddress(port));
+	}
+
+	/**
+	 * 開始回應探索請求
+	 */
+	void start() {
+		running = true;
+		Thread t = new Thread("PeerDiscovery") {
+			@Override
+			public void run() {
+				byte[] buf = new byte[PACKET_LENGTH];
+				byte[] reply = (REPLY + id + " " + httpPort).getBytes(ASCII);
+				while (running) {
+					try {
+						DatagramPacket probe = new DatagramPacket(buf, buf.length);
+						socket.receive(probe);
+						if (PROBE.equals(new String(probe.getData(), 0, probe.getLength(), ASCII))) {
+							socket.send(new DatagramPacket(reply, reply.length, probe.getSocketAddress()));
+						}
+					} catch(IOException ex) {
+						// 回應程式關閉，或單一封包無法回覆
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * 停止回應探索請求
+	 */
+	void stop() {
+		running = false;
+		socket.close();
+	}
+
+	/**
+	 * 送出探索請求並收集回覆，同一個節點從多個網路介面回覆時只保留第一個位址
+	 *
+	 * @param  port    探索連接埠
+	 * @param  timeout 等待回覆的時間 (毫秒)
+	 * @param  selfId  本機分享中的節點識別碼，回覆中略過，沒有分享時為 null
+	 * @return 節點網址，例如 "http://192.168.1.23:40123/"
+	 */
+	static List<String> discover(int port, int timeout, String selfId) {
+		Map<String, String> peers = new LinkedHashMap<>();
+		DatagramSocket socket = null;
+		try {
+			socket = new DatagramSocket();
+			socket.setBroadcast(true);
+
+			byte[] probe = PROBE.getBytes(ASCII);
+			for (InetAddress target : targets()) {
+				try {
+					socket.send(new DatagramPacket(probe, probe.length, target, port));
+				} catch(IOException ex) {
+					// 沒有路由的介面
+				}
+			}
+
+			byte[] buf = new byte[PACKET_LENGTH];
+			long deadline = System.currentTimeMillis() + timeout;
+			long remain;
+			while ((remain = deadline - System.currentTimeMillis()) > 0) {
+				socket.setSoTimeout((int)remain);
+				DatagramPacket reply = new DatagramPacket(buf, buf.length);
+				try {
+					socket.receive(reply);
+				} catch(SocketTimeoutException ex) {
+					break;
+				}
+
+				String[] tokens = new String(reply.getData(), 0, reply.getLength(), ASCII).split(" ");
+				if (tokens.length != 3 || !(tokens[0] + " ").equals(REPLY) || tokens[1].equals(selfId) || peers.containsKey(tokens[1])) {
+					continue;
+				}
+				try {
+					int httpPort = Integer.parseInt(tokens[2]);
+					peers.put(tokens[1], String.format(Locale.US, "http://%s:%d/", reply.getAddress().getHostAddress(), httpPort));
+				} catch(NumberFormatException ex) {
+					// 格式錯誤的回覆
+				}
+			}
+		} catch(IOException ex) {
+			// 無法探索時只使用已知節點與鏡像站
+		} finally {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+		return new ArrayList<>(peers.values());
+	}
+
+	// 探索請求的目的位址，包含所有 IPv4 廣播位址與本機
+	private static Set<InetAddress> targets() throws IOException {
+		Set<InetAddress> targets = new LinkedHashSet<>();
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface ni = interfaces.nextElement();
+				if (!ni.isUp() || ni.isLoopback()) {
+					continue;
+				}
+				for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+					if (ia.getAddress() instanceof Inet4Address && ia.getBroadcast() != null) {
+						targets.add(ia.getBroadcast());
+					}
+				}
+			}
+		} catch(SocketException ex) {
+			// 無法列出網路介面時只送到本機
+		}
+		targets.add(InetAddress.getByName("127.0.0.1"));
+		return targets;
+	}
+
+}
@@ -0,0 +1,173 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 區域網路節點管理程式
+ *
+ * 記錄每個節點索引中的檔案，只有 mtime 與 checksum 都與更新資訊相同的節點才會被要求提供該檔案的區塊。
+ * 同一個區塊依區塊編號分散到不同節點，重試時改用下一個節點，
+ * 節點無法提供的區塊不再向同一個節點要求，失敗太多次的節點在本次更新中不再使用，交給鏡像站補足。
+ */
+class PeerManager {
+
+	// 失敗幾次後不再使用
+	private static final int FAIL_LIMIT = 4;
+
+	/**
+	 * 一個節點的狀態
+	 */
+	static class Peer {
+
+		private final String baseUrl;
+		private final JsonObject files;
+		private final Set<String> failedBlocks = new HashSet<>();
+		private int failures = 0;
+
+		Peer(String baseUrl, JsonObject files) {
+			this.baseUrl = baseUrl;
+			this.files = files;
+		}
+
+		// 節點是否持有與更新資訊相同版本的檔案
+		private boolean holds(String filename, JsonObject fileInfo) {
+			if (!files.has(filename)) {
+				return false;
+			}
+			JsonObject info = files.getAsJsonObject(filename);
+			return info.has("mtime") && info.has("checksum")
+				&& info.get("mtime").getAsLong() == fileInfo.get("mtime").getAsLong()
+				&& info.get("checksum").getAsString().equals(fileInfo.get("checksum").getAsString());
+		}
+
+		@Override
+		public String toString() {
+			return baseUrl;
+		}
+
+	}
+
+	private final List<Peer> peers = new ArrayList<>();
+	private final Transport transport;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	/**
+	 * 配置節點清單
+	 *
+	 * @param transport      節點使用的傳輸方式
+	 * @param connectTimeout 連線逾時 (毫秒)
+	 * @param readTimeout    讀取逾時 (毫秒)
+	 */
+	PeerManager(Transport transport, int connectTimeout, int readTimeout) {
+		this.transport = transport;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * 加入節點，重複的網址會被忽略
+	 *
+	 * @param url   節點網址
+	 * @param index 節點索引
+	 */
+	synchronized void add(String url, JsonObject index) {
+		if (!url.endsWith("/")) {
+			url = url + "/";
+		}
+		if (!index.has("files") || !index.get("files").isJsonObject()) {
+			return;
+		}
+		for (Peer p : peers) {
+			if (p.baseUrl.equals(url)) {
+				return;
+			}
+		}
+		peers.add(new Peer(url, index.getAsJsonObject("files")));
+	}
+
+	/**
+	 * 節點數量
+	 */
+	synchronized int size() {
+		return peers.size();
+	}
+
+	/**
+	 * 是否有可用的節點持有與更新資訊相同版本的檔案
+	 *
+	 * @param filename 檔名
+	 * @param fileInfo 更新項目資訊
+	 */
+	synchronized boolean holds(String filename, JsonObject fileInfo) {
+		return !candidates(filename, fileInfo).isEmpty();
+	}
+
+	/**
+	 * 選擇提供區塊的節點
+	 *
+	 * @param  filename    檔名
+	 * @param  fileInfo    更新項目資訊
+	 * @param  blockNumber 區塊編號，用來分散到不同節點
+	 * @return 節點，沒有節點能提供這個區塊時回傳 null
+	 */
+	synchronized Peer select(String filename, JsonObject fileInfo, int blockNumber) {
+		String block = filename + "#" + blockNumber;
+		List<Peer> list = new ArrayList<>();
+		for (Peer p : candidates(filename, fileInfo)) {
+			if (!p.failedBlocks.contains(block)) {
+				list.add(p);
+			}
+		}
+		if (list.isEmpty()) {
+			return null;
+		}
+		return list.get(blockNumber % list.size());
+	}
+
+	/**
+	 * 回報傳輸失敗或內容驗證失敗，之後不再向這個節點要求同一個區塊
+	 *
+	 * @param peer        節點
+	 * @param filename    檔名
+	 * @param blockNumber 區塊編號
+	 */
+	synchronized void fail(Peer peer, String filename, int blockNumber) {
+		peer.failedBlocks.add(filename + "#" + blockNumber);
+		peer.failures++;
+	}
+
+	/**
+	 * 開啟節點上一個檔案的一段範圍
+	 *
+	 * @param  peer     節點
+	 * @param  filename 檔名
+	 * @param  offset   起始位置
+	 * @param  length   長度
+	 * @return 回應
+	 */
+	Transport.Response open(Peer peer, String filename, long offset, long length) throws IOException {
+		Transport.Request request = new Transport.Request()
+			.range(offset, length)
+			.timeouts(connectTimeout, readTimeout);
+		return transport.open(peer.baseUrl + filename, request);
+	}
+
+	// 可用且持有相同版本檔案的節點
+	private List<Peer> candidates(String filename, JsonObject fileInfo) {
+		List<Peer> list = new ArrayList<>();
+		for (Peer p : peers) {
+			if (p.failures < FAIL_LIMIT && p.holds(filename, fileInfo)) {
+				list.add(p);
+			}
+		}
+		return list;
+	}
+
+}
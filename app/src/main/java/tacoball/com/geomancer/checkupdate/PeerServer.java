@@ -0,0 +1,157 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+/**
+ * 區域網路節點伺服器，把已驗證的檔案分享給同一個網路中同時更新的其他裝置
+ *
+ * 只提供更新紀錄中列出的檔案 (解壓縮後的原始檔) 與節點索引 peer.json：
+ * {
+ *   "id": "節點識別碼",
+ *   "config": { 更新紀錄的設定值 },
+ *   "files": { "檔名": { "mtime": ..., "checksum": ..., "length": ... }, ... }
+ * }
+ * 接收端只向持有相同版本檔案的節點要求區塊，並以更新資訊的 blockChecksums 逐一驗證，
+ * 節點本身不被信任。節點索引在更新紀錄異動後的第一個請求重新產生。
+ */
+class PeerServer extends LocalHttpServer {
+
+	/**
+	 * 節點索引的路徑
+	 */
+	static final String INDEX = "peer.json";
+
+	// 節點索引的快取檔，存放在紀錄檔目錄
+	private static final String INDEX_CACHE = "update-peer.json";
+
+	private final File logPath;
+	private final File filePath;
+	private final Map<String, File> movePath;
+	private final String id = UUID.randomUUID().toString();
+
+	private PeerDiscovery discovery;
+	private Map<String, File> shared = new HashMap<>();
+	private String fingerprint = "";
+
+	/**
+	 * 配置節點伺服器，需要呼叫 start() 才開始分享
+	 *
+	 * @param logPath  紀錄檔存放位置
+	 * @param filePath 下載檔預設存放位置
+	 * @param movePath 個別檔案的存放位置
+	 * @param port     HTTP 連接埠，0 表示自動選擇
+	 */
+	PeerServer(File logPath, File filePath, Map<String, File> movePath, int port) throws IOException {
+		super(logPath, null, port);
+		this.logPath = logPath;
+		this.filePath = filePath;
+		this.movePath = new HashMap<>(movePath);
+	}
+
+	/**
+	 * 節點識別碼，接收端探索時用來略過自己
+	 */
+	String getId() {
+		return id;
+	}
+
+	/**
+	 * 開始分享並回應探索請求
+	 *
+	 * @param discoveryPort 探索連接埠，0 表示不回應探索，只能以網址指定
+	 */
+	void start(int discoveryPort) throws IOException {
+		if (discoveryPort > 0) {
+			discovery = new PeerDiscovery(discoveryPort, id, getPort());
+			discovery.start();
+		}
+		start();
+	}
+
+	@Override
+	void stop() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+		super.stop();
+	}
+
+	@Override
+	protected File resolve(String path) {
+		synchronized (this) {
+			if (!fingerprint.equals(UpdateJournal.fingerprint(logPath))) {
+				try {
+					writeIndex();
+				} catch(IOException ex) {
+					return null;
+				}
+			}
+
+			if (path.equals(INDEX)) {
+				File index = new File(logPath, INDEX_CACHE);
+				return index.isFile() ? index : null;
+			}
+
+			File f = shared.get(path);
+			return (f != null && f.isFile()) ? f : null;
+		}
+	}
+
+	// 依更新紀錄重新產生節點索引與分享清單，先寫入暫存檔再換入，進行中的傳輸不受影響
+	private void writeIndex() throws IOException {
+		String current = UpdateJournal.fingerprint(logPath);
+		JsonObject log = UpdateJournal.read(logPath);
+		Map<String, File> files = new HashMap<>();
+		JsonObject index = new JsonObject();
+		index.addProperty("id", id);
+
+		JsonObject entries = new JsonObject();
+		if (log != null && log.has("config") && log.has("files")) {
+			index.add("config", log.getAsJsonObject("config"));
+			for (Entry<String, JsonElement> e : log.getAsJsonObject("files").entrySet()) {
+				String filename = e.getKey();
+				File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+				File f = new File(path, filename);
+				if (!f.isFile()) {
+					continue;
+				}
+				JsonObject info = e.getValue().getAsJsonObject();
+				JsonObject entry = new JsonObject();
+				entry.add("mtime", info.get("mtime"));
+				entry.add("checksum", info.get("checksum"));
+				entry.addProperty("length", f.length());
+				entries.add(filename, entry);
+				files.put(filename, f);
+			}
+		}
+		index.add("files", entries);
+
+		File tmp = new File(logPath, INDEX_CACHE + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			new Gson().toJson(index, writer);
+		} finally {
+			writer.close();
+		}
+		File target = new File(logPath, INDEX_CACHE);
+		if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+			throw new IOException("無法更新節點索引");
+		}
+
+		shared = files;
+		fingerprint = current;
+	}
+
+}
@@ -0,0 +1,195 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 跨檔案管線的下載階段
+ *
+ * 在自己的執行緒依序下載確定要完整下載的檔案的壓縮檔並驗證片段，每完成一個檔案就等待解壓縮階段接手，
+ * 接手後立刻開始下載下一個檔案，網路傳輸與前一個檔案的解壓縮、最終驗證與寫入紀錄同時進行。
+ * 兩個階段以容量為 0 的佇列交接，下載階段最多領先一個檔案，磁碟上同時最多兩個壓縮檔。
+ *
+ * 鏡像站、請求合併與片段下載紀錄由更新工作明確交給下載階段共用，取消旗標、連線看守與緩衝區則各自獨立；
+ * 只轉送警告事件，進度由更新工作回報。
+ */
+class Prefetcher {
+
+	/**
+	 * 下載階段交給解壓縮階段的結果
+	 */
+	static class Prefetched {
+
+		final String filename;
+		final File   gzFile;
+		boolean[] parts; // 全部片段都已驗證時才有值
+
+		Prefetched(String filename, File gzFile) {
+			this.filename = filename;
+			this.gzFile = gzFile;
+		}
+
+	}
+
+	private final TransferContext context;
+	private final PartLog    partLog;
+	private final JsonObject files;
+	private final BlockingQueue<Prefetched> ready = new SynchronousQueue<>();
+	private final AtomicLong transfered = new AtomicLong();
+	private volatile String  currentFilename;
+	private Thread thread;
+
+	/**
+	 * 配置下載階段
+	 *
+	 * @param parent  更新工作的傳輸資源，下載階段沿用鏡像站與請求合併
+	 * @param partLog 片段下載紀錄
+	 * @param files   更新資訊中的檔案清單
+	 */
+	Prefetcher(final TransferContext parent, PartLog partLog, JsonObject files) {
+		this.context = parent.fork(new AutoUpdateAdapter() {
+			@Override
+			public void onFileWarning(String filename, String reason) {
+				parent.trigger.onFileWarning(filename, reason);
+			}
+		});
+		this.partLog = partLog;
+		this.files = files;
+	}
+
+	/**
+	 * 開始下載
+	 *
+	 * @param gzFiles 依更新順序排列的檔名與壓縮檔存放位置
+	 */
+	void start(Map<String, File> gzFiles) {
+		final Map<String, File> queued = new LinkedHashMap<>(gzFiles);
+		thread = new Thread("UpdatePrefetch") {
+			@Override
+			public void run() {
+				runPrefetch(queued);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 等待下一個檔案的下載結果
+	 *
+	 * @param  timeout 等待時間 (毫秒)
+	 * @return 下載結果，逾時回傳 null
+	 */
+	Prefetched poll(long timeout) throws InterruptedException {
+		return ready.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 下載階段是否還在執行
+	 */
+	boolean isAlive() {
+		return thread.isAlive();
+	}
+
+	/**
+	 * 正在下載的檔名，還沒開始或已結束時回傳 null
+	 */
+	String currentFilename() {
+		return currentFilename;
+	}
+
+	/**
+	 * 正在下載的檔案的傳輸量
+	 */
+	long transfered() {
+		return transfered.get();
+	}
+
+	/**
+	 * 取消下載，中斷開啟中的連線
+	 */
+	void cancel() {
+		context.control.cancel();
+	}
+
+	/**
+	 * 停止下載階段並等待執行緒結束，未完成的壓縮檔與片段紀錄保留給下次續傳
+	 */
+	void stop() {
+		cancel();
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch(InterruptedException ex) {
+			// 下載階段是 daemon 執行緒，不必等到結束
+		}
+	}
+
+	/**
+	 * 下載階段的執行流程，每個檔案都交出一個結果，下載失敗的檔案由解壓縮階段自行重新下載
+	 *
+	 * @param gzFiles 檔名與壓縮檔存放位置
+	 */
+	private void runPrefetch(Map<String, File> gzFiles) {
+		byte[] buffer = BufferPool.acquire();
+		try {
+			for (Map.Entry<String, File> e : gzFiles.entrySet()) {
+				Prefetched p = prefetch(e.getKey(), e.getValue(), buffer);
+				ready.put(p);
+			}
+		} catch(InterruptedException ex) {
+			// 解壓縮階段已結束
+		} finally {
+			currentFilename = null;
+			context.control.shutdown();
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * 下載一個檔案的壓縮檔並驗證每個片段，存放位置與解壓縮階段相同，已驗證的片段寫入片段下載紀錄
+	 *
+	 * @param  filename 檔名
+	 * @param  gzFile   壓縮檔存放位置
+	 * @param  buffer   緩衝區
+	 * @return 下載結果，全部片段都驗證成功時才附上片段狀態
+	 */
+	private Prefetched prefetch(String filename, File gzFile, byte[] buffer) {
+		JsonObject fileInfo = files.getAsJsonObject(filename);
+		transfered.set(0);
+		currentFilename = filename;
+		Prefetched p = new Prefetched(filename, gzFile);
+
+		try {
+			FileUtils.forceMkdir(gzFile.getParentFile());
+			PartDownload download = PartDownload.create(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+			download.prepare(true, null);
+			download.download();
+
+			int partCount = fileInfo.getAsJsonArray("partChecksums").size();
+			boolean[] parts = partLog.restore(filename, fileInfo.get("checksum").getAsString(), partCount);
+			for (boolean verified : parts) {
+				if (!verified) {
+					return p;
+				}
+			}
+			p.parts = parts;
+		} catch(IOException|InterruptedException ex) {
+			if (!context.control.isCanceled()) {
+				context.trigger.onFileWarning(filename, "預先下載中斷，稍後重新下載：" + ex.getMessage());
+			}
+		}
+		return p;
+	}
+
+}
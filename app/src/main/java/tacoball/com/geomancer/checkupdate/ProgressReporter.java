@@ -0,0 +1,166 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 進度回報程式
+ *
+ * 傳輸與解壓縮迴圈只累加計數器，取樣執行緒依固定頻率讀取計數器，
+ * 進度有變化時才產生進度快照並觸發進度事件，I/O 執行緒不配置物件也不處理事件。
+ * 邊下載邊解壓縮時兩個步驟同時進行，所以每個步驟各自追蹤。
+ */
+class ProgressReporter {
+
+	// 新量測速率的權重 (指數移動平均)
+	private static final double EWMA_WEIGHT = 0.3;
+
+	/**
+	 * 一個步驟的追蹤狀態
+	 */
+	private static class Track {
+
+		String     filename;
+		long       total;
+		AtomicLong counter;
+
+		long   prevBytes;   // 上次取樣的資料量
+		long   prevTime;    // 上次取樣的時間 (奈秒)
+		double rate = -1;   // 處理速率 (bytes/s)，-1 表示尚未量測
+		int    prevPercent;
+
+	}
+
+	private final AutoUpdateAdapter trigger;
+	private final long interval;
+	private final Track[] tracks = new Track[UpdateProgress.Phase.values().length];
+	private ScheduledExecutorService sampler;
+
+	/**
+	 * 配置進度回報程式
+	 *
+	 * @param trigger  事件產生器
+	 * @param interval 回報間隔 (毫秒)
+	 */
+	ProgressReporter(AutoUpdateAdapter trigger, long interval) {
+		this.trigger = trigger;
+		this.interval = interval;
+	}
+
+	/**
+	 * 開始定期取樣
+	 */
+	synchronized void start() {
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ProgressReporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 回報最後的進度並停止取樣
+	 */
+	synchronized void stop() {
+		if (sampler != null) {
+			sampler.shutdownNow();
+			sampler = null;
+		}
+		sample();
+		for (int i=0;i<tracks.length;i++) {
+			tracks[i] = null;
+		}
+	}
+
+	/**
+	 * 開始追蹤一個步驟，先回報同一步驟上一次追蹤的最後進度
+	 *
+	 * @param phase    步驟
+	 * @param filename 更新中檔案
+	 * @param total    總資料量
+	 * @param counter  I/O 執行緒累加的計數器
+	 */
+	synchronized void track(UpdateProgress.Phase phase, String filename, long total, AtomicLong counter) {
+		sample();
+
+		Track t = new Track();
+		t.filename = filename;
+		t.total = total;
+		t.counter = counter;
+		t.prevBytes = -1;
+		t.prevTime = System.nanoTime();
+		t.prevPercent = -1;
+		tracks[phase.ordinal()] = t;
+	}
+
+	/**
+	 * 檔案完成時回報最後進度並結束追蹤
+	 *
+	 * @param filename 完成的檔案
+	 */
+	synchronized void finish(String filename) {
+		sample();
+		for (int i=0;i<tracks.length;i++) {
+			if (tracks[i] != null && tracks[i].filename.equals(filename)) {
+				tracks[i] = null;
+			}
+		}
+	}
+
+	// 讀取每個步驟的計數器，有變化時觸發進度事件
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		for (UpdateProgress.Phase phase : UpdateProgress.Phase.values()) {
+			Track t = tracks[phase.ordinal()];
+			if (t == null) {
+				continue;
+			}
+
+			long bytes = t.counter.get();
+			if (bytes == t.prevBytes) {
+				continue;
+			}
+
+			// 第一次取樣只記錄起點，之後以移動平均估計速率，重試造成進度倒退時不列入
+			if (t.prevBytes >= 0 && bytes > t.prevBytes && now > t.prevTime) {
+				double rate = (bytes - t.prevBytes) * 1e9 / (now - t.prevTime);
+				t.rate = t.rate < 0 ? rate : t.rate * (1 - EWMA_WEIGHT) + rate * EWMA_WEIGHT;
+			}
+			t.prevBytes = bytes;
+			t.prevTime = now;
+
+			long eta = -1;
+			if (t.rate > 0) {
+				eta = (long)(Math.max(0, t.total - bytes) * 1000 / t.rate);
+			}
+			UpdateProgress progress = new UpdateProgress(t.filename, phase, bytes, t.total, (long)Math.max(0, t.rate), eta);
+			trigger.onProgress(progress);
+
+			// 維持舊的進度事件
+			if (phase == UpdateProgress.Phase.TRANSFER) {
+				trigger.onFileTransferLength(t.filename, bytes);
+				if (progress.getPercent() > t.prevPercent) {
+					trigger.onFileTransfer(t.filename, progress.getPercent());
+				}
+			} else {
+				if (progress.getPercent() > t.prevPercent) {
+					trigger.onFileExtract(t.filename, progress.getPercent());
+				}
+			}
+			t.prevPercent = Math.max(t.prevPercent, progress.getPercent());
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package tacoball.com.geomancer.checkupdate;
+
+/**
+ * 依量測到的頻寬延遲乘積決定一次 Range 請求要合併幾個片段
+ *
+ * 片段大小同時決定驗證單位與請求大小，快速連線下每個 1MB 請求都要多等一次往返延遲。
+ * 合併連續片段為一個請求，讓請求傳輸時間至少是往返延遲的 TARGET_FACTOR 倍，
+ * 驗證仍然逐片段進行。請求失敗或有片段驗證失敗時合併數減半，成功時逐步放大 (AIMD)。
+ */
+class RangeCoalescer {
+
+	// 請求傳輸時間至少是往返延遲的幾倍
+	private static final int TARGET_FACTOR = 4;
+
+	// 一次請求最多合併的片段數
+	static final int MAX_PARTS = 16;
+
+	private final MirrorManager mirrors;
+	private final int partLength;
+	private int limit = MAX_PARTS;
+
+	/**
+	 * 配置請求大小調整程式
+	 *
+	 * @param mirrors    鏡像站管理程式，提供延遲與傳輸速率
+	 * @param partLength 片段大小
+	 */
+	RangeCoalescer(MirrorManager mirrors, int partLength) {
+		this.mirrors = mirrors;
+		this.partLength = partLength;
+	}
+
+	/**
+	 * 決定下一個請求合併的片段數
+	 *
+	 * @param  index   第一個片段編號，用來選擇鏡像站
+	 * @param  workers 同時下載的工作執行緒數
+	 * @param  remain  尚未領取的片段數，合併後每個工作執行緒仍要分得到片段
+	 * @return 合併的片段數，至少為 1
+	 */
+	synchronized int parts(int index, int workers, int remain) {
+		long bdp = mirrors.bandwidthDelayProduct(mirrors.select(index, 0));
+		if (bdp <= 0) {
+			return 1;
+		}
+
+		long target = bdp * TARGET_FACTOR;
+		int parts = (int)Math.min(limit, (target + partLength - 1) / partLength);
+		parts = Math.min(parts, (remain + workers - 1) / workers);
+		return Math.max(1, parts);
+	}
+
+	/**
+	 * 回報一次請求的結果
+	 *
+	 * @param success 是否一次收完且所有片段都驗證成功
+	 */
+	synchronized void report(boolean success) {
+		if (success) {
+			limit = Math.min(MAX_PARTS, limit + 1);
+		} else {
+			limit = Math.max(1, limit / 2);
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 依序下載片段 (AutoUpdateManager.DownloadMode.SEQUENTIAL)
+ *
+ * 只使用一條連線，連續未完成的片段依頻寬延遲乘積合併為一個請求。
+ */
+class SequentialDownload extends PartDownload {
+
+	SequentialDownload(TransferContext context, PartLog partLog, String filename, JsonObject fileInfo, File gzFile,
+			AtomicLong transfered, byte[] buffer) {
+		super(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+	}
+
+	/**
+	 * 依序下載壓縮檔的每個片段，連續未完成的片段依頻寬延遲乘積合併為一個請求
+	 */
+	@Override
+	void download() throws InterruptedException {
+		int partNumber = 0;
+		while (partNumber < partCount) {
+			if (partDone[partNumber]) {
+				partNumber++;
+				continue;
+			}
+
+			int count = claimParts(partNumber, 1);
+			fetchParts(partNumber, count, buffer);
+			partNumber += count;
+		}
+	}
+
+	/**
+	 * 依序下載每個片段並交給解壓縮執行緒
+	 *
+	 * @param queue       片段佇列
+	 * @param extractTask 解壓縮工作
+	 */
+	@Override
+	void receive(BlockingQueue<byte[]> queue, Future<Void> extractTask) throws InterruptedException {
+		for (int i=0;i<partCount;i++) {
+			handOver(queue, receivePart(i, buffer), extractTask);
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * 背景更新的暫存檔，全部驗證完成後才一起換入正式位置
+ *
+ * 需要更新的檔案在正式檔案目錄下的暫存目錄下載、解壓縮與驗證，更新期間正式檔案維持可用。
+ * 暫存檔與正式檔案在同一個檔案系統，以 rename 換檔是原子操作，不會出現沒有檔案可用的空窗期，
+ * 仍開著舊檔的讀取端會繼續讀到舊內容，直到收到 onFileReplaced 後重新開啟。
+ */
+class StagedUpdate {
+
+	// 暫存目錄名稱，建立在正式檔案的目錄下，rename 時不會跨檔案系統
+	private static final String STAGING_DIR = ".staging";
+
+	private final AutoUpdateAdapter trigger;
+
+	// 已驗證的暫存檔，依完成順序換入
+	private final Map<String, File>       stagedFiles = new LinkedHashMap<>();
+	private final Map<String, JsonObject> stagedLogs  = new LinkedHashMap<>();
+
+	/**
+	 * 配置背景更新
+	 *
+	 * @param trigger 事件接收器
+	 */
+	StagedUpdate(AutoUpdateAdapter trigger) {
+		this.trigger = trigger;
+	}
+
+	/**
+	 * 取得正式檔案目錄下的暫存目錄
+	 *
+	 * @param path 正式檔案目錄
+	 */
+	static File stagingDir(File path) {
+		return new File(path, STAGING_DIR);
+	}
+
+	/**
+	 * 建立暫存目錄，可以差異同步或套用變更集時先複製一份正式檔案
+	 *
+	 * @param  liveFile 正式檔案
+	 * @param  reusable 是否沿用正式檔案的內容
+	 * @return 暫存檔
+	 */
+	File stage(File liveFile, boolean reusable) throws InterruptedException {
+		File stagingDir = stagingDir(liveFile.getParentFile());
+		File stagedFile = new File(stagingDir, liveFile.getName());
+		try {
+			FileUtils.forceMkdir(stagingDir);
+			if (reusable && liveFile.exists()) {
+				FileUtils.copyFile(liveFile, stagedFile);
+			}
+		} catch(IOException ex) {
+			throw new InterruptedException("無法建立暫存檔");
+		}
+		return stagedFile;
+	}
+
+	/**
+	 * 記錄驗證完成的暫存檔，換入正式位置後才寫入更新紀錄
+	 *
+	 * @param filename   檔名
+	 * @param stagedFile 暫存檔
+	 * @param logInfo    檔案紀錄
+	 */
+	void add(String filename, File stagedFile, JsonObject logInfo) {
+		stagedFiles.put(filename, stagedFile);
+		stagedLogs.put(filename, logInfo);
+	}
+
+	/**
+	 * 以 rename 把暫存檔換入正式位置，換入後才寫入更新紀錄
+	 *
+	 * 無法換入的檔案從更新紀錄移除，下次更新時重新處理。
+	 *
+	 * @param journal       更新紀錄，已經開始寫入本次的設定值
+	 * @param previousFiles 先前的檔案紀錄
+	 */
+	void replace(UpdateJournal journal, JsonObject previousFiles) throws InterruptedException {
+		String failed = null;
+		try {
+			for (Entry<String, File> staged : stagedFiles.entrySet()) {
+				String filename = staged.getKey();
+				File stagedFile = staged.getValue();
+				File liveFile   = new File(stagedFile.getParentFile().getParentFile(), filename);
+				if (failed == null && stagedFile.renameTo(liveFile)) {
+					// 暫存目錄已經沒有其他檔案時一併移除
+					stagedFile.getParentFile().delete();
+					journal.put(filename, stagedLogs.get(filename));
+					trigger.onFileReplaced(filename);
+				} else {
+					if (previousFiles.has(filename)) {
+						journal.remove(filename);
+					}
+					if (failed == null) {
+						failed = filename;
+					}
+				}
+			}
+		} catch(IOException ex) {
+			throw new InterruptedException("無法儲存更新紀錄");
+		} finally {
+			stagedFiles.clear();
+			stagedLogs.clear();
+		}
+
+		if (failed != null) {
+			throw new InterruptedException(String.format(Locale.getDefault(), "無法以暫存檔取代 %s", failed));
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 串流下載 (AutoUpdateManager.DownloadMode.STREAM)
+ *
+ * 以單一連線向最快的鏡像站下載到檔尾，資料流經摘要計算，每收滿一個片段就結算驗證，
+ * 驗證失敗或因連線中斷沒收到的片段再以 Range 逐一補抓。
+ */
+class StreamDownload extends PartDownload {
+
+	StreamDownload(TransferContext context, PartLog partLog, String filename, JsonObject fileInfo, File gzFile,
+			AtomicLong transfered, byte[] buffer) {
+		super(context, partLog, filename, fileInfo, gzFile, transfered, buffer);
+	}
+
+	/**
+	 * 以單一連線下載整個壓縮檔，資料流經摘要計算後才寫入檔案
+	 *
+	 * 每收滿一個片段就結算摘要並與 partChecksums 比對，不需要再從檔案讀回來驗證，
+	 * 驗證失敗或因連線中斷沒收到的片段，最後再以 Range 逐一補抓。
+	 * 續傳時從第一個未完成的片段開始下載到檔尾。
+	 */
+	@Override
+	void download() throws InterruptedException {
+		boolean[] partOk = partDone.clone();
+		int partNumber = 0;
+		int partFill = 0;
+
+		// 找出第一個未完成的片段
+		while (partNumber < partCount && partOk[partNumber]) {
+			partNumber++;
+		}
+		if (partNumber == partCount) {
+			return;
+		}
+
+		MessageDigest md = newPartDigest();
+		Transport.Response conn = null;
+
+		try {
+			// 向最快的鏡像站開啟連線，從第一個未完成的片段下載到檔尾，每個片段都必須在期限內收完
+			long offset = (long)partNumber * partLength;
+			conn = context.open(context.mirrors.best(), gzPath, offset, -1);
+			context.control.guard.watch(conn, context.partDeadline);
+			InputStream in = conn.getInputStream();
+			if (!conn.isPartial()) {
+				throw new IOException("Range is not supported.");
+			}
+
+			// 讀寫失敗或取消時也要關閉壓縮檔，後面的補抓程序會重新開啟同一個檔案
+			RandomAccessFile out = new RandomAccessFile(gzFile, "rw");
+			try {
+				out.seek(offset);
+
+				while (partNumber < partCount) {
+					int ioLen = in.read(buffer, 0, Math.min(BufferPool.BUFFER_SIZE, partLength - partFill)); // -1 表示讀完
+					if (ioLen == -1) break;
+
+					md.update(buffer, 0, ioLen);
+					out.write(buffer, 0, ioLen);
+					partFill += ioLen;
+					transfered.addAndGet(ioLen);
+
+					// 收滿一個片段時結算摘要
+					if (partFill == partLength) {
+						partOk[partNumber] = verifyStreamedPart(partNumber, md, partFill);
+						if (partOk[partNumber]) {
+							recordPart(partNumber);
+						}
+						partNumber++;
+						partFill = 0;
+						context.control.guard.watch(conn, context.partDeadline);
+					}
+
+					// 取消點
+					checkCanceled();
+				}
+
+				// 最後一個片段小於 1MB 會發生
+				if (partFill > 0 && partNumber < partCount) {
+					partOk[partNumber] = verifyStreamedPart(partNumber, md, partFill);
+					if (partOk[partNumber]) {
+						recordPart(partNumber);
+					}
+				}
+			} finally {
+				// 關閉 I/O
+				try {
+					out.close();
+				} finally {
+					in.close();
+				}
+			}
+		} catch(IOException ex) {
+			// 收到一半的片段不採用，交給後面的補抓程序
+			checkCanceled();
+			transfered.addAndGet(-partFill);
+			String reason = String.format(Locale.getDefault(), "串流下載於片段 #%d 中斷，改為逐片段下載", partNumber);
+			context.trigger.onFileWarning(filename, reason);
+		} finally {
+			if (conn != null) {
+				context.control.guard.release(conn);
+			}
+		}
+
+		// 補抓驗證失敗與未收到的片段
+		for (int i=0;i<partCount;i++) {
+			if (!partOk[i]) {
+				fetchPart(i, 0, buffer);
+			}
+		}
+	}
+
+	/**
+	 * 以單一連線下載整個壓縮檔，每收滿一個片段就驗證並交給解壓縮執行緒
+	 *
+	 * 驗證失敗的片段立即以 Range 補抓，維持片段順序；連線中斷時剩下的片段改為逐一下載。
+	 *
+	 * @param queue       片段佇列
+	 * @param extractTask 解壓縮工作
+	 */
+	@Override
+	void receive(BlockingQueue<byte[]> queue, Future<Void> extractTask) throws InterruptedException {
+		int partNumber = 0;
+		ByteArrayOutputStream part = new ByteArrayOutputStream(partLength);
+		MessageDigest md = newPartDigest();
+		Transport.Response conn = null;
+
+		try {
+			// 向最快的鏡像站開啟連線，不指定範圍，每個片段都必須在期限內收完
+			conn = context.open(context.mirrors.best(), gzPath, 0, -1);
+			context.control.guard.watch(conn, context.partDeadline);
+			InputStream in = conn.getInputStream();
+
+			while (partNumber < partCount) {
+				int ioLen = in.read(buffer, 0, Math.min(BufferPool.BUFFER_SIZE, partLength - part.size())); // -1 表示讀完
+				if (ioLen != -1) {
+					md.update(buffer, 0, ioLen);
+					part.write(buffer, 0, ioLen);
+					transfered.addAndGet(ioLen);
+
+					// 取消點
+					checkCanceled();
+				}
+
+				// 收滿一個片段，或是收到最後一個不足 1MB 的片段時結算摘要
+				if (part.size() == partLength || (ioLen == -1 && part.size() > 0)) {
+					if (verifyStreamedPart(partNumber, md, part.size())) {
+						handOver(queue, part.toByteArray(), extractTask);
+					} else {
+						handOver(queue, receivePart(partNumber, buffer), extractTask);
+					}
+					part.reset();
+					partNumber++;
+					context.control.guard.watch(conn, context.partDeadline);
+				}
+
+				if (ioLen == -1) break;
+			}
+
+			in.close();
+		} catch(IOException ex) {
+			// 收到一半的片段不採用，交給後面的補抓程序
+			checkCanceled();
+			transfered.addAndGet(-part.size());
+			String reason = String.format(Locale.getDefault(), "串流下載於片段 #%d 中斷，改為逐片段下載", partNumber);
+			context.trigger.onFileWarning(filename, reason);
+		} finally {
+			if (conn != null) {
+				context.control.guard.release(conn);
+			}
+		}
+
+		// 補抓未收到的片段
+		for (int i=partNumber;i<partCount;i++) {
+			handOver(queue, receivePart(i, buffer), extractTask);
+		}
+	}
+
+}
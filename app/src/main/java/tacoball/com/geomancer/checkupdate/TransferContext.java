@@ -0,0 +1,182 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 片段與區塊下載共用的傳輸資源，載入更新資訊並配置鏡像站後建立
+ *
+ * 包含鏡像站、請求合併、壓縮格式、片段設定值與下載模式，以及以 Range 傳輸一段資料的程序。
+ * 跨檔案管線的下載階段以 fork() 沿用同一組鏡像站與請求合併的量測結果，取消與連線看守則各自獨立。
+ */
+class TransferContext {
+
+	final TransferControl   control;
+	final AutoUpdateAdapter trigger;
+	final MirrorManager     mirrors;
+	final RangeCoalescer    coalescer;
+	final Codec  codec;
+	final String partDigest;
+	final int    partLength;
+	final int    connectTimeout;
+	final long   partDeadline;
+	final AutoUpdateManager.DownloadMode downloadMode;
+	final int    parallelParts;
+
+	/**
+	 * 配置傳輸資源
+	 *
+	 * @param control        取消與連線看守
+	 * @param trigger        事件產生器，用於警告訊息
+	 * @param mirrors        鏡像站
+	 * @param codec          壓縮格式
+	 * @param partDigest     片段摘要演算法
+	 * @param partLength     片段大小
+	 * @param connectTimeout 連線逾時 (毫秒)
+	 * @param partDeadline   每個片段的傳輸期限 (毫秒)
+	 * @param downloadMode   下載模式
+	 * @param parallelParts  平行下載的連線數
+	 */
+	TransferContext(TransferControl control, AutoUpdateAdapter trigger, MirrorManager mirrors, Codec codec, String partDigest,
+			int partLength, int connectTimeout, long partDeadline, AutoUpdateManager.DownloadMode downloadMode, int parallelParts) {
+		this(control, trigger, mirrors, new RangeCoalescer(mirrors, partLength), codec, partDigest,
+			partLength, connectTimeout, partDeadline, downloadMode, parallelParts);
+	}
+
+	private TransferContext(TransferControl control, AutoUpdateAdapter trigger, MirrorManager mirrors, RangeCoalescer coalescer,
+			Codec codec, String partDigest, int partLength, int connectTimeout, long partDeadline,
+			AutoUpdateManager.DownloadMode downloadMode, int parallelParts) {
+		this.control = control;
+		this.trigger = trigger;
+		this.mirrors = mirrors;
+		this.coalescer = coalescer;
+		this.codec = codec;
+		this.partDigest = partDigest;
+		this.partLength = partLength;
+		this.connectTimeout = connectTimeout;
+		this.partDeadline = partDeadline;
+		this.downloadMode = downloadMode;
+		this.parallelParts = parallelParts;
+	}
+
+	/**
+	 * 配置另一條下載流程使用的傳輸資源，沿用鏡像站與請求合併，取消與連線看守各自獨立
+	 *
+	 * @param  trigger 事件產生器
+	 * @return 傳輸資源
+	 */
+	TransferContext fork(AutoUpdateAdapter trigger) {
+		TransferControl forked = new TransferControl(control.retryBaseDelay, control.retryMaxDelay);
+		return new TransferContext(forked, trigger, mirrors, coalescer, codec, partDigest,
+			partLength, connectTimeout, partDeadline, downloadMode, parallelParts);
+	}
+
+	/**
+	 * 傳輸迴圈的取消點，只有真的取消時才產生進度訊息
+	 *
+	 * @param filename   檔名
+	 * @param transfered 目前檔案的傳輸量
+	 */
+	void checkCanceled(String filename, AtomicLong transfered) throws InterruptedException {
+		if (control.isCanceled()) {
+			String progress = String.format(Locale.getDefault(), "下載 %s %d bytes 時", filename, transfered.get());
+			control.checkCanceled(progress);
+		}
+	}
+
+	/**
+	 * 以 HTTP Range 傳輸一段資料
+	 *
+	 * 由鏡像站管理程式依片段編號與嘗試次數選擇鏡像站，並回報傳輸結果，
+	 * 讓之後的片段優先使用較快的鏡像站。
+	 *
+	 * @param  filename   檔名，用於警告訊息
+	 * @param  transfered 目前檔案的傳輸量
+	 * @param  path       相對於更新資訊的檔案路徑
+	 * @param  offset     起始位置
+	 * @param  length     長度上限
+	 * @param  unit       單位名稱，用於警告訊息
+	 * @param  index      片段或區塊編號，用於警告訊息與分配鏡像站
+	 * @param  attempt    第幾次嘗試，重試時改用其他鏡像站
+	 * @param  buffer     傳輸用緩衝區
+	 * @param  out        輸出位置
+	 * @return 傳輸量
+	 */
+	int transferRange(String filename, AtomicLong transfered, String path, long offset, int length, String unit,
+			int index, int attempt, byte[] buffer, OutputStream out) throws InterruptedException {
+		// 配置傳輸資源
+		int ptxLen = 0;
+		MirrorManager.Mirror mirror = mirrors.select(index, attempt);
+		Transport.Response conn = null;
+
+		try {
+			// 開啟範圍請求，整段資料必須在期限內傳完，合併多個片段的請求依片段數放寬期限
+			long begin = System.nanoTime();
+			conn = open(mirror, path, offset, length);
+			control.guard.watch(conn, partDeadline * Math.max(1, (length + partLength - 1) / partLength));
+			InputStream in = conn.getInputStream();
+			if (!conn.isPartial()) {
+				throw new IOException("Range is not supported.");
+			}
+			long firstByte = System.nanoTime();
+
+			// 不支援範圍請求的來源對從頭開始的請求會回應整個檔案，只讀取要求的長度
+			do {
+				int ioLen = in.read(buffer, 0, Math.min(buffer.length, length - ptxLen)); // -1 表示讀完
+
+				// 最後一個片段小於 1MB 會發生
+				if (ioLen == -1) break;
+
+				out.write(buffer, 0, ioLen);
+				ptxLen += ioLen;
+				transfered.addAndGet(ioLen);
+
+				// 取消點
+				checkCanceled(filename, transfered);
+			} while(ptxLen < length);
+
+			// 關閉 I/O
+			in.close();
+			mirrors.report(mirror, firstByte - begin, System.nanoTime() - firstByte, ptxLen);
+		} catch(FileNotFoundException ex) {
+			// 鏡像站沒有這個檔案 (例如沒有放未壓縮檔) 不算鏡像站失敗，不影響其他檔案的鏡像站選擇
+			String reason = String.format(Locale.getDefault(), "%s 沒有 %s，無法下載%s #%d", mirror, path, unit, index);
+			trigger.onFileWarning(filename, reason);
+		} catch(IOException ex) {
+			// 取消造成的連線中斷不算鏡像站失敗
+			checkCanceled(filename, transfered);
+			mirrors.fail(mirror);
+			String reason = String.format(Locale.getDefault(), "從 %s 下載%s #%d 發生異常 (%s)", mirror, unit, index, ex.getMessage());
+			trigger.onFileWarning(filename, reason);
+		} finally {
+			if (conn != null) {
+				control.guard.release(conn);
+			}
+		}
+
+		return ptxLen;
+	}
+
+	/**
+	 * 開啟鏡像站上一個檔案的一段範圍，讀取逾時依鏡像站延遲放寬
+	 *
+	 * 呼叫端要以 control.guard.watch() 設定傳輸期限，用完後 control.guard.release()。
+	 *
+	 * @param  mirror 鏡像站
+	 * @param  path   相對於更新資訊的檔案路徑
+	 * @param  offset 起始位置
+	 * @param  length 長度，-1 表示到檔尾
+	 * @return 回應
+	 */
+	Transport.Response open(MirrorManager.Mirror mirror, String path, long offset, long length) throws IOException {
+		Transport.Request request = new Transport.Request()
+			.range(offset, length)
+			.timeouts(connectTimeout, mirrors.timeout(mirror));
+		return mirror.open(path, request);
+	}
+
+}
@@ -0,0 +1,97 @@
+package tacoball.com.geomancer.checkupdate;
+
+/**
+ * 下載流程的取消旗標、連線看守與重試等待
+ *
+ * 更新工作與跨檔案管線的下載階段各有一份，取消時中斷所有開啟中的連線並立即喚醒重試等待，
+ * 停止下載階段不會影響更新工作的連線。
+ */
+class TransferControl {
+
+	// 看守開啟中的連線，取消時一併中斷
+	final ConnectionGuard guard = new ConnectionGuard();
+
+	// 重試等待時間的基準與上限 (毫秒)
+	final long retryBaseDelay;
+	final long retryMaxDelay;
+
+	// 重試等待時以 cancelLock 等待，取消時立即喚醒
+	private final Object cancelLock = new Object();
+
+	// 取消旗標，由其他執行緒設定
+	private volatile boolean canceled;
+
+	/**
+	 * 配置下載流程控制
+	 *
+	 * @param retryBaseDelay 第一次重試的等待時間 (毫秒)
+	 * @param retryMaxDelay  重試等待時間上限 (毫秒)
+	 */
+	TransferControl(long retryBaseDelay, long retryMaxDelay) {
+		this.retryBaseDelay = retryBaseDelay;
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	/**
+	 * 取消下載流程，中斷開啟中的連線並喚醒重試等待
+	 */
+	void cancel() {
+		canceled = true;
+		guard.abortAll();
+		synchronized (cancelLock) {
+			cancelLock.notifyAll();
+		}
+	}
+
+	/**
+	 * 是否已取消
+	 */
+	boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * 取消點，已取消時以進度訊息中斷
+	 *
+	 * @param progress 中斷時的進度訊息
+	 */
+	void checkCanceled(String progress) throws InterruptedException {
+		if (canceled) {
+			throw new InterruptedException(progress);
+		}
+	}
+
+	/**
+	 * 重試前等待，等待時間依重試次數指數成長並加上隨機抖動，避免所有連線同時重試
+	 *
+	 * 第 n 次重試等待 base * 2^(n-1) 的一半到全部之間 (不超過上限)，取消時立即結束等待。
+	 *
+	 * @param retry 第幾次重試 (從 1 開始)
+	 */
+	void backoff(int retry) throws InterruptedException {
+		if (retry <= 0 || retryBaseDelay <= 0) {
+			return;
+		}
+
+		long delay = retryBaseDelay << Math.min(retry - 1, 16);
+		delay = Math.min(delay, retryMaxDelay);
+		delay = delay / 2 + (long)(Math.random() * (delay / 2 + 1));
+
+		long until = System.currentTimeMillis() + delay;
+		synchronized (cancelLock) {
+			long remaining;
+			while (!canceled && (remaining = until - System.currentTimeMillis()) > 0) {
+				cancelLock.wait(remaining);
+			}
+		}
+		checkCanceled("重試等待時");
+	}
+
+	/**
+	 * 結束下載流程，停止連線看守
+	 */
+	void shutdown() {
+		guard.shutdown();
+	}
+
+}
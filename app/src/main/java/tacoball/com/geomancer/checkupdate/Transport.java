@@ -0,0 +1,153 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 更新檔傳輸方式，依位置的 scheme 選用，例如 http、https 與 file
+ *
+ * 更新資訊、壓縮檔片段與區塊都經由傳輸方式讀取，之後的驗證流程完全相同，
+ * 所以從 SD 卡或 USB 隨身碟側載的更新檔與從鏡像站下載的一樣要通過片段摘要與 Merkle 樹檢查。
+ */
+public interface Transport {
+
+	/**
+	 * 開啟資源
+	 *
+	 * 實作可以延後到第一次取得回應內容或狀態時才真正連線，
+	 * 呼叫端因此能先設定傳輸期限，連線階段卡住時也能中斷。
+	 *
+	 * @param  location 資源位置
+	 * @param  request  請求條件
+	 * @return 回應，用完必須關閉
+	 */
+	Response open(String location, Request request) throws IOException;
+
+	/**
+	 * 請求條件
+	 */
+	class Request {
+
+		private long    offset = 0;
+		private long    length = -1;
+		private int     connectTimeout = 10000;
+		private int     readTimeout = 15000;
+		private boolean compressed = false;
+		private String  etag;
+		private String  lastModified;
+
+		/**
+		 * 只讀取一段範圍
+		 *
+		 * @param offset 起始位置
+		 * @param length 長度，-1 表示到檔尾
+		 */
+		Request range(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+			return this;
+		}
+
+		/**
+		 * 設定逾時
+		 *
+		 * @param connectMillis 連線逾時 (毫秒)
+		 * @param readMillis    讀取逾時 (毫秒)
+		 */
+		Request timeouts(int connectMillis, int readMillis) {
+			this.connectTimeout = connectMillis;
+			this.readTimeout = readMillis;
+			return this;
+		}
+
+		/**
+		 * 接受壓縮傳輸，回應內容由傳輸方式負責解壓縮，只用於 JSON
+		 */
+		Request compressed() {
+			this.compressed = true;
+			return this;
+		}
+
+		/**
+		 * 條件式請求，資源沒有異動時 isNotModified() 回傳 true 且不傳輸內容
+		 *
+		 * @param etag         上次的 ETag，可以是 null
+		 * @param lastModified 上次的 Last-Modified，可以是 null
+		 */
+		Request ifChanged(String etag, String lastModified) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			return this;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public int getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public int getReadTimeout() {
+			return readTimeout;
+		}
+
+		public boolean isCompressed() {
+			return compressed;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+	}
+
+	/**
+	 * 回應
+	 */
+	interface Response extends Closeable {
+
+		/**
+		 * 回應內容，範圍請求時從指定的起始位置開始
+		 */
+		InputStream getInputStream() throws IOException;
+
+		/**
+		 * 條件式請求的資源是否沒有異動
+		 */
+		boolean isNotModified() throws IOException;
+
+		/**
+		 * 是否依要求只回應指定的範圍，不支援範圍請求的來源會回應整個檔案
+		 *
+		 * 從頭開始的請求收到整個檔案也視為符合，呼叫端必須自行在要求的長度停止讀取。
+		 */
+		boolean isPartial() throws IOException;
+
+		/**
+		 * 資源的 ETag，沒有時回傳 null
+		 */
+		String getEtag();
+
+		/**
+		 * 資源的修改時間 (HTTP 日期格式)，沒有時回傳 null
+		 */
+		String getLastModified();
+
+		/**
+		 * 中斷傳輸，可以從其他執行緒呼叫，卡在讀取的執行緒會收到 IOException
+		 */
+		void abort();
+
+	}
+
+}
@@ -0,0 +1,54 @@
+package tacoball.com.geomancer.checkupdate;
+
+/**
+ * 更新工作控制介面，用來取消或等待一次檢查更新或檔案更新
+ */
+public class UpdateJob {
+
+	private UpdateSession session;
+	private Thread thread;
+
+	/**
+	 * 配置工作控制介面
+	 *
+	 * @param session 更新工作
+	 * @param thread  執行工作的執行緒
+	 */
+	UpdateJob(UpdateSession session, Thread thread) {
+		this.session = session;
+		this.thread = thread;
+	}
+
+	/**
+	 * 取消工作，工作會在下一個檢查點中斷並回報 onUserCancel
+	 */
+	public void cancel() {
+		session.cancel();
+	}
+
+	/**
+	 * 等待工作結束
+	 */
+	public void join() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * 等待工作結束，最多等待指定的時間
+	 *
+	 * @param  millis 等待時間 (毫秒)
+	 * @return 工作是否已結束
+	 */
+	public boolean join(long millis) throws InterruptedException {
+		thread.join(millis);
+		return isDone();
+	}
+
+	/**
+	 * 工作是否已結束
+	 */
+	public boolean isDone() {
+		return !thread.isAlive();
+	}
+
+}
@@ -0,0 +1,376 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 更新紀錄，以快照檔加上只附加的日誌檔保存
+ *
+ * 快照檔 (update-log.json) 維持原本的更新紀錄格式：
+ * {
+ *   "config": { 更新資訊設定值 },
+ *   "files": { "檔名": { "mtime": ..., "checksum": ..., ... }, ... }
+ * }
+ *
+ * 每個檔案更新完成後只在日誌檔 (update-log.journal) 附加一行異動，不必重寫整個紀錄：
+ * {"config": { 設定值 }, "reset": true}   更換設定值，reset 表示清除所有檔案紀錄
+ * {"put": "檔名", "info": { 檔案紀錄 }}   新增或取代檔案紀錄
+ * {"remove": "檔名"}                     移除檔案紀錄
+ *
+ * 載入時以快照檔為基礎依序重播日誌，不完整的一行 (寫入中斷) 忽略，之後的日誌從新的一行開始附加。
+ * 日誌每 SYNC_BATCH 筆或結束時才 fsync，中斷時遺失的紀錄只會讓檔案下次重新驗證。
+ * 日誌筆數超過檔案數 (至少 COMPACT_MIN 筆) 時，把目前狀態寫成新的快照並清空日誌。
+ *
+ * 檢查更新、檔案更新與離線檢查可能同時存取同一份紀錄，所以同一個紀錄檔位置只有一個實例，
+ * 以 open() 取得、close() 歸還，所有異動都經過同一份記憶體中的狀態與同一個日誌檔寫入端，
+ * 壓縮時寫入的快照一定包含其他使用者的異動。最後一個使用者歸還後，下次 open() 才重新從檔案載入。
+ */
+class UpdateJournal {
+
+	static final String SNAPSHOT = "update-log.json";
+	static final String JOURNAL  = "update-log.journal";
+
+	// 累積幾筆異動做一次 fsync
+	private static final int SYNC_BATCH = 16;
+
+	// 日誌至少累積幾筆才壓縮
+	private static final int COMPACT_MIN = 32;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// 日誌一筆一行，快照也不需要縮排
+	private static final Gson GSON = new Gson();
+
+	// 使用中的實例，依紀錄檔位置區分
+	private static final Map<File, UpdateJournal> OPENED = new HashMap<>();
+
+	private final File logPath;
+	private final File snapshotFile;
+	private final File journalFile;
+	private int users;
+
+	private JsonObject state;
+	private boolean loaded;
+	private int journalRecords;
+	private int pendingRecords;
+	private FileOutputStream journalOut;
+	private Writer journalWriter;
+
+	private UpdateJournal(File logPath) {
+		this.logPath = logPath;
+		this.snapshotFile = new File(logPath, SNAPSHOT);
+		this.journalFile = new File(logPath, JOURNAL);
+	}
+
+	/**
+	 * 取得紀錄檔位置的更新紀錄，用完必須呼叫 close()
+	 *
+	 * @param  logPath 紀錄檔存放位置
+	 * @return 這個位置共用的更新紀錄
+	 */
+	static UpdateJournal open(File logPath) {
+		synchronized (OPENED) {
+			File key = logPath.getAbsoluteFile();
+			UpdateJournal journal = OPENED.get(key);
+			if (journal == null) {
+				journal = new UpdateJournal(key);
+				OPENED.put(key, journal);
+			}
+			journal.users++;
+			return journal;
+		}
+	}
+
+	/**
+	 * 載入更新紀錄，不寫入時使用
+	 *
+	 * @param  logPath 紀錄檔存放位置
+	 * @return 更新紀錄，不存在或損毀時回傳 null
+	 */
+	static JsonObject read(File logPath) {
+		UpdateJournal journal = open(logPath);
+		try {
+			return journal.load();
+		} catch(IOException|JsonParseException|IllegalStateException ex) {
+			return null;
+		} finally {
+			try {
+				journal.close();
+			} catch(IOException ex) {
+				// 只有讀取，沒有需要寫入的紀錄
+			}
+		}
+	}
+
+	/**
+	 * 最後一次寫入紀錄的時間
+	 *
+	 * @param logPath 紀錄檔存放位置
+	 */
+	static long lastModified(File logPath) {
+		return Math.max(new File(logPath, SNAPSHOT).lastModified(), new File(logPath, JOURNAL).lastModified());
+	}
+
+	/**
+	 * 紀錄檔的長度與修改時間，用來判斷紀錄是否有異動
+	 *
+	 * @param logPath 紀錄檔存放位置
+	 */
+	static String fingerprint(File logPath) {
+		File snapshot = new File(logPath, SNAPSHOT);
+		File journal  = new File(logPath, JOURNAL);
+		return snapshot.length() + ":" + snapshot.lastModified() + ":" + journal.length() + ":" + journal.lastModified();
+	}
+
+	/**
+	 * 取得目前的更新紀錄，第一次使用時載入快照並重播日誌
+	 *
+	 * @return 更新紀錄的複本，快照與日誌都不存在時回傳 null
+	 */
+	synchronized JsonObject load() throws IOException {
+		if (!loaded) {
+			readFiles();
+			loaded = true;
+		}
+		return (state != null) ? state.deepCopy() : null;
+	}
+
+	/**
+	 * 以指定的設定值開始寫入，寫入一筆更換設定值的日誌
+	 *
+	 * @param config 本次更新的設定值
+	 * @param reset  是否清除先前所有檔案紀錄
+	 */
+	synchronized void begin(JsonObject config, boolean reset) throws IOException {
+		JsonObject record = new JsonObject();
+		record.add("config", config);
+		record.addProperty("reset", reset);
+		write(record);
+	}
+
+	/**
+	 * 新增或取代檔案紀錄
+	 *
+	 * @param filename 檔名
+	 * @param info     檔案紀錄
+	 */
+	synchronized void put(String filename, JsonObject info) throws IOException {
+		JsonObject record = new JsonObject();
+		record.addProperty("put", filename);
+		record.add("info", info.deepCopy());
+		write(record);
+	}
+
+	/**
+	 * 移除檔案紀錄
+	 *
+	 * @param filename 檔名
+	 */
+	synchronized void remove(String filename) throws IOException {
+		JsonObject record = new JsonObject();
+		record.addProperty("remove", filename);
+		write(record);
+	}
+
+	/**
+	 * 把尚未 fsync 的日誌寫入儲存裝置
+	 */
+	synchronized void sync() throws IOException {
+		if (journalWriter != null && pendingRecords > 0) {
+			journalWriter.flush();
+			journalOut.getFD().sync();
+			pendingRecords = 0;
+		}
+	}
+
+	/**
+	 * 歸還更新紀錄，把日誌寫入儲存裝置；最後一個使用者歸還時結束寫入，日誌太長時壓縮為新的快照
+	 */
+	void close() throws IOException {
+		synchronized (OPENED) {
+			synchronized (this) {
+				sync();
+				if (users == 0 || --users > 0) {
+					return;
+				}
+				OPENED.remove(logPath);
+
+				if (journalWriter != null) {
+					journalWriter.close();
+					journalWriter = null;
+					journalOut = null;
+				}
+
+				if (state != null && journalRecords > Math.max(COMPACT_MIN, state.getAsJsonObject("files").size())) {
+					compact();
+				}
+			}
+		}
+	}
+
+	// 載入快照並重播日誌
+	private void readFiles() throws IOException {
+		state = null;
+		journalRecords = 0;
+
+		if (snapshotFile.exists()) {
+			JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(snapshotFile), UTF8));
+			try {
+				JsonElement root = new JsonParser().parse(reader);
+				if (root.isJsonObject()) {
+					state = root.getAsJsonObject();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		if (journalFile.exists()) {
+			if (state == null) {
+				state = emptyState();
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					JsonObject record;
+					try {
+						record = new JsonParser().parse(line).getAsJsonObject();
+					} catch(JsonParseException|IllegalStateException ex) {
+						// 寫入中斷的一行
+						continue;
+					}
+					replay(record);
+					journalRecords++;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	// 套用一筆異動並附加到日誌，紀錄不存在或損毀時從空紀錄開始
+	private void write(JsonObject record) throws IOException {
+		if (!loaded) {
+			try {
+				readFiles();
+			} catch(JsonParseException|IllegalStateException ex) {
+				state = null;
+			}
+			loaded = true;
+		}
+		if (state == null) {
+			state = emptyState();
+		}
+
+		replay(record);
+		append(record);
+	}
+
+	/**
+	 * 把目前狀態寫成新的快照並清空日誌
+	 *
+	 * 快照先寫入暫存檔並 fsync 後才換入，換入後、清空日誌前中斷時，重播日誌會得到相同的結果。
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(fos, UTF8)));
+		try {
+			GSON.toJson(state, writer);
+			writer.flush();
+			fos.getFD().sync();
+		} finally {
+			writer.close();
+		}
+
+		if (!tmp.renameTo(snapshotFile)) {
+			// 部分檔案系統不允許直接覆蓋
+			if (!snapshotFile.delete() || !tmp.renameTo(snapshotFile)) {
+				throw new IOException("無法取代更新紀錄快照");
+			}
+		}
+
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("無法清空更新紀錄日誌");
+		}
+		journalRecords = 0;
+	}
+
+	// 附加一筆日誌，累積到 SYNC_BATCH 筆時 fsync
+	private void append(JsonObject record) throws IOException {
+		if (journalWriter == null) {
+			boolean torn = endsWithPartialLine();
+			journalOut = new FileOutputStream(journalFile, true);
+			journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, UTF8));
+			if (torn) {
+				journalWriter.write('\n');
+			}
+		}
+
+		journalWriter.write(GSON.toJson(record));
+		journalWriter.write('\n');
+		journalRecords++;
+		pendingRecords++;
+		if (pendingRecords >= SYNC_BATCH) {
+			sync();
+		}
+	}
+
+	// 日誌最後一行是否寫入中斷 (沒有換行結尾)
+	private boolean endsWithPartialLine() throws IOException {
+		if (journalFile.length() == 0) {
+			return false;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() != '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	// 沒有任何紀錄時的結構
+	private static JsonObject emptyState() {
+		JsonObject empty = new JsonObject();
+		empty.add("files", new JsonObject());
+		return empty;
+	}
+
+	// 重播一筆日誌
+	private void replay(JsonObject record) {
+		if (record.has("config")) {
+			state.add("config", record.get("config"));
+			if (record.has("reset") && record.get("reset").getAsBoolean()) {
+				state.add("files", new JsonObject());
+			}
+		} else if (record.has("put")) {
+			state.getAsJsonObject("files").add(record.get("put").getAsString(), record.get("info"));
+		} else if (record.has("remove")) {
+			state.getAsJsonObject("files").remove(record.get("remove").getAsString());
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package tacoball.com.geomancer.checkupdate;
+
+/**
+ * 更新進度快照，依固定頻率產生，內容不會再變動
+ */
+public class UpdateProgress {
+
+	/**
+	 * 進度所屬的步驟
+	 */
+	public enum Phase {
+		TRANSFER, // 下載
+		EXTRACT   // 解壓縮
+	}
+
+	private final String filename;
+	private final Phase  phase;
+	private final long   bytes;
+	private final long   totalBytes;
+	private final int    percent;
+	private final long   bytesPerSecond;
+	private final long   etaMillis;
+
+	UpdateProgress(String filename, Phase phase, long bytes, long totalBytes, long bytesPerSecond, long etaMillis) {
+		this.filename = filename;
+		this.phase = phase;
+		this.bytes = bytes;
+		this.totalBytes = totalBytes;
+		this.percent = totalBytes > 0 ? (int)Math.min(100, bytes * 100 / totalBytes) : 0;
+		this.bytesPerSecond = bytesPerSecond;
+		this.etaMillis = etaMillis;
+	}
+
+	/**
+	 * 更新中檔案
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * 進度所屬的步驟
+	 */
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * 已處理的資料量
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * 這個步驟的總資料量
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * 進度百分比
+	 */
+	public int getPercent() {
+		return percent;
+	}
+
+	/**
+	 * 近期的處理速率 (bytes/s)
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * 預估剩餘時間 (毫秒)，速率未知時為 -1
+	 */
+	public long getEtaMillis() {
+		return etaMillis;
+	}
+
+}
@@ -0,0 +1,1349 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次更新或檢查更新工作
+ *
+ * 每個工作有自己的更新資訊、更新紀錄、片段設定值與緩衝區，
+ * 同時執行的檢查更新與檔案更新不會互相干擾。設定值在建立工作時從 AutoUpdateManager 複製，
+ * 工作進行中變更設定不影響這次工作。
+ *
+ * 工作本身只決定每個檔案的更新流程，壓縮檔片段的下載交給 PartDownload 依下載模式選擇的實作，
+ * 區塊差異同步與修復交給 BlockSync，跨檔案管線的下載階段交給 Prefetcher。
+ * 本地檔案驗證交給 FileVerifier，變更集串接與套用交給 ChangesetUpdate，背景更新的暫存檔交給 StagedUpdate。
+ */
+class UpdateSession {
+
+	// 建立工作時複製的設定值
+	private final String baseUrl;
+	private final File logPath;
+	private final File filePath;
+	private final Map<String, File> movePath;
+	private final Map<String, ChangesetApplier> changesetAppliers;
+	private final Map<String, Codec> codecs;
+	private final Map<String, Transport> transports;
+	private final List<AutoUpdateAdapter> listenerList;
+	private final AutoUpdateManager.DownloadMode downloadMode;
+	private final int parallelParts;
+	private final boolean pipelinedExtract;
+	private final boolean deepVerify;
+	private final boolean stagedUpdate;
+	private final long progressInterval;
+	private final int  connectTimeout;
+	private final int  readTimeout;
+	private final long partDeadline;
+	private final List<String> mirrorUrls;
+	private final List<String> peerUrls;
+	private final boolean peerDiscovery;
+	private final int     discoveryPort;
+	private final String  selfPeerId;
+
+	// 更新資訊以及更新紀錄
+	private Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	private JsonObject updateInfo;
+	private JsonObject previousUpdateLog;
+	private JsonObject currentUpdateLog;
+	private UpdateJournal journal;
+	private boolean       journalReset;
+	private PartLog    partLog;
+	private MirrorManager mirrors;
+	private PeerManager   peers;
+	private ManifestCache manifestCache;
+	private boolean       manifestUnchanged;
+	private FileVerifier  verifier;
+	private StagedUpdate  staged;
+	private ProgressReporter  reporter;
+	private TransferContext   context;
+
+	// 跨檔案管線的下載階段 (見 Prefetcher)，以及還沒接手與已接手但還沒用到的下載結果
+	private volatile Prefetcher prefetcher;
+	private final List<String> prefetchPending = new ArrayList<>();
+	private final Map<String, Prefetcher.Prefetched> prefetchedFiles = new HashMap<>();
+
+	// 每一個更新項目用到的值
+	private String currentFilename;
+	private File currentFile;
+	private File currentGzFile;
+	private JsonObject currentFileInfo;
+	private final AtomicLong currentTransfered = new AtomicLong();
+	private final AtomicLong currentExtracted  = new AtomicLong();
+	private BlockIndex currentBlockIndex;
+
+	// 片段設定值，由更新資訊決定
+	private String digest      = "MD5";   // 摘要演算法，用於檔案摘要、區塊摘要與 Merkle 樹
+	private int    partLength  = 1048576; // 片段大小
+	private int    blockLength = 1048576; // 差異同步區塊大小
+	private Codec  codec;                 // 壓縮格式
+
+	// 取消旗標、連線看守與重試等待
+	private final TransferControl control;
+
+	// 工作執行緒的緩衝區，用在 "摘要計算" 與 "片段下載"，"解壓縮" 則使用 IOUtils
+	// 平行下載時每個工作執行緒另外向 BufferPool 借用
+	private byte[] buffer;
+
+	// 邊下載邊解壓縮時，等待解壓縮的片段數上限
+	private static final int PIPELINE_DEPTH = 4;
+
+	// 邊下載邊解壓縮時的暫存檔副檔名，驗證後才取代舊檔
+	private static final String EXTRACTING_SUFFIX = ".extracting";
+
+	// 量測鏡像站時下載的資料量
+	private static final int PROBE_LENGTH = 65536;
+
+	// 等待區域網路節點回覆探索請求的時間
+	private static final int DISCOVERY_TIMEOUT = 1000;
+
+	/**
+	 * 配置更新工作
+	 *
+	 * @param manager 檔案更新總管，提供設定值
+	 * @param url     更新資訊所在的網址
+	 */
+	UpdateSession(AutoUpdateManager manager, String url) {
+		// URL 防呆處理
+		if (!url.endsWith("/")) {
+			url = url + "/";
+		}
+
+		baseUrl = url;
+		logPath = manager.logPath;
+		filePath = manager.filePath;
+		movePath = new HashMap<>(manager.movePath);
+		changesetAppliers = new HashMap<>(manager.changesetAppliers);
+		codecs = new HashMap<>(manager.codecs);
+		transports = new HashMap<>(manager.transports);
+		listenerList = manager.listenerList;
+		downloadMode = manager.downloadMode;
+		parallelParts = manager.parallelParts;
+		pipelinedExtract = manager.pipelinedExtract;
+		deepVerify = manager.deepVerify;
+		stagedUpdate = manager.stagedUpdate;
+		progressInterval = manager.progressInterval;
+		connectTimeout = manager.connectTimeout;
+		readTimeout = manager.readTimeout;
+		partDeadline = manager.partDeadline;
+		control = new TransferControl(manager.retryBaseDelay, manager.retryMaxDelay);
+		mirrorUrls = new ArrayList<>(manager.mirrorUrls);
+		peerUrls = new ArrayList<>(manager.peerUrls);
+		peerDiscovery = manager.peerDiscovery;
+		discoveryPort = manager.discoveryPort;
+		selfPeerId = manager.sharingPeerId();
+	}
+
+	/**
+	 * 執行更新流程
+	 */
+	void runUpdate() {
+		buffer = BufferPool.acquire();
+		reporter = new ProgressReporter(trigger, progressInterval);
+		reporter.start();
+		try {
+			// 下載更新資訊與轉換檔案清單
+			Set<Entry<String, JsonElement>> fileSet;
+			updateInfo = loadManifest();
+			digest = updateInfo.getAsJsonObject("config").get("digest").getAsString();
+			String partDigest = digest;
+			if (updateInfo.getAsJsonObject("config").has("partDigest")) {
+				partDigest = updateInfo.getAsJsonObject("config").get("partDigest").getAsString();
+			}
+			partLength = updateInfo.getAsJsonObject("config").get("partLength").getAsInt();
+			blockLength = partLength;
+			if (updateInfo.getAsJsonObject("config").has("blockLength")) {
+				blockLength = updateInfo.getAsJsonObject("config").get("blockLength").getAsInt();
+			}
+			codec = selectCodec(updateInfo.getAsJsonObject("config"));
+			fileSet = updateInfo.getAsJsonObject("files").entrySet();
+			interruptUpdate("下載更新資訊後", false);
+
+			// 配置鏡像站，應用程式與更新資訊提供的鏡像站都列入，以第一個檔案量測速度
+			// 從本地目錄側載時不使用鏡像站，更新檔必須完整
+			mirrors = new MirrorManager(baseUrl, selectTransport(baseUrl), partLength, connectTimeout, readTimeout);
+			if (!"file".equals(scheme(baseUrl))) {
+				for (String url : mirrorUrls) {
+					addMirror(url);
+				}
+				if (updateInfo.getAsJsonObject("config").has("mirrors")) {
+					for (JsonElement url : updateInfo.getAsJsonObject("config").getAsJsonArray("mirrors")) {
+						addMirror(url.getAsString());
+					}
+				}
+			}
+			context = new TransferContext(control, trigger, mirrors, codec, partDigest,
+				partLength, connectTimeout, partDeadline, downloadMode, parallelParts);
+			if (!fileSet.isEmpty()) {
+				String probePath = fileSet.iterator().next().getKey() + codec.extension();
+				mirrors.probe(probePath, Math.min(PROBE_LENGTH, partLength));
+			}
+			interruptUpdate("量測鏡像站後", false);
+
+			// 尋找區域網路中分享相同更新檔的節點，側載時不需要
+			if (!"file".equals(scheme(baseUrl))) {
+				peers = findPeers();
+				interruptUpdate("探索區域網路節點後", false);
+			}
+			
+			// 載入先前更新紀錄，沒有則產生一個空結構維持正常運作
+			journal = UpdateJournal.open(logPath);
+			previousUpdateLog = loadUpdateLog(UpdateJournal.read(logPath));
+			verifier = new FileVerifier(trigger, previousUpdateLog, digest, partLength, deepVerify);
+			staged = new StagedUpdate(trigger);
+			interruptUpdate("載入更新紀錄後", false);
+
+			// 載入片段下載紀錄，供中斷的下載續傳
+			partLog = PartLog.open(logPath);
+			
+			// 配置本次更新紀錄，紀錄內容不會被修改，不必深層複製
+			currentUpdateLog = new JsonObject();
+			currentUpdateLog.add("config", updateInfo.getAsJsonObject("config"));
+			
+			// 更新檔規格檢查
+			String remoteSpec = updateInfo.getAsJsonObject("config").get("spec").getAsString();
+			String localSpec  = previousUpdateLog.getAsJsonObject("config").get("spec").getAsString();
+			JsonObject files = new JsonObject();
+			journalReset = !remoteSpec.equals(localSpec);
+			if (!journalReset) {
+				// 檔案規格相同，採納先前更新紀錄跳過不用更新的檔案
+				for (Entry<String, JsonElement> e : previousUpdateLog.getAsJsonObject("files").entrySet()) {
+					files.add(e.getKey(), e.getValue());
+				}
+			}
+			currentUpdateLog.add("files", files);
+
+			// 背景更新要等檔案換入正式位置後才寫入更新紀錄
+			if (!stagedUpdate) {
+				beginJournal();
+			}
+			
+			// 確定要完整下載的檔案交給下載階段，與前一個檔案的解壓縮、驗證同時進行
+			startPrefetch(fileSet);
+
+			// 依序更新每一個檔案
+			for (Entry<String, JsonElement> fileElement : fileSet) {
+				// 計算應儲存位置
+				currentFilename = fileElement.getKey();
+				File path = movePath.containsKey(currentFilename) ? movePath.get(currentFilename) : filePath;
+				
+				// 準備更新時需要的狀態值
+				currentFileInfo = updateInfo.getAsJsonObject("files").getAsJsonObject(currentFilename);
+				currentFile = new File(path, currentFilename);
+				currentGzFile = new File(path, currentFilename + codec.extension());
+				
+				// 更新檔案，完成時已寫入更新紀錄日誌
+				update();
+
+				// 沒有用到的預先下載結果也要接手，下載階段才會繼續下一個檔案
+				if (prefetchPending.remove(currentFilename)) {
+					awaitPrefetch();
+				}
+				discardPrefetch(currentFilename);
+			}
+
+			// 背景更新的檔案全部驗證完成後一起換入
+			if (stagedUpdate) {
+				replaceStagedFiles();
+			}
+
+			// 確定更新紀錄寫入儲存裝置後才回報完成
+			try {
+				journal.sync();
+			} catch(IOException ex) {
+				interruptUpdate("無法儲存更新紀錄", true);
+			}
+			
+			// 回報全部完成
+			trigger.onComplete();
+		} catch(InterruptedException ex) {
+			if (control.isCanceled()) {
+				trigger.onUserCancel("更新作業已取消：" + ex.getMessage());
+			} else {
+				trigger.onError("更新作業異常終止：" + ex.getMessage());
+			}
+		} finally {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch(IOException ex) {
+					// 中斷時遺失的紀錄只會讓檔案下次重新驗證
+				}
+			}
+			stopPrefetch();
+			if (partLog != null) {
+				try {
+					partLog.close();
+				} catch(IOException ex) {
+					// 遺失的片段紀錄只會讓片段下次重新下載
+				}
+			}
+			reporter.stop();
+			control.shutdown();
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * 執行檢查更新流程
+	 *
+	 * @param adapter 檢查結果接收器
+	 */
+	void runCheck(CheckUpdateAdapter adapter) {
+		buffer = BufferPool.acquire();
+		try {
+			// 下載更新資訊與轉換檔案清單
+			Set<Entry<String, JsonElement>> fileSet;
+			updateInfo = loadManifest();
+			digest = updateInfo.getAsJsonObject("config").get("digest").getAsString();
+			partLength = updateInfo.getAsJsonObject("config").get("partLength").getAsInt();
+			fileSet = updateInfo.getAsJsonObject("files").entrySet();
+			
+			// 載入先前更新紀錄，沒有則產生一個空結構維持正常運作
+			previousUpdateLog = loadUpdateLog(UpdateJournal.read(logPath));
+			verifier = new FileVerifier(trigger, previousUpdateLog, digest, partLength, deepVerify);
+			
+			// 更新資訊與本地檔案都沒有異動時，沿用上次的檢查結果
+			String fingerprint = localFingerprint(fileSet);
+			JsonObject previousCheck = manifestUnchanged ? manifestCache.checkResult(fingerprint) : null;
+			if (previousCheck != null) {
+				adapter.onCheck(previousCheck.get("totalLength").getAsLong(), previousCheck.get("lastModified").getAsString());
+				return;
+			}
+
+			// 計算需要更新的檔案大小
+			long totalLength = 0;
+			String lastModified = "";
+			JsonObject localFiles = previousUpdateLog.get("files").getAsJsonObject();
+			for (Entry<String, JsonElement> fileElement : fileSet) {
+				// 1. 更新紀錄不存在需要更新              (常規檢查)
+				// 2. 更新紀錄 mtime 異動時需要更新
+				// 3. 檔案不存在需要更新                  (破壞檢查)
+				// 4. 檔案 checksum 與計算結果不符需要更新
+				boolean latest   = false;
+				String  filename = fileElement.getKey();
+				JsonObject rmtFile = fileElement.getValue().getAsJsonObject();
+				
+				if (localFiles.has(filename)) {
+					JsonObject locFile = localFiles.getAsJsonObject(filename);
+					long rmtMtime = rmtFile.get("mtime").getAsLong();
+					long locMtime = locFile.get("mtime").getAsLong();
+					if (rmtMtime <= locMtime) {
+						String locChecksum = locFile.get("checksum").getAsString();
+						File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+						File f = new File(path, filename);
+						if (f.exists() && verifier.checkLastPart(f, locChecksum, buffer)) {
+							latest = true;
+						}
+					}
+				}
+				
+				if (!latest) {
+					totalLength += rmtFile.get("length").getAsLong();
+					String date = rmtFile.get("isoTime").getAsString();
+					if (date.compareTo(lastModified) > 0) {
+						lastModified = date;
+					}
+				}
+			}
+			
+			try {
+				manifestCache.storeCheckResult(fingerprint, totalLength, lastModified);
+			} catch(IOException ex) {
+				// 快取寫入失敗只影響下次檢查的速度
+			}
+			adapter.onCheck(totalLength, lastModified);
+		} catch(InterruptedException ex) {
+			adapter.onError(ex.getMessage());
+		} finally {
+			control.shutdown();
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * 取消工作，會在下一個檢查點中斷
+	 */
+	void cancel() {
+		control.cancel();
+		Prefetcher p = prefetcher;
+		if (p != null) {
+			p.cancel();
+		}
+	}
+
+	/**
+	 * 中斷更新動作
+	 *
+	 * @param reason      中斷更新原因
+	 * @param selfAborted 是否因更新過程錯誤
+	 */
+	private void interruptUpdate(String reason, boolean selfAborted) throws InterruptedException {
+		if (control.isCanceled() || selfAborted) {
+			throw new InterruptedException(reason);
+		}
+	}
+
+	/**
+	 * 依更新資訊的 config.codec 選擇壓縮格式，沒有指定時為 gzip
+	 *
+	 * @param  config 更新資訊設定值
+	 * @return 壓縮格式
+	 */
+	private Codec selectCodec(JsonObject config) throws InterruptedException {
+		String name = config.has("codec") ? config.get("codec").getAsString() : "gzip";
+		Codec c = codecs.get(name);
+		if (c == null) {
+			interruptUpdate(String.format(Locale.getDefault(), "不支援的壓縮格式 %s", name), true);
+		}
+		return c;
+	}
+
+	/**
+	 * 依位置的 scheme 選擇傳輸方式
+	 *
+	 * @param  location 資源位置
+	 * @return 傳輸方式
+	 */
+	private Transport selectTransport(String location) throws InterruptedException {
+		Transport t = transports.get(scheme(location));
+		if (t == null) {
+			interruptUpdate(String.format(Locale.getDefault(), "不支援的傳輸方式 %s", location), true);
+		}
+		return t;
+	}
+
+	/**
+	 * 加入鏡像站，不支援的傳輸方式直接略過
+	 *
+	 * @param url 與更新資訊同一層的網址
+	 */
+	private void addMirror(String url) {
+		Transport t = transports.get(scheme(url));
+		if (t != null) {
+			mirrors.add(url, t);
+		}
+	}
+
+	/**
+	 * 找出分享更新檔的區域網路節點並載入節點索引，無法取得索引的節點直接略過
+	 *
+	 * @return 節點管理程式，沒有指定節點、沒有啟用探索或沒有找到節點時回傳 null
+	 */
+	private PeerManager findPeers() throws InterruptedException {
+		List<String> urls = new ArrayList<>(peerUrls);
+		if (peerDiscovery) {
+			urls.addAll(PeerDiscovery.discover(discoveryPort, DISCOVERY_TIMEOUT, selfPeerId));
+		}
+
+		Transport http = transports.get("http");
+		if (urls.isEmpty() || http == null) {
+			return null;
+		}
+
+		PeerManager found = new PeerManager(http, connectTimeout, readTimeout);
+		for (String url : urls) {
+			if (!"http".equals(scheme(url))) {
+				continue;
+			}
+			if (!url.endsWith("/")) {
+				url = url + "/";
+			}
+
+			Transport.Response conn = null;
+			try {
+				conn = http.open(url + PeerServer.INDEX, new Transport.Request().timeouts(connectTimeout, readTimeout));
+				control.guard.watch(conn, partDeadline);
+				found.add(url, parseJSON(conn.getInputStream()));
+			} catch(IOException|JsonParseException ex) {
+				// 節點已離線或不是分享節點
+				checkTransferCanceled();
+			} finally {
+				if (conn != null) {
+					control.guard.release(conn);
+				}
+			}
+		}
+
+		return (found.size() > 0) ? found : null;
+	}
+
+	/**
+	 * 取得位置的 scheme，沒有 scheme 的路徑視為 file
+	 *
+	 * @param location 資源位置
+	 */
+	static String scheme(String location) {
+		int colon = location.indexOf(':');
+		int slash = location.indexOf('/');
+		if (colon <= 0 || (slash >= 0 && slash < colon)) {
+			return "file";
+		}
+		return location.substring(0, colon).toLowerCase(Locale.US);
+	}
+
+	/**
+	 * 傳輸迴圈的取消點，只有真的取消時才產生進度訊息
+	 */
+	private void checkTransferCanceled() throws InterruptedException {
+		if (control.isCanceled()) {
+			String progress = String.format(Locale.getDefault(), "下載 %s %d bytes 時", currentFilename, currentTransfered.get());
+			interruptUpdate(progress, false);
+		}
+	}
+
+	/**
+	 * 解壓縮迴圈的取消點，只有真的取消時才產生進度訊息
+	 *
+	 * @param length 解壓縮後的檔案大小
+	 */
+	private void checkExtractCanceled(long length) throws InterruptedException {
+		if (control.isCanceled()) {
+			long percent = length > 0 ? currentExtracted.get() * 100 / length : 0;
+			String progress = String.format(Locale.getDefault(), "解壓縮 %s %d%% 時", currentFilename, percent);
+			interruptUpdate(progress, false);
+		}
+	}
+	
+	/**
+	 * 更新一個檔案
+	 */
+	private void update() throws InterruptedException {
+		trigger.onFileBegin(currentFilename);
+
+		// 區塊壓縮檔可以平行解壓縮，也可以只下載單一區塊修復
+		currentBlockIndex = BlockIndex.load(currentFileInfo, blockLength);
+		if (currentBlockIndex == null && currentFileInfo.has("blockIndex")) {
+			trigger.onFileWarning(currentFilename, "區塊索引與檔案長度不符，改為整個檔案依序解壓縮");
+		}
+
+		if (isExpired()) {
+			// 背景更新時改為更新暫存檔
+			if (stagedUpdate) {
+				stageCurrentFile();
+			}
+
+			// 資料庫優先套用變更集，變更集鏈中斷或套用失敗時改為完整下載
+			if (applyChangesets()) {
+				trigger.onFileComplete(currentFilename, true);
+				return;
+			}
+
+			final int FILE_RETRY_LIMIT = 3;
+			int fileRetry = -1; // 第 0 次執行不算 retry，所以起始值應該設 -1
+			boolean validated = false;
+			BlockSync blocks = new BlockSync(context, peers, digest, blockLength, currentFilename, currentFile,
+				currentFileInfo, currentBlockIndex, currentTransfered, buffer);
+			File target = currentFile;
+			File extracting = new File(currentFile.getParentFile(), currentFilename + EXTRACTING_SUFFIX);
+
+			try {
+				// 檔案重試迴圈
+				while (fileRetry < FILE_RETRY_LIMIT && !validated) {
+					if (fileRetry >= 0) {
+						control.backoff(fileRetry + 1);
+					}
+					currentTransfered.set(0);
+
+					// 第一次嘗試先做區塊差異同步，只下載與本地檔案不同的區塊 (局部容錯)
+					// 無法同步或同步後驗證失敗時，改為完整下載
+					if (fileRetry >= 0 || !blocks.sync()) {
+						PartDownload download = PartDownload.create(context, partLog, currentFilename, currentFileInfo,
+							currentGzFile, currentTransfered, buffer);
+						if (pipelinedExtract) {
+							// 邊下載邊解壓縮到暫存檔 (局部容錯)，驗證後才取代舊檔，中斷時舊檔維持可用
+							target = extracting;
+							blocks = new BlockSync(context, peers, digest, blockLength, currentFilename, target,
+								currentFileInfo, currentBlockIndex, currentTransfered, buffer);
+							downloadAndExtract(download, target);
+						} else {
+							// 下載壓縮檔 (局部容錯)，第一次下載時接續先前中斷的進度
+							prepareParts(download, fileRetry < 0);
+							download.download();
+
+							// 移除舊檔 (不容錯)
+							deleteCurrentFile();
+
+							// 解壓縮 (不容錯)
+							extract(blocks);
+
+							// 移除壓縮檔 (不容錯)
+							if (!currentGzFile.delete()) {
+								interruptUpdate("檔案系統權限不足，無法刪除壓縮檔", true);
+							}
+							try {
+								partLog.remove(currentFilename);
+							} catch(IOException ex) {
+								interruptUpdate("無法儲存片段下載紀錄", true);
+							}
+						}
+					}
+
+					// 有 Merkle 樹時確認整個檔案並修復損毀的區塊，再檢查解壓縮後最後一個片段的摘要值
+					String expected = currentFileInfo.get("checksum").getAsString();
+					validated = blocks.repair(partLength) && verifier.checkLastPart(target, expected, buffer);
+					if (!validated) {
+						trigger.onFileWarning(currentFilename, "解壓縮後偵測到檔案損毀");
+					}
+
+					fileRetry++;
+				}
+
+				// 驗證完成的暫存檔以 rename 取代舊檔
+				if (validated && target != currentFile && !target.renameTo(currentFile)) {
+					interruptUpdate("無法以解壓縮的檔案取代舊檔", true);
+				}
+			} finally {
+				// 驗證失敗或中斷時移除暫存檔，舊檔維持原狀
+				if (extracting.exists() && !extracting.delete()) {
+					trigger.onFileWarning(currentFilename, "無法刪除解壓縮暫存檔");
+				}
+			}
+			
+			if (validated) {
+				// 紀錄檔案更新資訊
+				JsonObject logInfo = new JsonObject();
+				logInfo.addProperty("mtime", currentFileInfo.get("mtime").getAsLong());
+				logInfo.addProperty("checksum", currentFileInfo.get("checksum").getAsString());
+				logInfo.addProperty("isoTime", currentFileInfo.get("isoTime").getAsString());
+				if (currentFileInfo.has("rowChecksum")) {
+					logInfo.addProperty("rowChecksum", currentFileInfo.get("rowChecksum").getAsString());
+				}
+				verifier.recordLocalChecksums(logInfo, currentFilename, currentFile, blocks.localChecksums());
+				recordFile(logInfo);
+				trigger.onFileComplete(currentFilename, true);
+			}
+		} else {
+			trigger.onFileComplete(currentFilename, false);
+		}
+	}
+	
+	/**
+	 * 啟動跨檔案管線的下載階段 (見 Prefetcher)，邊下載邊解壓縮的模式不產生壓縮檔，不使用下載階段
+	 *
+	 * @param fileSet 更新項目
+	 */
+	private void startPrefetch(Set<Entry<String, JsonElement>> fileSet) {
+		if (pipelinedExtract) {
+			return;
+		}
+
+		// 壓縮檔存放位置與解壓縮階段相同，背景更新時放在暫存目錄
+		Map<String, File> gzFiles = new LinkedHashMap<>();
+		for (Entry<String, JsonElement> e : fileSet) {
+			String filename = e.getKey();
+			if (isPrefetchable(filename, e.getValue().getAsJsonObject())) {
+				File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+				if (stagedUpdate) {
+					path = StagedUpdate.stagingDir(path);
+				}
+				gzFiles.put(filename, new File(path, filename + codec.extension()));
+			}
+		}
+
+		// 只有一個檔案時沒有可以重疊的工作
+		if (gzFiles.size() < 2) {
+			return;
+		}
+		prefetchPending.addAll(gzFiles.keySet());
+
+		Prefetcher stage = new Prefetcher(context, partLog, updateInfo.getAsJsonObject("files"));
+		prefetcher = stage;
+		stage.start(gzFiles);
+	}
+
+	/**
+	 * 判斷檔案是否確定要完整下載壓縮檔，只依更新紀錄判斷，不讀取檔案內容
+	 *
+	 * 可以套用變更集或做區塊差異同步的檔案不預先下載，交給解壓縮階段依原本的流程處理。
+	 *
+	 * @param filename 檔名
+	 * @param fileInfo 更新項目資訊
+	 */
+	private boolean isPrefetchable(String filename, JsonObject fileInfo) {
+		if (changesetAppliers.containsKey(filename) && fileInfo.has("changesets")) {
+			return false;
+		}
+
+		File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+		File file = new File(path, filename);
+		if (fileInfo.has("blockChecksums") && (file.exists() || (peers != null && peers.holds(filename, fileInfo)))) {
+			return false;
+		}
+
+		return verifier.staleReason(filename, file, fileInfo) != null;
+	}
+
+	/**
+	 * 等待下載階段交出目前檔案的壓縮檔，等待期間以下載階段的傳輸量做為進度，
+	 * 下載階段已結束時直接返回，由解壓縮階段自行下載
+	 */
+	private void awaitPrefetch() throws InterruptedException {
+		Prefetcher stage = prefetcher;
+		if (stage == null) {
+			return;
+		}
+
+		while (true) {
+			Prefetcher.Prefetched p = stage.poll(progressInterval);
+			if (p != null) {
+				if (!p.filename.equals(currentFilename)) {
+					interruptUpdate("下載階段與解壓縮階段的檔案順序不一致", true);
+				}
+				prefetchedFiles.put(p.filename, p);
+				return;
+			}
+			checkTransferCanceled();
+
+			if (!stage.isAlive()) {
+				return;
+			}
+			if (currentFilename.equals(stage.currentFilename())) {
+				currentTransfered.set(stage.transfered());
+			}
+		}
+	}
+
+	/**
+	 * 移除預先下載但沒有用到的壓縮檔，例如檔案其實不需要更新
+	 *
+	 * @param filename 檔名
+	 */
+	private void discardPrefetch(String filename) throws InterruptedException {
+		Prefetcher.Prefetched p = prefetchedFiles.remove(filename);
+		if (p == null) {
+			return;
+		}
+
+		if (p.gzFile.exists() && !p.gzFile.delete()) {
+			interruptUpdate("檔案系統權限不足，無法刪除壓縮檔", true);
+		}
+		try {
+			partLog.remove(filename);
+		} catch(IOException ex) {
+			interruptUpdate("無法儲存片段下載紀錄", true);
+		}
+	}
+
+	/**
+	 * 停止下載階段，未完成的壓縮檔與片段紀錄保留給下次續傳
+	 */
+	private void stopPrefetch() {
+		Prefetcher stage = prefetcher;
+		if (stage != null) {
+			stage.stop();
+			prefetcher = null;
+		}
+	}
+
+	/**
+	 * 背景更新時，之後的步驟改為異動暫存目錄中的檔案，正式檔案保持可用
+	 *
+	 * 可以差異同步或套用變更集時先複製一份正式檔案到暫存目錄，
+	 * 壓縮檔也放在暫存目錄，中斷後下次背景更新可以續傳。
+	 */
+	private void stageCurrentFile() throws InterruptedException {
+		boolean reusable = currentFileInfo.has("blockChecksums")
+			|| (changesetAppliers.containsKey(currentFilename) && currentFileInfo.has("changesets"));
+		currentFile = staged.stage(currentFile, reusable);
+		currentGzFile = new File(currentFile.getParentFile(), currentFilename + codec.extension());
+	}
+
+	/**
+	 * 以 rename 把背景更新的暫存檔換入正式位置，換入後才寫入更新紀錄
+	 */
+	private void replaceStagedFiles() throws InterruptedException {
+		beginJournal();
+		staged.replace(journal, currentUpdateLog.getAsJsonObject("files"));
+	}
+
+	/**
+	 * 檢查先前更新紀錄，沒有或損毀時產生一個空結構維持正常運作
+	 *
+	 * @param  log 載入的更新紀錄，不存在或損毀時為 null
+	 * @return 更新紀錄
+	 */
+	private JsonObject loadUpdateLog(JsonObject log) {
+		if (log == null || !log.has("config") || !log.has("files")) {
+			// 指定一個無效的檔案規格，避免 NPE 發生
+			JsonObject config = new JsonObject();
+			config.addProperty("spec", "0.0.0");
+
+			log = new JsonObject();
+			log.add("files", new JsonObject());
+			log.add("config", config);
+		}
+		return log;
+	}
+
+	/**
+	 * 開始寫入本次更新紀錄，檔案規格不同時清除先前的檔案紀錄
+	 */
+	private void beginJournal() throws InterruptedException {
+		try {
+			journal.begin(currentUpdateLog.getAsJsonObject("config"), journalReset);
+		} catch(IOException ex) {
+			interruptUpdate("無法儲存更新紀錄", true);
+		}
+	}
+
+	/**
+	 * 記錄更新完成的檔案，背景更新時先保留到換入正式位置
+	 *
+	 * @param logInfo 檔案紀錄
+	 */
+	private void recordFile(JsonObject logInfo) throws InterruptedException {
+		if (stagedUpdate) {
+			staged.add(currentFilename, currentFile, logInfo);
+			return;
+		}
+
+		try {
+			journal.put(currentFilename, logInfo);
+		} catch(IOException ex) {
+			interruptUpdate("無法儲存更新紀錄", true);
+		}
+	}
+
+	/**
+	 * 移除舊檔
+	 */
+	private void deleteCurrentFile() throws InterruptedException {
+		if (currentFile.exists()) {
+			if (!currentFile.delete()) {
+				interruptUpdate("檔案系統權限不足，無法刪除舊檔", true);
+			}
+		}
+	}
+
+	/**
+	 * 準備壓縮檔片段狀態，可續傳時沿用片段下載紀錄中仍然正確的片段
+	 *
+	 * 檔案由下載階段預先下載時，先等待下載階段交出壓縮檔，已在本次更新中驗證的片段不必再讀回來確認。
+	 *
+	 * @param download  片段下載
+	 * @param resumable 是否接續先前的下載進度
+	 */
+	private void prepareParts(PartDownload download, boolean resumable) throws InterruptedException {
+		if (prefetchPending.remove(currentFilename)) {
+			awaitPrefetch();
+			currentTransfered.set(0);
+		}
+
+		boolean[] verified = null;
+		Prefetcher.Prefetched prefetched = prefetchedFiles.get(currentFilename);
+		if (resumable && prefetched != null && prefetched.parts != null && prefetched.gzFile.equals(currentGzFile)) {
+			prefetchedFiles.remove(currentFilename);
+			verified = prefetched.parts;
+		}
+		download.prepare(resumable, verified);
+	}
+
+	/**
+	 * 套用資料列變更集
+	 *
+	 * 套用後檔案內容與鏡像站不同，所以更新紀錄改存本地檔案最後一個片段的摘要值。
+	 *
+	 * @return 是否完成套用，無法套用時回傳 false 改為完整下載
+	 */
+	private boolean applyChangesets() throws InterruptedException {
+		JsonObject previousFileInfo = previousUpdateLog.getAsJsonObject("files").getAsJsonObject(currentFilename);
+		ChangesetUpdate changes = ChangesetUpdate.plan(trigger, changesetAppliers.get(currentFilename),
+			currentFilename, currentFile, currentFileInfo, previousFileInfo);
+		if (changes == null) {
+			return false;
+		}
+
+		// 下載變更集
+		List<JsonObject> changesets = new ArrayList<>();
+		for (String file : changes.files()) {
+			try {
+				changesets.add(loadJSON(baseUrl + file));
+			} catch(InterruptedException ex) {
+				if (control.isCanceled()) {
+					throw ex;
+				}
+				trigger.onFileWarning(currentFilename, "無法取得變更集，改為完整下載");
+				return false;
+			}
+			interruptUpdate("下載變更集後", false);
+		}
+
+		if (!changes.apply(currentFile, changesets, digest)) {
+			return false;
+		}
+
+		// 紀錄檔案更新資訊
+		JsonObject logInfo = new JsonObject();
+		logInfo.addProperty("mtime", currentFileInfo.get("mtime").getAsLong());
+		logInfo.addProperty("checksum", verifier.lastPartChecksum(currentFile, buffer));
+		logInfo.addProperty("isoTime", currentFileInfo.get("isoTime").getAsString());
+		logInfo.addProperty("rowChecksum", currentFileInfo.get("rowChecksum").getAsString());
+		verifier.recordLocalChecksums(logInfo, currentFilename, currentFile, null);
+		recordFile(logInfo);
+		return true;
+	}
+
+	/**
+	 * 邊下載邊解壓縮
+	 *
+	 * 下載端依序取得已驗證的片段放入佇列，解壓縮執行緒從佇列讀取並寫入目標檔，
+	 * 佇列長度有上限，解壓縮跟不上時下載端會等待，記憶體用量維持在少數幾個片段。
+	 *
+	 * @param download 片段下載
+	 * @param target   解壓縮的目標檔
+	 */
+	private void downloadAndExtract(PartDownload download, final File target) throws InterruptedException {
+		BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+		final InputStream partStream = new PartQueueInputStream(queue);
+
+		ExecutorService extractor = Executors.newSingleThreadExecutor();
+		Future<Void> extractTask = extractor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				extract(partStream, target);
+				return null;
+			}
+		});
+		extractor.shutdown();
+
+		try {
+			download.receive(queue, extractTask);
+			PartDownload.handOver(queue, PartQueueInputStream.END, extractTask);
+			extractTask.get();
+		} catch(InterruptedException ex) {
+			extractTask.cancel(true);
+			throw ex;
+		} catch(ExecutionException ex) {
+			interruptUpdate(ex.getCause().getMessage(), true);
+		}
+	}
+
+	/**
+	 * 載入更新資訊
+	 *
+	 * 以 If-None-Match 與 If-Modified-Since 帶上次的快取標頭，伺服器回應 304 時直接使用快取的更新資訊，
+	 * 也接受 gzip 壓縮的更新資訊。
+	 *
+	 * @return 更新資訊
+	 */
+	private JsonObject loadManifest() throws InterruptedException {
+		String location = baseUrl + "update.json";
+		manifestCache = new ManifestCache(new File(logPath, "update-manifest.json"), gson);
+		manifestUnchanged = false;
+
+		Transport transport = selectTransport(location);
+		Transport.Response conn = null;
+		try {
+			Transport.Request request = new Transport.Request()
+				.timeouts(connectTimeout, readTimeout)
+				.compressed();
+			JsonObject cached = manifestCache.manifest(location);
+			if (cached != null) {
+				request.ifChanged(manifestCache.etag(location), manifestCache.lastModified(location));
+			}
+			conn = transport.open(location, request);
+			control.guard.watch(conn, partDeadline);
+
+			// 沒有異動
+			if (cached != null && conn.isNotModified()) {
+				manifestUnchanged = true;
+				return cached;
+			}
+
+			// 邊接收邊解析，不先把整份更新資訊讀成字串
+			JsonObject manifest = parseJSON(conn.getInputStream());
+			if (manifest == null) {
+				throw new IOException("Empty manifest.");
+			}
+
+			try {
+				manifestCache.store(location, conn.getEtag(), conn.getLastModified(), manifest);
+			} catch(IOException ex) {
+				// 快取寫入失敗只影響下次檢查的速度
+			}
+			return manifest;
+		} catch(IOException|JsonParseException ex) {
+			interruptUpdate("下載更新資訊時", false);
+			interruptUpdate("無法取得更新項目資訊", true);
+		} finally {
+			if (conn != null) {
+				control.guard.release(conn);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * 計算本地檔案的指紋，用來判斷上次檢查之後本地檔案是否有異動
+	 *
+	 * @param  fileSet 更新資訊中的檔案清單
+	 * @return 更新紀錄與每個檔案的長度及修改時間
+	 */
+	private String localFingerprint(Set<Entry<String, JsonElement>> fileSet) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(UpdateJournal.fingerprint(logPath));
+
+		for (Entry<String, JsonElement> fileElement : fileSet) {
+			String filename = fileElement.getKey();
+			File path = movePath.containsKey(filename) ? movePath.get(filename) : filePath;
+			File f = new File(path, filename);
+			sb.append(';').append(filename).append(':').append(f.length()).append(':').append(f.lastModified());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * 泛用 JSON 載入程式
+	 * 
+	 * @param location JSON 所在位置
+	 * @return JSON 物件
+	 */
+	private JsonObject loadJSON(String location) throws InterruptedException {
+		Transport transport = selectTransport(location);
+		Transport.Response conn = null;
+		try {
+			conn = transport.open(location, new Transport.Request().timeouts(connectTimeout, readTimeout));
+			control.guard.watch(conn, partDeadline);
+			return parseJSON(conn.getInputStream());
+		} catch(IOException|JsonParseException ex) {
+			interruptUpdate("無法取得更新項目資訊", true);
+		} finally {
+			if (conn != null) {
+				control.guard.release(conn);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * 以 JsonReader 從資料流直接解析 JSON 物件，解析完成後關閉資料流
+	 *
+	 * @param  in 資料流
+	 * @return JSON 物件
+	 */
+	private JsonObject parseJSON(InputStream in) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			JsonElement root = new JsonParser().parse(reader);
+			if (!root.isJsonObject()) {
+				throw new IOException("JSON 內容不是物件");
+			}
+			return root.getAsJsonObject();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * 檢查檔案是否需要更新(失效)
+	 * 
+	 * 符合任一條件就需要更新：
+	 * - 檔案不存在
+	 * - 檔案沒有更新資訊
+	 * - 檔案比伺服器的還舊
+	 * - 遠短摘要值與本地端不同
+	 * - 檔案最後一個片段的摘要值錯誤，深度檢查時任一片段錯誤
+	 */
+	private boolean isExpired() throws InterruptedException {
+		String reason = verifier.expiredReason(currentFilename, currentFile, currentFileInfo);
+		if (reason == null) {
+			return false;
+		}
+
+		long gzLength = currentFileInfo.get("gzLength").getAsLong();
+		long exLength = currentFileInfo.get("length").getAsLong();
+		trigger.onFileExpired(currentFilename, reason, gzLength, exLength);
+		return true;
+	}
+
+	/**
+	 * 解壓縮下載完成的檔案，區塊壓縮檔以所有處理器核心平行解壓縮
+	 *
+	 * @param blocks 區塊同步，用來重新下載無法解壓縮的區塊
+	 */
+	private void extract(BlockSync blocks) throws InterruptedException {
+		if (currentBlockIndex != null) {
+			extractBlocks(blocks);
+			return;
+		}
+
+		try {
+			extract(new FileInputStream(currentGzFile), currentFile);
+		} catch(IOException ex) {
+			interruptUpdate("解壓縮失敗", true);
+		}
+	}
+
+	/**
+	 * 平行解壓縮區塊壓縮檔
+	 *
+	 * 每個工作執行緒依序領取區塊編號，從壓縮檔讀取對應的成員解壓縮後，寫入目標檔的對應位置。
+	 * 無法解壓縮的區塊在有區塊摘要值時單獨向鏡像站重新下載，其他區塊不必重新解壓縮。
+	 *
+	 * @param blocks 區塊同步，用來重新下載無法解壓縮的區塊
+	 */
+	private void extractBlocks(BlockSync blocks) throws InterruptedException {
+		final long length = currentFileInfo.get("length").getAsLong();
+		final int blockCount = currentBlockIndex.size();
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		final List<Integer> failedBlocks = Collections.synchronizedList(new ArrayList<Integer>());
+		int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), blockCount));
+
+		currentExtracted.set(0);
+		reporter.track(UpdateProgress.Phase.EXTRACT, currentFilename, length, currentExtracted);
+
+		RandomAccessFile in  = null;
+		RandomAccessFile out = null;
+		ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+		try {
+			in  = new RandomAccessFile(currentGzFile, "r");
+			out = new RandomAccessFile(currentFile, "rw");
+			out.setLength(length);
+			final FileChannel inChannel  = in.getChannel();
+			final FileChannel outChannel = out.getChannel();
+
+			List<Future<Void>> workers = new ArrayList<>();
+			for (int i=0;i<workerCount;i++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						int blockNumber;
+						while ((blockNumber = nextBlock.getAndIncrement()) < blockCount) {
+							byte[] block;
+							try {
+								block = currentBlockIndex.decode(codec, currentBlockIndex.read(inChannel, blockNumber), blockNumber);
+							} catch(IOException ex) {
+								failedBlocks.add(blockNumber);
+								continue;
+							}
+
+							ByteBuffer data = ByteBuffer.wrap(block);
+							long position = (long)blockNumber * blockLength;
+							while (data.hasRemaining()) {
+								position += outChannel.write(data, position);
+							}
+							currentExtracted.addAndGet(block.length);
+							checkExtractCanceled(length);
+						}
+						return null;
+					}
+				}));
+			}
+			pool.shutdown();
+
+			// 等待所有工作執行緒結束，取消或寫入失敗時回報第一個原因
+			for (Future<Void> worker : workers) {
+				try {
+					worker.get();
+				} catch(ExecutionException ex) {
+					nextBlock.set(blockCount);
+					if (ex.getCause() instanceof InterruptedException) {
+						throw (InterruptedException)ex.getCause();
+					}
+					interruptUpdate("解壓縮失敗", true);
+				}
+			}
+		} catch(IOException ex) {
+			interruptUpdate("解壓縮失敗", true);
+		} finally {
+			pool.shutdownNow();
+			try {
+				if (in != null) in.close();
+				if (out != null) out.close();
+			} catch(IOException ex) {
+				// 內容都已寫入，關閉失敗不影響結果
+			}
+		}
+
+		// 單獨修復無法解壓縮的區塊
+		if (!failedBlocks.isEmpty()) {
+			if (!currentFileInfo.has("blockChecksums")) {
+				interruptUpdate("解壓縮失敗", true);
+			}
+			Collections.sort(failedBlocks);
+			String reason = String.format(Locale.getDefault(), "%d 個區塊無法解壓縮，只重新下載這些區塊", failedBlocks.size());
+			trigger.onFileWarning(currentFilename, reason);
+			// 修復失敗時檔案檢查不會通過，交給檔案重試迴圈
+			blocks.writeBlocks(failedBlocks);
+			currentExtracted.set(length);
+		}
+	}
+
+	/**
+	 * 解壓縮資料流到目標檔，壓縮格式由更新資訊決定
+	 *
+	 * @param gzIn   壓縮資料流
+	 * @param target 目標檔
+	 */
+	private void extract(InputStream gzIn, File target) throws InterruptedException {
+		// 取得解壓縮後的檔案大小
+		int length = currentFileInfo.get("length").getAsInt();
+		
+		// 解壓縮，邊下載邊解壓縮時在另一個執行緒執行，所以另外借用緩衝區
+		// 取消或解壓縮失敗時也要關閉檔案，下一次檔案重試會刪除並重新建立目標檔
+		byte[] extractBuffer = BufferPool.acquire();
+		try {
+			InputStream in = gzIn;
+			try {
+				in = codec.decode(gzIn);
+				OutputStream out = new FileOutputStream(target);
+				try {
+					int ioLen;
+					currentExtracted.set(0);
+					reporter.track(UpdateProgress.Phase.EXTRACT, currentFilename, length, currentExtracted);
+
+					do {
+						ioLen = (int)IOUtils.copyLarge(in, out, 0, BufferPool.BUFFER_SIZE, extractBuffer); // 0 表示讀完
+						currentExtracted.addAndGet(ioLen);
+						checkExtractCanceled(length);
+					} while(ioLen > 0);
+				} finally {
+					// 關閉 I/O
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		} catch(IOException ex) {
+			interruptUpdate("解壓縮失敗", true);
+		} finally {
+			BufferPool.release(extractBuffer);
+		}
+	}
+
+	/**
+	 * 事件產生器，轉發事件給所有 Listener
+	 */
+	private AutoUpdateAdapter trigger = new AutoUpdateAdapter() {
+		
+		@Override
+		public void onFileBegin(String filename) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileBegin(filename);
+			}
+		}
+
+		@Override
+		public void onError(String reason) {
+			reporter.stop();
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onError(reason);
+			}
+		}
+
+		@Override
+		public void onProgress(UpdateProgress progress) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onProgress(progress);
+			}
+		}
+
+		@Override
+		public void onFileTransferLength(String filename, long transfered) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileTransferLength(filename, transfered);
+			}
+		}
+
+		@Override
+		public void onFileTransfer(String filename, int percent) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileTransfer(filename, percent);
+			}
+		}
+
+		@Override
+		public void onFileExtract(String filename, int percent) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileExtract(filename, percent);
+			}
+		}
+
+		@Override
+		public void onFileComplete(String filename, boolean isNew) {
+			reporter.finish(filename);
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileComplete(filename, isNew);
+			}
+		}
+
+		@Override
+		public void onFileReplaced(String filename) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileReplaced(filename);
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			reporter.stop();
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onComplete();
+			}
+		}
+		
+		@Override
+		public void onFileWarning(String filename, String reason) {
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileWarning(filename, reason);
+			}
+		}
+
+		@Override
+		public void onFileExpired(String filename, String reason, long gzLength, long exLength) {
+			reporter.track(UpdateProgress.Phase.TRANSFER, filename, gzLength, currentTransfered);
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onFileExpired(filename, reason, gzLength, exLength);
+			}
+		}
+
+		@Override
+		public void onUserCancel(String progress) {
+			reporter.stop();
+			for (AutoUpdateAdapter l : listenerList) {
+				l.onUserCancel(progress);
+			}
+		}
+		
+	};
+	
+}
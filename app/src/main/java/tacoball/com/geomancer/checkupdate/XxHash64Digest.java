@@ -0,0 +1,171 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.security.MessageDigest;
+
+/**
+ * 以 MessageDigest 介面實作 xxHash64 (seed 0)，結果為 8 bytes 大端序，與 xxhsum 的輸出相同
+ *
+ * 每 32 bytes 以四個累加器平行處理，不足 32 bytes 的尾端暫存到下一次 update 或結算。
+ */
+class XxHash64Digest extends MessageDigest {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final int STRIPE = 32;
+
+	private final byte[] pending = new byte[STRIPE];
+	private int  pendingLength;
+	private long totalLength;
+	private long v1, v2, v3, v4;
+
+	XxHash64Digest() {
+		super(Digests.XXH64);
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineReset() {
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		totalLength = 0;
+		pendingLength = 0;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		totalLength += len;
+		int end = offset + len;
+
+		// 先補滿上次剩下的尾端
+		if (pendingLength > 0) {
+			int n = Math.min(STRIPE - pendingLength, len);
+			System.arraycopy(input, offset, pending, pendingLength, n);
+			pendingLength += n;
+			offset += n;
+			if (pendingLength < STRIPE) {
+				return;
+			}
+			stripe(pending, 0);
+			pendingLength = 0;
+		}
+
+		// 累加器放在區域變數，迴圈內不必存取欄位
+		long a1 = v1, a2 = v2, a3 = v3, a4 = v4;
+		while (offset + STRIPE <= end) {
+			a1 = round(a1, readLong(input, offset));
+			a2 = round(a2, readLong(input, offset + 8));
+			a3 = round(a3, readLong(input, offset + 16));
+			a4 = round(a4, readLong(input, offset + 24));
+			offset += STRIPE;
+		}
+		v1 = a1;
+		v2 = a2;
+		v3 = a3;
+		v4 = a4;
+
+		if (offset < end) {
+			System.arraycopy(input, offset, pending, 0, end - offset);
+			pendingLength = end - offset;
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long h;
+		if (totalLength >= STRIPE) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = PRIME5;
+		}
+		h += totalLength;
+
+		int p = 0;
+		while (p + 8 <= pendingLength) {
+			h ^= round(0, readLong(pending, p));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			p += 8;
+		}
+		if (p + 4 <= pendingLength) {
+			h ^= (readInt(pending, p) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			p += 4;
+		}
+		while (p < pendingLength) {
+			h ^= (pending[p] & 0xff) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			p++;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+
+		engineReset();
+		byte[] result = new byte[8];
+		for (int i=0;i<8;i++) {
+			result[i] = (byte)(h >>> (56 - 8 * i));
+		}
+		return result;
+	}
+
+	// 處理暫存的一段 32 bytes
+	private void stripe(byte[] input, int offset) {
+		v1 = round(v1, readLong(input, offset));
+		v2 = round(v2, readLong(input, offset + 8));
+		v3 = round(v3, readLong(input, offset + 16));
+		v4 = round(v4, readLong(input, offset + 24));
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long merge(long h, long v) {
+		h ^= round(0, v);
+		return h * PRIME1 + PRIME4;
+	}
+
+	// 小端序讀取
+	private static long readLong(byte[] b, int i) {
+		return (b[i] & 0xffL)
+			| (b[i+1] & 0xffL) << 8
+			| (b[i+2] & 0xffL) << 16
+			| (b[i+3] & 0xffL) << 24
+			| (b[i+4] & 0xffL) << 32
+			| (b[i+5] & 0xffL) << 40
+			| (b[i+6] & 0xffL) << 48
+			| (b[i+7] & 0xffL) << 56;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff)
+			| (b[i+1] & 0xff) << 8
+			| (b[i+2] & 0xff) << 16
+			| (b[i+3] & 0xff) << 24;
+	}
+
+}
@@ -0,0 +1,30 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * xz (LZMA2) 壓縮格式，壓縮率比 gzip 高，純 Java 實作不需要原生函式庫
+ *
+ * 解壓縮記憶體用量取決於發布端的字典大小，手機上建議以 8MB 以下的字典壓縮 (xz -6 以下)。
+ */
+class XzCodec implements Codec {
+
+	@Override
+	public String name() {
+		return "xz";
+	}
+
+	@Override
+	public String extension() {
+		return ".xz";
+	}
+
+	@Override
+	public InputStream decode(InputStream in) throws IOException {
+		return new XZInputStream(in);
+	}
+
+}
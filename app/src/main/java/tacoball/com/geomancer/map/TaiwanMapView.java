@@ -169,10 +169,7 @@ public class TaiwanMapView extends MapView {
     public void reloadTheme(String newTheme) {
         if (!newTheme.equals(mCurrentTheme) && mReady) {
             try {
-                Layer oldLayer = mTileLayer;
-                mTileLayer = loadThemeLayer(newTheme, false);
-                getLayerManager().getLayers().remove(oldLayer);
-                getLayerManager().getLayers().add(0, mTileLayer);
+                replaceTileLayer(newTheme);
                 mCurrentTheme = newTheme;
             } catch(IOException ex) {
                 Log.e(TAG, ex.getMessage());
@@ -180,6 +177,43 @@ public class TaiwanMapView extends MapView {
         }
     }
 
+    /**
+     * 地圖檔更新後換上新的圖層，保留目前的位置與風格，不必重新啟動 Activity
+     */
+    public void reloadMapData() {
+        if (mReady) {
+            try {
+                // 新地圖的範圍可能不同
+                MapDataStore map = MainUtils.openMapData(mContext);
+                BoundingBox bbox = map.boundingBox();
+                map.close();
+
+                replaceTileLayer(mCurrentTheme);
+                getModel().mapViewPosition.setMapLimit(bbox);
+            } catch(IOException ex) {
+                Log.e(TAG, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 換上新的圖磚圖層
+     *
+     * 舊圖層先移除並釋放，連同舊地圖檔與圖磚快取一起關閉，之後才建立新圖層，
+     * 避免新舊圖層同時使用同一個快取目錄，新圖層也不會讀到舊地圖畫的圖磚。
+     */
+    private void replaceTileLayer(String themeName) throws IOException {
+        // 上次建立新圖層失敗時已經沒有舊圖層
+        if (mTileLayer != null) {
+            getLayerManager().getLayers().remove(mTileLayer);
+            mTileLayer.onDestroy();
+            mTileLayer = null;
+        }
+
+        mTileLayer = loadThemeLayer(themeName, false);
+        getLayerManager().getLayers().add(0, mTileLayer);
+    }
+
     @Override
     public void destroy() {
         // TODO: Release map resources
@@ -282,7 +316,6 @@ public class TaiwanMapView extends MapView {
             File cacheDir = new File(bestDir, cacheName);
             cache = new FileSystemTileCache(500, cacheDir, AndroidGraphicFactory.INSTANCE, true);
         }
-
         return AndroidUtil.createTileRendererLayer(
             cache,
             getModel().mapViewPosition,
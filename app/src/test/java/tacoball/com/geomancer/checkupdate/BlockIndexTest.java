@@ -0,0 +1,73 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 區塊索引的驗證，與檔案長度或壓縮檔長度不一致的索引不可使用
+ */
+public class BlockIndexTest {
+
+	private static final int BLOCK_LENGTH = 100;
+
+	@Test
+	public void testValid() {
+		BlockIndex index = BlockIndex.load(fileInfo(250, 90, 0, 40, 70), BLOCK_LENGTH);
+		assertNotNull(index);
+		assertEquals(3, index.size());
+		assertEquals(40, index.offset(1));
+		assertEquals(30, index.length(1));
+		assertEquals(20, index.length(2));
+		assertEquals(100, index.rawLength(1));
+		assertEquals(50, index.rawLength(2));
+	}
+
+	@Test
+	public void testMissing() {
+		JsonObject info = fileInfo(250, 90, 0, 40, 70);
+		info.remove("blockIndex");
+		assertNull(BlockIndex.load(info, BLOCK_LENGTH));
+	}
+
+	@Test
+	public void testWrongCount() {
+		assertNull(BlockIndex.load(fileInfo(250, 90, 0, 40), BLOCK_LENGTH));
+		assertNull(BlockIndex.load(fileInfo(250, 90, 0, 40, 70, 80), BLOCK_LENGTH));
+	}
+
+	@Test
+	public void testNotStartingAtZero() {
+		assertNull(BlockIndex.load(fileInfo(250, 90, 10, 40, 70), BLOCK_LENGTH));
+	}
+
+	@Test
+	public void testDescending() {
+		assertNull(BlockIndex.load(fileInfo(250, 90, 0, 70, 40), BLOCK_LENGTH));
+	}
+
+	@Test
+	public void testBeyondCompressedLength() {
+		assertNull(BlockIndex.load(fileInfo(250, 90, 0, 40, 95), BLOCK_LENGTH));
+	}
+
+	// 產生更新項目資訊
+	private static JsonObject fileInfo(long length, long gzLength, long... offsets) {
+		JsonArray blockIndex = new JsonArray();
+		for (long offset : offsets) {
+			blockIndex.add(offset);
+		}
+
+		JsonObject info = new JsonObject();
+		info.addProperty("length", length);
+		info.addProperty("gzLength", gzLength);
+		info.add("blockIndex", blockIndex);
+		return info;
+	}
+
+}
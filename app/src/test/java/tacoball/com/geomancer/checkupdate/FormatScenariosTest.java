@@ -0,0 +1,113 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 以不同的壓縮格式與發布方式完整更新，包含整個檔案壓縮成單一 gzip 或 xz 資料流、xz 區塊壓縮，
+ * 並分別在一般解壓縮與邊下載邊解壓縮下執行，確認結果與原始檔逐位元組相同
+ */
+@RunWith(Parameterized.class)
+public class FormatScenariosTest {
+
+	/**
+	 * 發布方式：壓縮格式與是否區塊壓縮
+	 */
+	private static final Object[][] RELEASES = {
+		{ "gzip", false },
+		{ "xz",   false },
+		{ "xz",   true  }
+	};
+
+	@ClassRule
+	public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+	private static File sourceDir;
+	private static final Map<String, NetworkSimulator> servers = new HashMap<>();
+
+	@Parameterized.Parameters(name = "{0}-{1}-pipelined:{2}")
+	public static Collection<Object[]> parameters() {
+		List<Object[]> parameters = new ArrayList<>();
+		for (Object[] release : RELEASES) {
+			for (AutoUpdateManager.DownloadMode mode : AutoUpdateManager.DownloadMode.values()) {
+				parameters.add(new Object[] { releaseName(release), mode, false });
+				parameters.add(new Object[] { releaseName(release), mode, true });
+			}
+		}
+		return parameters;
+	}
+
+	@Parameterized.Parameter(0)
+	public String release;
+
+	@Parameterized.Parameter(1)
+	public AutoUpdateManager.DownloadMode mode;
+
+	@Parameterized.Parameter(2)
+	public boolean pipelined;
+
+	@BeforeClass
+	public static void setUpServers() throws Exception {
+		sourceDir = TEMP.newFolder("source");
+		UpdateScenarios.generateSources(sourceDir);
+
+		for (Object[] release : RELEASES) {
+			String name = releaseName(release);
+			File releaseDir = TEMP.newFolder("release-" + name);
+			UpdateScenarios.buildRelease(sourceDir, releaseDir, (String)release[0], (Boolean)release[1]);
+
+			NetworkSimulator server = new NetworkSimulator(releaseDir, new NetworkSimulator.Condition("ideal"));
+			server.start();
+			servers.put(name, server);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownServers() {
+		for (NetworkSimulator server : servers.values()) {
+			server.stop();
+		}
+		servers.clear();
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		File targetDir = TEMP.newFolder(release + "-" + mode.name() + (pipelined ? "-pipelined" : ""));
+		NetworkSimulator server = servers.get(release);
+		server.setCondition(new NetworkSimulator.Condition(release));
+
+		AutoUpdateManager manager = UpdateScenarios.newManager(targetDir);
+		manager.setDownloadMode(mode);
+		manager.setPipelinedExtract(pipelined);
+
+		UpdateScenarios.Result r = new UpdateScenarios.Result();
+		r.condition = release;
+		r.mode = mode.name();
+		UpdateScenarios.execute(manager, server, r);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.DB_FILE));
+	}
+
+	private static String releaseName(Object[] release) {
+		return release[0] + ((Boolean)release[1] ? "-blocks" : "-whole");
+	}
+
+}
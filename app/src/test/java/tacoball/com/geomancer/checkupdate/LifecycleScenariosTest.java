@@ -0,0 +1,224 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 更新的生命週期：中斷後續傳、邊下載邊解壓縮中斷時保留舊檔、更新資訊未異動時沿用檢查結果、
+ * 背景更新換入正式檔案，以及從本地目錄側載
+ */
+public class LifecycleScenariosTest {
+
+	// 續傳情境在下載這麼多片段後中斷
+	private static final int KILL_AFTER_PARTS = 8;
+
+	@ClassRule
+	public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+	@Rule
+	public final TemporaryFolder work = new TemporaryFolder();
+
+	private static File sourceDir;
+	private static File releaseDir;
+	private static NetworkSimulator server;
+
+	@BeforeClass
+	public static void setUpServer() throws Exception {
+		sourceDir = TEMP.newFolder("source");
+		releaseDir = TEMP.newFolder("release");
+		UpdateScenarios.prepare(sourceDir, releaseDir);
+
+		server = new NetworkSimulator(releaseDir, new NetworkSimulator.Condition("ideal"));
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownServer() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@After
+	public void resetCondition() {
+		server.setCondition(new NetworkSimulator.Condition("ideal"));
+	}
+
+	@Test
+	public void testResumeAfterKill() throws Exception {
+		File targetDir = work.getRoot();
+
+		// 限制頻寬讓中斷點落在地圖檔下載途中
+		server.setCondition(new NetworkSimulator.Condition("killed").bandwidth(1024 * 1024));
+		final AutoUpdateManager killed = UpdateScenarios.newManager(targetDir);
+		killed.setProgressInterval(10);
+		killed.addListener(new AutoUpdateAdapter() {
+			@Override
+			public void onFileTransferLength(String filename, long transfered) {
+				if (transfered >= KILL_AFTER_PARTS * UpdateScenarios.PART_LENGTH) {
+					killed.cancel();
+				}
+			}
+		});
+		UpdateScenarios.Result first = new UpdateScenarios.Result();
+		UpdateScenarios.execute(killed, server, first);
+		assertFalse("更新沒有被中斷", UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+
+		// 新的更新管理程式讀取片段紀錄，已驗證的片段不再下載
+		server.setCondition(new NetworkSimulator.Condition("resume"));
+		UpdateScenarios.Result r = new UpdateScenarios.Result();
+		r.condition = "resume";
+		r.mode = "SEQUENTIAL";
+		UpdateScenarios.execute(UpdateScenarios.newManager(targetDir), server, r);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertSameContent(targetDir);
+		long limit = UpdateScenarios.compressedLength(releaseDir) - (KILL_AFTER_PARTS - 2) * UpdateScenarios.PART_LENGTH
+			+ UpdateScenarios.OVERHEAD_LENGTH;
+		assertTrue("續傳卻傳輸了 " + r.sent + " bytes，上限 " + limit, r.sent <= limit);
+	}
+
+	@Test
+	public void testPipelinedKeepsLiveFile() throws Exception {
+		File targetDir = work.getRoot();
+		UpdateScenarios.execute(UpdateScenarios.newManager(targetDir), server, new UpdateScenarios.Result());
+
+		// 舊版地圖檔的每個區塊都不同，只能完整下載
+		File mapFile = new File(targetDir, UpdateScenarios.MAP_FILE);
+		byte[] previous = new byte[(int)mapFile.length()];
+		Arrays.fill(previous, (byte)0x5a);
+		FileUtils.writeByteArrayToFile(mapFile, previous);
+
+		server.setCondition(new NetworkSimulator.Condition("killed").bandwidth(1024 * 1024));
+		final AutoUpdateManager killed = UpdateScenarios.newManager(targetDir);
+		killed.damageMtime(UpdateScenarios.MAP_FILE);
+		killed.setPipelinedExtract(true);
+		killed.setProgressInterval(10);
+		killed.addListener(new AutoUpdateAdapter() {
+			@Override
+			public void onFileTransferLength(String filename, long transfered) {
+				if (transfered >= KILL_AFTER_PARTS * UpdateScenarios.PART_LENGTH) {
+					killed.cancel();
+				}
+			}
+		});
+		UpdateScenarios.execute(killed, server, new UpdateScenarios.Result());
+
+		// 中斷時舊檔維持可用，解壓縮暫存檔已清除
+		assertTrue("邊下載邊解壓縮中斷後舊檔已被修改", Arrays.equals(previous, FileUtils.readFileToByteArray(mapFile)));
+		assertFalse("解壓縮暫存檔沒有清除", new File(targetDir, UpdateScenarios.MAP_FILE + ".extracting").exists());
+
+		server.setCondition(new NetworkSimulator.Condition("pipelined"));
+		AutoUpdateManager manager = UpdateScenarios.newManager(targetDir);
+		manager.setPipelinedExtract(true);
+		UpdateScenarios.Result r = new UpdateScenarios.Result();
+		UpdateScenarios.execute(manager, server, r);
+
+		assertNull(r.error, r.error);
+		assertSameContent(targetDir);
+		assertFalse("解壓縮暫存檔沒有清除", new File(targetDir, UpdateScenarios.MAP_FILE + ".extracting").exists());
+	}
+
+	@Test
+	public void testCachedCheck() throws Exception {
+		File targetDir = work.getRoot();
+		long total = sourceDir.listFiles()[0].length() + sourceDir.listFiles()[1].length();
+
+		UpdateScenarios.Result first = UpdateScenarios.runCheck(server, targetDir);
+		assertNull(first.error, first.error);
+		assertEquals(total, first.checked);
+
+		// 更新資訊回應 304 且本地檔案沒有異動，沿用上次的檢查結果
+		UpdateScenarios.Result second = UpdateScenarios.runCheck(server, targetDir);
+		System.out.println(second);
+
+		assertNull(second.error, second.error);
+		assertEquals(total, second.checked);
+		assertEquals("更新資訊沒有異動卻重新傳輸", 0, second.sent);
+		assertEquals(1, second.requests);
+	}
+
+	@Test
+	public void testStagedSwap() throws Exception {
+		final File targetDir = work.getRoot();
+		UpdateScenarios.execute(UpdateScenarios.newManager(targetDir), server, new UpdateScenarios.Result());
+
+		UpdateScenarios.damageMiddle(new File(targetDir, UpdateScenarios.MAP_FILE));
+		AutoUpdateManager manager = UpdateScenarios.newManager(targetDir);
+		manager.damageMtime(UpdateScenarios.MAP_FILE);
+		manager.setStagedUpdate(true);
+
+		// 暫存檔完成時正式檔案維持原狀，全部完成後才換入
+		final AtomicBoolean liveUntouched = new AtomicBoolean();
+		final AtomicBoolean replaced = new AtomicBoolean();
+		manager.addListener(new AutoUpdateAdapter() {
+			@Override
+			public void onFileComplete(String filename, boolean isNew) {
+				if (UpdateScenarios.MAP_FILE.equals(filename)) {
+					try {
+						liveUntouched.set(!UpdateScenarios.sameContent(sourceDir, targetDir, filename));
+					} catch(Exception ex) {
+						liveUntouched.set(false);
+					}
+				}
+			}
+
+			@Override
+			public void onFileReplaced(String filename) {
+				if (UpdateScenarios.MAP_FILE.equals(filename)) {
+					replaced.set(true);
+				}
+			}
+		});
+
+		UpdateScenarios.Result r = new UpdateScenarios.Result();
+		r.condition = "staged";
+		r.mode = "STAGED";
+		UpdateScenarios.execute(manager, server, r);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertTrue("暫存檔完成前就修改了正式檔案", liveUntouched.get());
+		assertTrue("沒有回報換入正式檔案", replaced.get());
+		assertSameContent(targetDir);
+		assertFalse("暫存目錄沒有清除", new File(targetDir, ".staging").exists());
+	}
+
+	@Test
+	public void testSideload() throws Exception {
+		File targetDir = work.getRoot();
+		server.setCondition(new NetworkSimulator.Condition("sideload"));
+
+		UpdateScenarios.Result r = new UpdateScenarios.Result();
+		r.condition = "sideload";
+		r.mode = "FILE";
+		UpdateScenarios.execute(UpdateScenarios.newManager(targetDir), "file://" + releaseDir.getAbsolutePath() + "/", server, r);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertSameContent(targetDir);
+		assertEquals("側載時連線了鏡像站", 0, r.requests);
+	}
+
+	private void assertSameContent(File targetDir) throws Exception {
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.DB_FILE));
+	}
+
+}
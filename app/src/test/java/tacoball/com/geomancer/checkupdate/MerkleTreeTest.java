@@ -0,0 +1,85 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Merkle 樹的建樹方式與差異比對，特別是某一層節點數為奇數時最後一個節點直接升層的情況
+ */
+public class MerkleTreeTest {
+
+	private static final String DIGEST = UpdateScenarios.DIGEST;
+
+	@Test
+	public void testOddRoot() throws Exception {
+		String[] leaves = leaves(3, -1);
+		MessageDigest md = MessageDigest.getInstance(DIGEST);
+
+		md.update(AutoUpdateManager.fromHex(leaves[0]));
+		md.update(AutoUpdateManager.fromHex(leaves[1]));
+		String left = AutoUpdateManager.toHex(md.digest());
+		md.update(AutoUpdateManager.fromHex(left));
+		md.update(AutoUpdateManager.fromHex(leaves[2]));
+		String root = AutoUpdateManager.toHex(md.digest());
+
+		assertEquals(root, new MerkleTree(leaves, DIGEST).root());
+	}
+
+	@Test
+	public void testSingleLeaf() throws Exception {
+		String[] leaves = leaves(1, -1);
+		assertEquals(leaves[0], new MerkleTree(leaves, DIGEST).root());
+	}
+
+	@Test
+	public void testDiffEachLeaf() throws Exception {
+		// 各層都可能出現奇數個節點
+		for (int count : new int[] { 1, 2, 3, 5, 6, 7, 9, 13 }) {
+			MerkleTree expected = new MerkleTree(leaves(count, -1), DIGEST);
+			assertEquals(Collections.<Integer>emptyList(), expected.diff(new MerkleTree(leaves(count, -1), DIGEST)));
+
+			for (int damaged=0;damaged<count;damaged++) {
+				MerkleTree actual = new MerkleTree(leaves(count, damaged), DIGEST);
+				assertEquals(count + " 個葉節點", Collections.singletonList(damaged), expected.diff(actual));
+			}
+		}
+	}
+
+	@Test
+	public void testDiffSeveralLeaves() throws Exception {
+		String[] leaves = leaves(7, -1);
+		String[] damaged = leaves.clone();
+		damaged[1] = damaged[0];
+		damaged[6] = damaged[0];
+
+		List<Integer> diff = new MerkleTree(leaves, DIGEST).diff(new MerkleTree(damaged, DIGEST));
+		assertEquals(Arrays.asList(1, 6), diff);
+	}
+
+	@Test
+	public void testDiffDifferentSize() throws Exception {
+		List<Integer> diff = new MerkleTree(leaves(5, -1), DIGEST).diff(new MerkleTree(leaves(3, 1), DIGEST));
+		assertEquals(Arrays.asList(1, 3, 4), diff);
+	}
+
+	// 產生葉節點，damaged 指定的葉節點換成不同的摘要值
+	private static String[] leaves(int count, int damaged) throws Exception {
+		MessageDigest md = MessageDigest.getInstance(DIGEST);
+		String[] leaves = new String[count];
+		for (int i=0;i<count;i++) {
+			md.update((byte)i);
+			if (i == damaged) {
+				md.update((byte)0xff);
+			}
+			leaves[i] = AutoUpdateManager.toHex(md.digest());
+		}
+		return leaves;
+	}
+
+}
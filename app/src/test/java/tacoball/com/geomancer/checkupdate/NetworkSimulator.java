@@ -0,0 +1,265 @@
+package tacoball.com.geomancer.checkupdate;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模擬網路狀況的鏡像站，在本機提供更新檔並注入延遲、頻寬限制、斷線、截斷與內容損毀
+ *
+ * 更新資訊 (.json) 不注入錯誤，只有檔案內容受影響，讓測試專注在下載、重試與修復流程。
+ * 錯誤位置是固定的：斷線依檔案請求的序號，截斷與損毀依檔案中的位置，每個檔案的每個位置只發生一次，
+ * 所以不論下載模式與執行緒排程，只要整個檔案下載過一次就一定會遇到，重試時也一定能取得正確內容。
+ */
+class NetworkSimulator extends LocalHttpServer {
+
+	/**
+	 * 網路狀況
+	 */
+	static class Condition {
+
+		final String name;
+		int    latency   = 0;             // 每個請求的回應延遲 (毫秒)
+		int    bandwidth = 0;             // 每條連線的頻寬上限 (bytes/s)，0 表示不限制
+		int[]  dropRequests    = new int[0];  // 不回應直接斷線的檔案請求序號 (從 1 開始)
+		long[] truncateOffsets = new long[0]; // 內容傳到這個檔案位置時斷線
+		long[] corruptOffsets  = new long[0]; // 這個檔案位置的位元組損毀
+
+		Condition(String name) {
+			this.name = name;
+		}
+
+		Condition latency(int millis) {
+			latency = millis;
+			return this;
+		}
+
+		Condition bandwidth(int bytesPerSecond) {
+			bandwidth = bytesPerSecond;
+			return this;
+		}
+
+		Condition drop(int... requests) {
+			dropRequests = requests;
+			return this;
+		}
+
+		Condition truncate(long... offsets) {
+			truncateOffsets = offsets;
+			return this;
+		}
+
+		Condition corrupt(long... offsets) {
+			corruptOffsets = offsets;
+			return this;
+		}
+
+		/**
+		 * 是否注入斷線、截斷或損毀
+		 */
+		boolean injectsFaults() {
+			return dropRequests.length > 0 || truncateOffsets.length > 0 || corruptOffsets.length > 0;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+	// 頻寬限制的計算單位
+	private static final int THROTTLE_CHUNK = 4096;
+
+	private volatile Condition condition;
+
+	// 檔案請求序號，以及已經注入過的錯誤 (錯誤種類、檔案與位置)
+	private final AtomicInteger fileRequests = new AtomicInteger();
+	private final Set<String> injected = new HashSet<>();
+
+	// 統計值
+	final AtomicInteger requests    = new AtomicInteger();
+	final AtomicLong    bytesSent   = new AtomicLong();
+	final AtomicInteger drops       = new AtomicInteger();
+	final AtomicInteger truncations = new AtomicInteger();
+	final AtomicInteger corruptions = new AtomicInteger();
+
+	/**
+	 * 配置模擬鏡像站，只綁定本機位址
+	 *
+	 * @param root      更新檔所在目錄
+	 * @param condition 網路狀況
+	 */
+	NetworkSimulator(File root, Condition condition) throws IOException {
+		super(root, InetAddress.getByName("127.0.0.1"), 0);
+		this.condition = condition;
+	}
+
+	/**
+	 * 更換網路狀況並清除統計值
+	 *
+	 * @param condition 網路狀況
+	 */
+	void setCondition(Condition condition) {
+		this.condition = condition;
+		fileRequests.set(0);
+		synchronized (injected) {
+			injected.clear();
+		}
+		requests.set(0);
+		bytesSent.set(0);
+		drops.set(0);
+		truncations.set(0);
+		corruptions.set(0);
+	}
+
+	/**
+	 * 取得鏡像站網址
+	 */
+	String url() {
+		return "http://127.0.0.1:" + getPort() + "/";
+	}
+
+	@Override
+	protected void onRequest(String path, String range) throws IOException {
+		requests.incrementAndGet();
+		Condition c = condition;
+
+		if (c.latency > 0) {
+			try {
+				Thread.sleep(c.latency);
+			} catch(InterruptedException ex) {
+				throw new SocketException("Server stopped.");
+			}
+		}
+
+		if (path.endsWith(".json")) {
+			return;
+		}
+
+		int n = fileRequests.incrementAndGet();
+		for (int request : c.dropRequests) {
+			if (request == n) {
+				drops.incrementAndGet();
+				throw new SocketException("Simulated drop.");
+			}
+		}
+	}
+
+	@Override
+	protected OutputStream body(String path, long offset, long length, OutputStream out) throws IOException {
+		Condition c = condition;
+		long cutAt = -1;
+		long corruptAt = -1;
+
+		if (!path.endsWith(".json")) {
+			for (long at : c.truncateOffsets) {
+				if (cutAt < 0 && covers(offset, length, at) && inject("truncate", path, at)) {
+					truncations.incrementAndGet();
+					cutAt = at - offset;
+				}
+			}
+			// 截斷位置之後的損毀送不出去，留給之後的請求
+			for (long at : c.corruptOffsets) {
+				if (corruptAt < 0 && covers(offset, cutAt < 0 ? length : cutAt, at) && inject("corrupt", path, at)) {
+					corruptions.incrementAndGet();
+					corruptAt = at - offset;
+				}
+			}
+		}
+
+		return new FaultyStream(out, c.bandwidth, cutAt, corruptAt);
+	}
+
+	// 回應內容是否包含檔案中的位置
+	private static boolean covers(long offset, long length, long at) {
+		return at >= offset && at < offset + length;
+	}
+
+	// 同一個檔案位置只注入一次錯誤，回傳這次是否要注入
+	private boolean inject(String fault, String path, long at) {
+		synchronized (injected) {
+			return injected.add(fault + " " + path + " " + at);
+		}
+	}
+
+	/**
+	 * 依網路狀況限制頻寬、截斷或竄改的資料流
+	 */
+	private class FaultyStream extends FilterOutputStream {
+
+		private final int  bandwidth;
+		private final long cutAt;
+		private final long corruptAt;
+		private final long begin = System.nanoTime();
+		private long written = 0;
+
+		FaultyStream(OutputStream out, int bandwidth, long cutAt, long corruptAt) {
+			super(out);
+			this.bandwidth = bandwidth;
+			this.cutAt = cutAt;
+			this.corruptAt = corruptAt;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, THROTTLE_CHUNK);
+				if (cutAt >= 0 && written + n > cutAt) {
+					n = (int)(cutAt - written);
+					out.write(b, off, n);
+					out.flush();
+					bytesSent.addAndGet(n);
+					throw new SocketException("Simulated truncation.");
+				}
+
+				if (corruptAt >= written && corruptAt < written + n) {
+					byte[] chunk = new byte[n];
+					System.arraycopy(b, off, chunk, 0, n);
+					chunk[(int)(corruptAt - written)] ^= 0x5a;
+					out.write(chunk, 0, n);
+				} else {
+					out.write(b, off, n);
+				}
+
+				written += n;
+				bytesSent.addAndGet(n);
+				off += n;
+				len -= n;
+				throttle();
+			}
+		}
+
+		// 傳送速度超過頻寬上限時等待
+		private void throttle() throws IOException {
+			if (bandwidth <= 0) {
+				return;
+			}
+
+			long expected = written * 1000 / bandwidth;
+			long elapsed  = (System.nanoTime() - begin) / 1000000;
+			if (expected > elapsed) {
+				try {
+					out.flush();
+					Thread.sleep(expected - elapsed);
+				} catch(InterruptedException ex) {
+					throw new SocketException("Server stopped.");
+				}
+			}
+		}
+
+	}
+
+}
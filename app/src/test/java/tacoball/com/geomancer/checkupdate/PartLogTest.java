@@ -0,0 +1,140 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 片段下載紀錄的續傳、寫入中斷的日誌與快照壓縮
+ */
+public class PartLogTest {
+
+	private static final String MAP = "taiwan-taco.map";
+	private static final String DB  = "unluckyhouse.sqlite";
+
+	@Rule
+	public final TemporaryFolder work = new TemporaryFolder();
+
+	@Test
+	public void testRestore() throws Exception {
+		File dir = work.getRoot();
+		PartLog log = PartLog.open(dir);
+		log.begin(MAP, "aa", new boolean[] { true, false, false, false });
+		log.markVerified(MAP, 2);
+		log.close();
+
+		PartLog reloaded = PartLog.open(dir);
+		try {
+			assertArrayEquals(new boolean[] { true, false, true, false }, reloaded.restore(MAP, "aa", 4));
+
+			// 檔案摘要值或片段數不符時視為沒有紀錄
+			assertArrayEquals(new boolean[4], reloaded.restore(MAP, "bb", 4));
+			assertArrayEquals(new boolean[5], reloaded.restore(MAP, "aa", 5));
+		} finally {
+			reloaded.close();
+		}
+	}
+
+	@Test
+	public void testTornLine() throws Exception {
+		File dir = work.getRoot();
+		PartLog log = PartLog.open(dir);
+		log.begin(MAP, "aa", new boolean[4]);
+		log.markVerified(MAP, 0);
+		log.close();
+
+		// 模擬寫到一半中斷的一行
+		File journal = new File(dir, PartLog.JOURNAL);
+		FileUtils.write(journal, "{\"verified\":\"" + MAP + "\",\"checks", "UTF-8", true);
+
+		PartLog reloaded = PartLog.open(dir);
+		assertArrayEquals(new boolean[] { true, false, false, false }, reloaded.restore(MAP, "aa", 4));
+
+		// 之後的日誌從新的一行開始，不會與中斷的一行黏在一起
+		reloaded.markVerified(MAP, 3);
+		reloaded.close();
+		assertArrayEquals(new boolean[] { true, false, false, true }, restore(dir, MAP, "aa", 4));
+	}
+
+	@Test
+	public void testStaleJournal() throws Exception {
+		File dir = work.getRoot();
+		PartLog log = PartLog.open(dir);
+		log.begin(MAP, "aa", new boolean[4]);
+		log.markVerified(MAP, 1);
+		log.close();
+
+		// 前一版的殘留日誌摘要值不符，重播時忽略
+		File journal = new File(dir, PartLog.JOURNAL);
+		FileUtils.write(journal, "{\"verified\":\"" + MAP + "\",\"checksum\":\"old\",\"part\":2}\n", "UTF-8", true);
+		assertArrayEquals(new boolean[] { false, true, false, false }, restore(dir, MAP, "aa", 4));
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		File dir = work.getRoot();
+		File journal = new File(dir, PartLog.JOURNAL);
+
+		PartLog log = PartLog.open(dir);
+		log.begin(MAP, "aa", new boolean[4]);
+		log.markVerified(MAP, 1);
+		assertTrue(journal.exists());
+
+		// 開始另一個項目時寫成新的快照並清空日誌
+		log.begin(DB, "cc", new boolean[2]);
+		assertFalse("日誌沒有清空", journal.exists());
+		assertTrue(new File(dir, PartLog.SNAPSHOT).exists());
+		log.close();
+
+		assertArrayEquals(new boolean[] { false, true, false, false }, restore(dir, MAP, "aa", 4));
+		assertArrayEquals(new boolean[2], restore(dir, DB, "cc", 2));
+
+		// 移除項目同樣壓縮
+		log = PartLog.open(dir);
+		log.markVerified(DB, 0);
+		log.remove(MAP);
+		assertFalse("日誌沒有清空", journal.exists());
+		log.close();
+		assertArrayEquals(new boolean[4], restore(dir, MAP, "aa", 4));
+		assertArrayEquals(new boolean[] { true, false }, restore(dir, DB, "cc", 2));
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		File dir = work.getRoot();
+		PartLog first = PartLog.open(dir);
+		PartLog second = PartLog.open(dir);
+		assertSame("同一個位置應共用紀錄", first, second);
+
+		// 另一個使用者壓縮時不會覆蓋這個使用者的進度
+		first.begin(MAP, "aa", new boolean[4]);
+		first.markVerified(MAP, 0);
+		second.begin(DB, "cc", new boolean[2]);
+		first.markVerified(MAP, 2);
+		first.close();
+		second.markVerified(DB, 1);
+		second.close();
+
+		assertArrayEquals(new boolean[] { true, false, true, false }, restore(dir, MAP, "aa", 4));
+		assertArrayEquals(new boolean[] { false, true }, restore(dir, DB, "cc", 2));
+	}
+
+	// 重新開啟紀錄並取得已驗證的片段
+	private static boolean[] restore(File dir, String filename, String checksum, int partCount) throws Exception {
+		PartLog log = PartLog.open(dir);
+		try {
+			return log.restore(filename, checksum, partCount);
+		} finally {
+			log.close();
+		}
+	}
+
+}
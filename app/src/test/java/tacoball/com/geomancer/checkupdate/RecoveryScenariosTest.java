@@ -0,0 +1,111 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 本地區塊修復與區域網路分享，確認只從鏡像站補抓需要的資料
+ */
+public class RecoveryScenariosTest {
+
+	@ClassRule
+	public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+	@Rule
+	public final TemporaryFolder work = new TemporaryFolder();
+
+	private static File sourceDir;
+	private static NetworkSimulator server;
+
+	@BeforeClass
+	public static void setUpServer() throws Exception {
+		sourceDir = TEMP.newFolder("source");
+		File releaseDir = TEMP.newFolder("release");
+		UpdateScenarios.prepare(sourceDir, releaseDir);
+
+		server = new NetworkSimulator(releaseDir, new NetworkSimulator.Condition("ideal"));
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownServer() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@After
+	public void resetCondition() {
+		server.setCondition(new NetworkSimulator.Condition("ideal"));
+	}
+
+	@Test
+	public void testRepairSingleBlock() throws Exception {
+		File targetDir = work.getRoot();
+		UpdateScenarios.Result r = UpdateScenarios.runRepair(server, targetDir);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+		assertTrue("修復單一區塊卻傳輸了 " + r.sent + " bytes", r.sent <= 2 * UpdateScenarios.PART_LENGTH + 65536);
+	}
+
+	@Test
+	public void testRawFileMissing() throws Exception {
+		File releaseDir = work.newFolder("release");
+		UpdateScenarios.buildRelease(sourceDir, releaseDir);
+		UpdateScenarios.removeRawFiles(releaseDir);
+
+		NetworkSimulator rawless = new NetworkSimulator(releaseDir, new NetworkSimulator.Condition("ideal"));
+		rawless.start();
+		try {
+			// 區塊差異同步找不到未壓縮檔，應改為完整下載而不是中止更新
+			File targetDir = new File(work.getRoot(), "target");
+			UpdateScenarios.Result r = UpdateScenarios.runRepair(rawless, targetDir);
+			System.out.println(r);
+
+			assertNull(r.error, r.error);
+			assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+			assertTrue("沒有回報區塊下載失敗", r.warnings > 0);
+		} finally {
+			rawless.stop();
+		}
+	}
+
+	@Test
+	public void testPeers() throws Exception {
+		UpdateScenarios.Result r = UpdateScenarios.runPeers(server, work.getRoot(), false);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertSameContent(new File(work.getRoot(), "peer"));
+		assertTrue("節點持有全部檔案，鏡像站卻傳輸了 " + r.sent + " bytes", r.sent <= UpdateScenarios.OVERHEAD_LENGTH);
+	}
+
+	@Test
+	public void testCorruptPeer() throws Exception {
+		UpdateScenarios.Result r = UpdateScenarios.runPeers(server, work.getRoot(), true);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertSameContent(new File(work.getRoot(), "peer-bad"));
+		assertTrue("沒有偵測到節點提供的損毀區塊", r.warnings > 0);
+		assertTrue("鏡像站傳輸了 " + r.sent + " bytes", r.sent <= UpdateScenarios.OVERHEAD_LENGTH + UpdateScenarios.PART_LENGTH);
+	}
+
+	private void assertSameContent(File targetDir) throws Exception {
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.DB_FILE));
+	}
+
+}
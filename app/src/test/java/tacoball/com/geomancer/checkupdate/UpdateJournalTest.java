@@ -0,0 +1,155 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 更新紀錄的日誌重播、寫入中斷的日誌與快照壓縮
+ */
+public class UpdateJournalTest {
+
+	@Rule
+	public final TemporaryFolder work = new TemporaryFolder();
+
+	@Test
+	public void testReplay() throws Exception {
+		File dir = work.getRoot();
+		assertNull(UpdateJournal.read(dir));
+
+		UpdateJournal journal = UpdateJournal.open(dir);
+		journal.begin(config("0.1.0"), true);
+		journal.put("a", fileInfo(1));
+		journal.put("b", fileInfo(2));
+		journal.remove("a");
+		journal.close();
+
+		JsonObject log = UpdateJournal.read(dir);
+		assertEquals("0.1.0", log.getAsJsonObject("config").get("spec").getAsString());
+		assertFalse(log.getAsJsonObject("files").has("a"));
+		assertEquals(2, mtime(log, "b"));
+
+		// 更換設定值並清除檔案紀錄
+		journal = UpdateJournal.open(dir);
+		journal.load();
+		journal.begin(config("0.2.0"), true);
+		journal.close();
+		log = UpdateJournal.read(dir);
+		assertEquals("0.2.0", log.getAsJsonObject("config").get("spec").getAsString());
+		assertEquals(0, log.getAsJsonObject("files").size());
+	}
+
+	@Test
+	public void testTornLine() throws Exception {
+		File dir = work.getRoot();
+		UpdateJournal journal = UpdateJournal.open(dir);
+		journal.begin(config("0.1.0"), true);
+		journal.put("a", fileInfo(1));
+		journal.close();
+
+		// 模擬寫到一半中斷的一行
+		File journalFile = new File(dir, UpdateJournal.JOURNAL);
+		FileUtils.write(journalFile, "{\"put\":\"b\",\"info\":{\"mti", "UTF-8", true);
+
+		journal = UpdateJournal.open(dir);
+		JsonObject log = journal.load();
+		assertEquals(1, mtime(log, "a"));
+		assertFalse(log.getAsJsonObject("files").has("b"));
+
+		// 之後的日誌從新的一行開始，不會與中斷的一行黏在一起
+		journal.put("c", fileInfo(3));
+		journal.close();
+		log = UpdateJournal.read(dir);
+		assertEquals(1, mtime(log, "a"));
+		assertEquals(3, mtime(log, "c"));
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		File dir = work.getRoot();
+		File journalFile = new File(dir, UpdateJournal.JOURNAL);
+
+		UpdateJournal journal = UpdateJournal.open(dir);
+		journal.begin(config("0.1.0"), true);
+		journal.put("a", fileInfo(1));
+		journal.close();
+		assertTrue("日誌太短就壓縮", journalFile.exists());
+
+		// 日誌筆數超過下限時，結束寫入就壓縮為新的快照
+		journal = UpdateJournal.open(dir);
+		journal.load();
+		for (int i=0;i<40;i++) {
+			journal.put("a", fileInfo(i));
+		}
+		journal.close();
+		assertFalse("日誌沒有清空", journalFile.exists());
+		assertEquals(39, mtime(UpdateJournal.read(dir), "a"));
+
+		// 壓縮後繼續附加
+		journal = UpdateJournal.open(dir);
+		journal.load();
+		journal.put("b", fileInfo(5));
+		journal.close();
+		JsonObject log = UpdateJournal.read(dir);
+		assertEquals(39, mtime(log, "a"));
+		assertEquals(5, mtime(log, "b"));
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		File dir = work.getRoot();
+		UpdateJournal update = UpdateJournal.open(dir);
+		UpdateJournal other = UpdateJournal.open(dir);
+		assertSame("同一個位置應共用紀錄", update, other);
+
+		update.begin(config("0.1.0"), true);
+		update.put("a", fileInfo(1));
+
+		// 載入的是複本，修改後要經過 put 才會寫入
+		JsonObject copy = other.load();
+		copy.getAsJsonObject("files").remove("a");
+		for (int i=0;i<40;i++) {
+			other.put("b", fileInfo(i));
+		}
+		other.close();
+		assertTrue("還有其他使用者時就壓縮", new File(dir, UpdateJournal.JOURNAL).exists());
+
+		// 最後一個使用者歸還時壓縮，快照包含兩者的異動
+		update.put("c", fileInfo(3));
+		update.close();
+		assertFalse("日誌沒有清空", new File(dir, UpdateJournal.JOURNAL).exists());
+		JsonObject log = UpdateJournal.read(dir);
+		assertEquals(1, mtime(log, "a"));
+		assertEquals(39, mtime(log, "b"));
+		assertEquals(3, mtime(log, "c"));
+	}
+
+	private static JsonObject config(String spec) {
+		JsonObject config = new JsonObject();
+		config.addProperty("spec", spec);
+		return config;
+	}
+
+	private static JsonObject fileInfo(long mtime) {
+		JsonObject info = new JsonObject();
+		info.addProperty("mtime", mtime);
+		info.addProperty("checksum", "aa");
+		return info;
+	}
+
+	private static long mtime(JsonObject log, String filename) {
+		return log.getAsJsonObject("files").getAsJsonObject(filename).get("mtime").getAsLong();
+	}
+
+}
@@ -0,0 +1,475 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.apache.commons.io.FileUtils;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 更新流程端對端測試的共用情境，在 JVM 上以 NetworkSimulator 取代真實的鏡像站
+ *
+ * 產生一份測試用的更新檔 (預設為區塊壓縮、xxHash64 片段摘要、區塊摘要與 Merkle 樹，也可以整個檔案壓縮成 gzip 或 xz)，
+ * 提供在指定網路狀況與下載模式下完整更新、破壞本地區塊後修復、透過區域網路節點更新，以及檢查更新的執行程序。
+ * 執行程序只記錄結果 (傳輸量、請求數、警告數與注入的錯誤數)，由各個 *ScenariosTest 判定。
+ */
+class UpdateScenarios {
+
+	static final String DIGEST = "MD5";
+	static final String PART_DIGEST = "XXH64";
+	static final int PART_LENGTH = 65536;
+	static final long SEED = 20180101;
+
+	// 區域網路分享情境使用的探索連接埠，避免與實際分享中的裝置互相干擾
+	private static final int DISCOVERY_PORT = 27184;
+
+	/**
+	 * 量測鏡像站與更新資訊的傳輸量上限
+	 */
+	static final int OVERHEAD_LENGTH = 65536 + 16384;
+
+	/**
+	 * 測試檔案，地圖檔可壓縮，資料庫檔不可壓縮
+	 */
+	static final String MAP_FILE = "taiwan-taco.map";
+	static final String DB_FILE  = "unluckyhouse.sqlite";
+
+	/**
+	 * 一次情境執行結果
+	 */
+	static class Result {
+		String  condition;
+		String  mode;
+		long    elapsed;   // 毫秒
+		long    sent;      // 鏡像站送出的位元組
+		int     requests;
+		int     warnings;
+		int     faults;    // 鏡像站注入的斷線、截斷與損毀次數
+		long    checked;   // 檢查更新回報需要更新的大小
+		String  error;     // 更新失敗的原因，成功時為 null
+
+		@Override
+		public String toString() {
+			double rate = elapsed > 0 ? sent / 1024.0 * 1000 / elapsed : 0;
+			return String.format(Locale.getDefault(), "%-10s %-10s %6d ms %8.1f KB/s %4d req %3d faults %3d warnings%s",
+				condition, mode, elapsed, rate, requests, faults, warnings,
+				error == null ? "" : "  " + error);
+		}
+	}
+
+	/**
+	 * 預設的網路狀況，錯誤位置都落在兩個測試檔的壓縮檔範圍內，並避開鏡像站量測用的開頭
+	 */
+	static List<NetworkSimulator.Condition> defaultConditions() {
+		List<NetworkSimulator.Condition> conditions = new ArrayList<>();
+		conditions.add(new NetworkSimulator.Condition("ideal"));
+		conditions.add(new NetworkSimulator.Condition("latency").latency(80));
+		conditions.add(new NetworkSimulator.Condition("slow").bandwidth(512 * 1024));
+		conditions.add(new NetworkSimulator.Condition("drops").drop(2, 5, 9));
+		conditions.add(new NetworkSimulator.Condition("truncated").truncate(100000, 300000));
+		conditions.add(new NetworkSimulator.Condition("corrupt").corrupt(150000, 350000));
+		conditions.add(new NetworkSimulator.Condition("hostile").latency(40).bandwidth(1024 * 1024).drop(3).truncate(200000).corrupt(400000));
+		return conditions;
+	}
+
+	/**
+	 * 產生原始檔與發布目錄
+	 *
+	 * @param sourceDir  原始檔目錄
+	 * @param releaseDir 發布目錄
+	 */
+	static void prepare(File sourceDir, File releaseDir) throws IOException, NoSuchAlgorithmException {
+		generateSources(sourceDir);
+		buildRelease(sourceDir, releaseDir);
+	}
+
+	/**
+	 * 發布目錄中所有檔案的片段數
+	 *
+	 * @param releaseDir 發布目錄
+	 */
+	static int partCount(File releaseDir) throws IOException {
+		JsonObject files = releaseFiles(releaseDir);
+		int count = 0;
+		for (String name : files.keySet()) {
+			count += files.getAsJsonObject(name).getAsJsonArray("partChecksums").size();
+		}
+		return count;
+	}
+
+	/**
+	 * 發布目錄中所有壓縮檔的總長度
+	 *
+	 * @param releaseDir 發布目錄
+	 */
+	static long compressedLength(File releaseDir) throws IOException {
+		JsonObject files = releaseFiles(releaseDir);
+		long length = 0;
+		for (String name : files.keySet()) {
+			length += files.getAsJsonObject(name).get("gzLength").getAsLong();
+		}
+		return length;
+	}
+
+	// 讀取發布目錄的檔案清單
+	private static JsonObject releaseFiles(File releaseDir) throws IOException {
+		return new JsonParser().parse(FileUtils.readFileToString(new File(releaseDir, "update.json"), "UTF-8"))
+			.getAsJsonObject().getAsJsonObject("files");
+	}
+
+	/**
+	 * 在指定網路狀況下完整更新一次
+	 *
+	 * @param  server    模擬鏡像站
+	 * @param  condition 網路狀況
+	 * @param  mode      下載模式
+	 * @param  targetDir 更新目錄
+	 * @return 執行結果
+	 */
+	static Result runUpdate(NetworkSimulator server, NetworkSimulator.Condition condition, AutoUpdateManager.DownloadMode mode,
+			File targetDir) throws Exception {
+		FileUtils.forceMkdir(targetDir);
+		server.setCondition(condition);
+
+		AutoUpdateManager manager = newManager(targetDir);
+		manager.setDownloadMode(mode);
+
+		Result r = new Result();
+		r.condition = condition.name;
+		r.mode = mode.name();
+		execute(manager, server, r);
+		return r;
+	}
+
+	/**
+	 * 完整更新後破壞一個本地區塊，再以深度檢查更新
+	 *
+	 * @param  server    模擬鏡像站
+	 * @param  targetDir 更新目錄
+	 * @return 修復那一次更新的執行結果
+	 */
+	static Result runRepair(NetworkSimulator server, File targetDir) throws Exception {
+		FileUtils.forceMkdir(targetDir);
+		server.setCondition(new NetworkSimulator.Condition("ideal"));
+		AutoUpdateManager manager = newManager(targetDir);
+		execute(manager, server, new Result());
+
+		damageMiddle(new File(targetDir, MAP_FILE));
+
+		server.setCondition(new NetworkSimulator.Condition("repair"));
+		manager.setDeepVerify(true);
+		Result r = new Result();
+		r.condition = "repair";
+		r.mode = "DEEP";
+		execute(manager, server, r);
+		return r;
+	}
+
+	/**
+	 * 在本機模擬區域網路分享，第一個更新管理程式從鏡像站更新後開始分享，第二個以探索找到第一個後更新
+	 *
+	 * @param  server    模擬鏡像站
+	 * @param  workDir   工作目錄
+	 * @param  corrupt   是否先破壞分享端的一個區塊，接收端應拒絕後改從鏡像站補抓
+	 * @return 第二個更新管理程式的執行結果
+	 */
+	static Result runPeers(NetworkSimulator server, File workDir, boolean corrupt) throws Exception {
+		String name = corrupt ? "peer-bad" : "peer";
+		File sharerDir = new File(workDir, name + "-sharer");
+		File targetDir = new File(workDir, name);
+		FileUtils.forceMkdir(sharerDir);
+		FileUtils.forceMkdir(targetDir);
+
+		server.setCondition(new NetworkSimulator.Condition("ideal"));
+		AutoUpdateManager sharer = newManager(sharerDir);
+		sharer.setDiscoveryPort(DISCOVERY_PORT);
+		execute(sharer, server, new Result());
+		if (corrupt) {
+			damageMiddle(new File(sharerDir, MAP_FILE));
+		}
+
+		Result r = new Result();
+		r.condition = name;
+		r.mode = "PEER";
+		if (sharer.startSharing(0) < 0) {
+			r.error = "無法開始分享";
+			return r;
+		}
+
+		try {
+			server.setCondition(new NetworkSimulator.Condition(name));
+			AutoUpdateManager manager = newManager(targetDir);
+			manager.setDiscoveryPort(DISCOVERY_PORT);
+			manager.setPeerDiscovery(true);
+			execute(manager, server, r);
+		} finally {
+			sharer.stopSharing();
+		}
+		return r;
+	}
+
+	/**
+	 * 檢查一次更新
+	 *
+	 * @param  server    模擬鏡像站
+	 * @param  targetDir 更新目錄
+	 * @return 執行結果，checked 為需要更新的大小
+	 */
+	static Result runCheck(NetworkSimulator server, File targetDir) throws Exception {
+		FileUtils.forceMkdir(targetDir);
+		server.setCondition(new NetworkSimulator.Condition("check"));
+
+		final Result r = new Result();
+		r.condition = "check";
+		r.mode = "CHECK";
+		r.checked = -1;
+		UpdateJob job = newManager(targetDir).checkUpdate(server.url(), new CheckUpdateAdapter() {
+			@Override
+			public void onCheck(long totalLength, String lastModified) {
+				r.checked = totalLength;
+			}
+
+			@Override
+			public void onError(String reason) {
+				r.error = reason;
+			}
+		});
+		job.join();
+		r.sent = server.bytesSent.get();
+		r.requests = server.requests.get();
+		return r;
+	}
+
+	// 破壞檔案中間的一個位元組
+	static void damageMiddle(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(file.length() / 2);
+			int b = raf.read();
+			raf.seek(file.length() / 2);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// 測試用的更新管理程式，縮短逾時與重試等待
+	static AutoUpdateManager newManager(File targetDir) {
+		AutoUpdateManager manager = new AutoUpdateManager(targetDir, targetDir);
+		manager.setTimeouts(2000, 2000);
+		manager.setPartDeadline(10000);
+		manager.setRetryBackoff(20, 200);
+		return manager;
+	}
+
+	// 執行更新並記錄結果
+	static void execute(AutoUpdateManager manager, NetworkSimulator server, Result r) throws InterruptedException {
+		execute(manager, server.url(), server, r);
+	}
+
+	// 從指定位置執行更新並記錄結果，鏡像站的統計值仍以 server 為準
+	static void execute(AutoUpdateManager manager, String url, NetworkSimulator server, final Result r) throws InterruptedException {
+		final AtomicInteger warnings = new AtomicInteger();
+		final String[] error = new String[1];
+		manager.addListener(new AutoUpdateAdapter() {
+			@Override
+			public void onFileWarning(String filename, String reason) {
+				warnings.incrementAndGet();
+			}
+
+			@Override
+			public void onError(String reason) {
+				error[0] = reason;
+			}
+		});
+
+		long begin = System.nanoTime();
+		UpdateJob job = manager.start(url);
+		if (!job.join(120000)) {
+			job.cancel();
+			job.join();
+			error[0] = "更新逾時";
+		}
+		r.elapsed = (System.nanoTime() - begin) / 1000000;
+		r.sent = server.bytesSent.get();
+		r.requests = server.requests.get();
+		r.warnings = warnings.get();
+		r.faults = server.drops.get() + server.truncations.get() + server.corruptions.get();
+		r.error = error[0];
+	}
+
+	/**
+	 * 比對更新結果與原始檔是否逐位元組相同
+	 *
+	 * @param sourceDir 原始檔目錄
+	 * @param targetDir 更新目錄
+	 * @param filename  檔名
+	 */
+	static boolean sameContent(File sourceDir, File targetDir, String filename) throws IOException {
+		File target = new File(targetDir, filename);
+		return target.exists() && FileUtils.contentEquals(new File(sourceDir, filename), target);
+	}
+
+	/**
+	 * 產生測試用的原始檔
+	 *
+	 * @param dir 原始檔目錄
+	 */
+	static void generateSources(File dir) throws IOException {
+		Random random = new Random(SEED);
+
+		// 地圖檔：可壓縮的內容
+		byte[] map = new byte[3 * 1024 * 1024 + 12345];
+		for (int i=0;i<map.length;i++) {
+			map[i] = (byte)('a' + random.nextInt(16));
+		}
+		FileUtils.writeByteArrayToFile(new File(dir, MAP_FILE), map);
+
+		// 資料庫檔：幾乎不可壓縮的內容
+		byte[] db = new byte[512 * 1024 + 321];
+		random.nextBytes(db);
+		FileUtils.writeByteArrayToFile(new File(dir, DB_FILE), db);
+	}
+
+	/**
+	 * 產生更新資訊與 gzip 區塊壓縮檔
+	 *
+	 * @param sourceDir  原始檔目錄
+	 * @param releaseDir 發布目錄
+	 */
+	static void buildRelease(File sourceDir, File releaseDir) throws IOException, NoSuchAlgorithmException {
+		buildRelease(sourceDir, releaseDir, "gzip", true);
+	}
+
+	/**
+	 * 產生更新資訊與壓縮檔
+	 *
+	 * 區塊壓縮時每個區塊各自壓縮成一個成員，並提供區塊索引、區塊摘要值與 Merkle 樹，同時發布未壓縮檔；
+	 * 否則整個檔案壓縮成單一資料流，更新資訊只有片段摘要值與最後一個片段的摘要值。
+	 *
+	 * @param sourceDir  原始檔目錄
+	 * @param releaseDir 發布目錄
+	 * @param codec      壓縮格式，gzip 或 xz
+	 * @param blocks     是否區塊壓縮
+	 */
+	static void buildRelease(File sourceDir, File releaseDir, String codec, boolean blocks) throws IOException, NoSuchAlgorithmException {
+		JsonObject files = new JsonObject();
+		String[] names = sourceDir.list();
+		Arrays.sort(names);
+
+		for (String name : names) {
+			byte[] raw = FileUtils.readFileToByteArray(new File(sourceDir, name));
+
+			// 區塊壓縮時每個區塊各自壓縮成一個成員，否則整個檔案只有一個成員
+			int memberLength = blocks ? PART_LENGTH : raw.length;
+			ByteArrayOutputStream gz = new ByteArrayOutputStream();
+			JsonArray blockIndex = new JsonArray();
+			JsonArray blockChecksums = new JsonArray();
+			for (int offset=0;offset<raw.length;offset+=memberLength) {
+				int length = Math.min(memberLength, raw.length - offset);
+				blockIndex.add(gz.size());
+				blockChecksums.add(hash(DIGEST, raw, offset, length));
+				OutputStream member = compress(codec, gz);
+				member.write(raw, offset, length);
+				member.close();
+			}
+			byte[] compressed = gz.toByteArray();
+			FileUtils.writeByteArrayToFile(new File(releaseDir, name + extension(codec)), compressed);
+
+			JsonArray partChecksums = new JsonArray();
+			for (int offset=0;offset<compressed.length;offset+=PART_LENGTH) {
+				partChecksums.add(hash(PART_DIGEST, compressed, offset, Math.min(PART_LENGTH, compressed.length - offset)));
+			}
+
+			int lastPart = (raw.length - 1) / PART_LENGTH * PART_LENGTH;
+			JsonObject info = new JsonObject();
+			info.addProperty("length", raw.length);
+			info.addProperty("gzLength", compressed.length);
+			info.addProperty("mtime", System.currentTimeMillis() / 1000);
+			info.addProperty("isoTime", "2018-01-01T00:00:00+08:00");
+			info.addProperty("checksum", hash(DIGEST, raw, lastPart, raw.length - lastPart));
+			info.add("partChecksums", partChecksums);
+			if (blocks) {
+				String[] leaves = new String[blockChecksums.size()];
+				for (int i=0;i<leaves.length;i++) {
+					leaves[i] = blockChecksums.get(i).getAsString();
+				}
+				info.add("blockChecksums", blockChecksums);
+				info.add("blockIndex", blockIndex);
+				info.addProperty("merkleRoot", new MerkleTree(leaves, DIGEST).root());
+				FileUtils.writeByteArrayToFile(new File(releaseDir, name), raw);
+			}
+			files.add(name, info);
+		}
+
+		JsonObject config = new JsonObject();
+		config.addProperty("spec", "0.1.0");
+		config.addProperty("digest", DIGEST);
+		config.addProperty("partDigest", PART_DIGEST);
+		config.addProperty("partLength", PART_LENGTH);
+		config.addProperty("fileCount", names.length);
+		if (!"gzip".equals(codec)) {
+			config.addProperty("codec", codec);
+		}
+
+		JsonObject manifest = new JsonObject();
+		manifest.add("config", config);
+		manifest.add("files", files);
+		FileUtils.write(new File(releaseDir, "update.json"), new GsonBuilder().setPrettyPrinting().create().toJson(manifest), "UTF-8");
+	}
+
+	/**
+	 * 移除發布目錄中的未壓縮檔與區塊索引，區塊差異同步只能向鏡像站要求不存在的未壓縮檔
+	 *
+	 * @param releaseDir 發布目錄
+	 */
+	static void removeRawFiles(File releaseDir) throws IOException {
+		File manifestFile = new File(releaseDir, "update.json");
+		JsonObject manifest = new JsonParser().parse(FileUtils.readFileToString(manifestFile, "UTF-8")).getAsJsonObject();
+		JsonObject files = manifest.getAsJsonObject("files");
+		for (String name : files.keySet()) {
+			files.getAsJsonObject(name).remove("blockIndex");
+			FileUtils.forceDelete(new File(releaseDir, name));
+		}
+		FileUtils.write(manifestFile, new GsonBuilder().setPrettyPrinting().create().toJson(manifest), "UTF-8");
+	}
+
+	// 壓縮一個成員的資料流，關閉時寫完成員結尾
+	private static OutputStream compress(String codec, OutputStream out) throws IOException {
+		if ("xz".equals(codec)) {
+			return new XZOutputStream(out, new LZMA2Options());
+		}
+		return new GZIPOutputStream(out);
+	}
+
+	// 壓縮檔副檔名
+	private static String extension(String codec) {
+		return "xz".equals(codec) ? ".xz" : ".gz";
+	}
+
+	// 計算一段資料的摘要值
+	private static String hash(String algorithm, byte[] data, int offset, int length) throws NoSuchAlgorithmException {
+		MessageDigest md = Digests.getInstance(algorithm);
+		md.update(data, offset, length);
+		return AutoUpdateManager.toHex(md.digest());
+	}
+
+}
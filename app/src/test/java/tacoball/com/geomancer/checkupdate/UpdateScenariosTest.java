@@ -0,0 +1,96 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在各種網路狀況與下載模式下完整更新，確認結果與原始檔逐位元組相同，
+ * 且注入的錯誤只造成有限的警告與重新請求，傳輸速率輸出到測試紀錄
+ */
+@RunWith(Parameterized.class)
+public class UpdateScenariosTest {
+
+	// 與 UpdateSession 的片段重試次數相同
+	private static final int PART_RETRY_LIMIT = 3;
+
+	// 更新資訊、續傳確認等不屬於片段的請求數上限
+	private static final int OVERHEAD_REQUESTS = 8;
+
+	@ClassRule
+	public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+	private static File sourceDir;
+	private static int partCount;
+	private static NetworkSimulator server;
+
+	@Parameterized.Parameters(name = "{0}-{1}")
+	public static Collection<Object[]> parameters() {
+		List<Object[]> parameters = new ArrayList<>();
+		for (NetworkSimulator.Condition condition : UpdateScenarios.defaultConditions()) {
+			for (AutoUpdateManager.DownloadMode mode : AutoUpdateManager.DownloadMode.values()) {
+				parameters.add(new Object[] { condition, mode });
+			}
+		}
+		return parameters;
+	}
+
+	@Parameterized.Parameter(0)
+	public NetworkSimulator.Condition condition;
+
+	@Parameterized.Parameter(1)
+	public AutoUpdateManager.DownloadMode mode;
+
+	@BeforeClass
+	public static void setUpServer() throws Exception {
+		sourceDir = TEMP.newFolder("source");
+		File releaseDir = TEMP.newFolder("release");
+		UpdateScenarios.prepare(sourceDir, releaseDir);
+		partCount = UpdateScenarios.partCount(releaseDir);
+
+		server = new NetworkSimulator(releaseDir, new NetworkSimulator.Condition("ideal"));
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownServer() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		File targetDir = new File(TEMP.getRoot(), condition.name + "-" + mode.name());
+		UpdateScenarios.Result r = UpdateScenarios.runUpdate(server, condition, mode, targetDir);
+		System.out.println(r);
+
+		assertNull(r.error, r.error);
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.MAP_FILE));
+		assertTrue(UpdateScenarios.sameContent(sourceDir, targetDir, UpdateScenarios.DB_FILE));
+
+		if (!condition.injectsFaults()) {
+			assertEquals("沒有注入錯誤卻發出警告", 0, r.warnings);
+		} else {
+			assertTrue("網路狀況沒有注入任何錯誤", r.faults > 0);
+			assertTrue("警告數 " + r.warnings + " 超過注入錯誤數 " + r.faults, r.warnings <= r.faults);
+		}
+
+		int limit = partCount + OVERHEAD_REQUESTS + PART_RETRY_LIMIT * r.faults;
+		assertTrue("請求數 " + r.requests + " 超過上限 " + limit, r.requests <= limit);
+	}
+
+}
@@ -0,0 +1,61 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * xxHash64 與官方公布的測試向量比對，並確認分段 update 與一次 update 的結果相同
+ */
+public class XxHash64DigestTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testPublishedVectors() {
+		assertEquals("ef46db3751d8e999", xxh64(""));
+		assertEquals("d24ec4f1a98c6e5b", xxh64("a"));
+		assertEquals("44bc2cf5ad770999", xxh64("abc"));
+		// 超過 32 bytes，經過四個累加器
+		assertEquals("fbcea83c8a378bf1", xxh64("Nobody inspects the spammish repetition"));
+	}
+
+	@Test
+	public void testSplitUpdates() {
+		byte[] data = new byte[1000];
+		new Random(UpdateScenarios.SEED).nextBytes(data);
+
+		XxHash64Digest whole = new XxHash64Digest();
+		whole.update(data);
+		byte[] expected = whole.digest();
+
+		// 切點落在 32 bytes 區段的內部與邊界
+		for (int step : new int[] { 1, 7, 31, 32, 33, 100 }) {
+			XxHash64Digest split = new XxHash64Digest();
+			for (int offset=0;offset<data.length;offset+=step) {
+				split.update(data, offset, Math.min(step, data.length - offset));
+			}
+			assertArrayEquals("每次 " + step + " bytes", expected, split.digest());
+		}
+	}
+
+	@Test
+	public void testReset() {
+		XxHash64Digest md = new XxHash64Digest();
+		md.update("garbage".getBytes(UTF8));
+		md.reset();
+		md.update("abc".getBytes(UTF8));
+		assertEquals("44bc2cf5ad770999", AutoUpdateManager.toHex(md.digest()));
+	}
+
+	private static String xxh64(String text) {
+		XxHash64Digest md = new XxHash64Digest();
+		md.update(text.getBytes(UTF8));
+		return AutoUpdateManager.toHex(md.digest());
+	}
+
+}
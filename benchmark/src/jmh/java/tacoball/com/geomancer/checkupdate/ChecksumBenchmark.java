@@ -0,0 +1,71 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 片段摘要計算 (checkPart 與深度檢查) 的效能測試
+ *
+ * 每次操作計算整個檔案所有片段的摘要值，partSerial 與 checkPart 相同逐一計算，
+ * partParallel 與深度檢查相同由多個執行緒共用 FileChannel 計算。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChecksumBenchmark {
+
+	private static final int PART_LENGTH = 1048576;
+
+	@Param({"1", "64", "1024"})
+	public int sizeMB;
+
+	@Param({"MD5", "SHA-256", "XXH64", "CRC32"})
+	public String digest;
+
+	private File dir;
+	private File file;
+	private int  partCount;
+	private byte[] buffer;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticFiles.tempDir("checksum");
+		file = new File(dir, "taiwan-taco.map");
+		SyntheticFiles.generate(file, sizeMB * 1048576L);
+		partCount = (int)((file.length() + PART_LENGTH - 1) / PART_LENGTH);
+		buffer = new byte[BufferPool.BUFFER_SIZE];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Benchmark
+	public void partSerial(ByteCounter counter, Blackhole bh) throws Exception {
+		for (int i=0;i<partCount;i++) {
+			bh.consume(BlockHasher.hashBlock(file, i, PART_LENGTH, digest, buffer));
+		}
+		counter.bytes += file.length();
+	}
+
+	@Benchmark
+	public String[] partParallel(ByteCounter counter) throws Exception {
+		counter.bytes += file.length();
+		return BlockHasher.hash(file, PART_LENGTH, digest, Runtime.getRuntime().availableProcessors());
+	}
+
+}
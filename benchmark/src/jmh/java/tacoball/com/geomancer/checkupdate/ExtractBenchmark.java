@@ -0,0 +1,154 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 解壓縮 (extract) 的效能測試，處理量以解壓縮後的位元組計算
+ *
+ * stream 與 extract() 相同以單一資料流解壓縮整個檔案，
+ * blocks 與 extractBlocks() 相同由多個執行緒各自解壓縮區塊索引中的成員，寫入目標檔的對應位置。
+ * xz 的壓縮在準備階段進行，大檔案需要數分鐘。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExtractBenchmark {
+
+	private static final int BLOCK_LENGTH = 1048576;
+
+	@Param({"1", "64", "1024"})
+	public int sizeMB;
+
+	@Param({"gzip", "xz"})
+	public String codecName;
+
+	private File dir;
+	private File compressed;
+	private File target;
+	private long length;
+	private Codec codec;
+	private BlockIndex index;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticFiles.tempDir("extract");
+		File raw = new File(dir, "taiwan-taco.map");
+		compressed = new File(dir, "taiwan-taco.map.packed");
+		target = new File(dir, "taiwan-taco.map.out");
+
+		SyntheticFiles.generate(raw, sizeMB * 1048576L);
+		long[] offsets = SyntheticFiles.compress(raw, compressed, codecName, BLOCK_LENGTH);
+		length = raw.length();
+		FileUtils.deleteQuietly(raw);
+
+		codec = codecName.equals("xz") ? new XzCodec() : new GzipCodec();
+
+		JsonObject fileInfo = new JsonObject();
+		JsonArray blockIndex = new JsonArray();
+		for (long offset : offsets) {
+			blockIndex.add(offset);
+		}
+		fileInfo.add("blockIndex", blockIndex);
+		fileInfo.addProperty("gzLength", compressed.length());
+		fileInfo.addProperty("length", length);
+		index = BlockIndex.load(fileInfo, BLOCK_LENGTH);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Benchmark
+	public void stream(ByteCounter counter) throws Exception {
+		byte[] buffer = BufferPool.acquire();
+		try {
+			InputStream  in  = codec.decode(new BufferedInputStream(new FileInputStream(compressed)));
+			OutputStream out = new FileOutputStream(target);
+			try {
+				counter.bytes += IOUtils.copyLarge(in, out, buffer);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+	@Benchmark
+	public void blocks(ByteCounter counter) throws Exception {
+		final int blockCount = index.size();
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), blockCount));
+
+		RandomAccessFile in  = new RandomAccessFile(compressed, "r");
+		RandomAccessFile out = new RandomAccessFile(target, "rw");
+		ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+		try {
+			out.setLength(length);
+			final FileChannel inChannel  = in.getChannel();
+			final FileChannel outChannel = out.getChannel();
+
+			List<Future<Void>> workers = new ArrayList<>();
+			for (int i=0;i<workerCount;i++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						int blockNumber;
+						while ((blockNumber = nextBlock.getAndIncrement()) < blockCount) {
+							byte[] block = index.decode(codec, index.read(inChannel, blockNumber), blockNumber);
+							ByteBuffer src = ByteBuffer.wrap(block);
+							long position = (long)blockNumber * BLOCK_LENGTH;
+							while (src.hasRemaining()) {
+								position += outChannel.write(src, position);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : workers) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+			in.close();
+			out.close();
+		}
+		counter.bytes += length;
+	}
+
+}
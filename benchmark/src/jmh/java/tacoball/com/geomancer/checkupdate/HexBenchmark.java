@@ -0,0 +1,42 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 摘要值轉十六進位字串 (toHex) 的效能測試，每個片段、區塊與 Merkle 節點都會轉換一次
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HexBenchmark {
+
+	// MD5、SHA-1 與 SHA-256 的摘要長度
+	@Param({"16", "20", "32"})
+	public int digestLength;
+
+	private byte[] hash;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		hash = new byte[digestLength];
+		new Random(digestLength).nextBytes(hash);
+	}
+
+	@Benchmark
+	public String toHex(ByteCounter counter) {
+		counter.bytes += hash.length;
+		return AutoUpdateManager.toHex(hash);
+	}
+
+}
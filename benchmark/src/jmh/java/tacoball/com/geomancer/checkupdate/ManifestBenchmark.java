@@ -0,0 +1,141 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 更新資訊與更新紀錄處理的效能測試
+ *
+ * parse 與 parseJSON() 相同從資料流解析更新資訊，處理量以檔案大小計算；
+ * journalUpdate 模擬一次完整更新寫入每個檔案的紀錄 (以 ops/s 比較)，journalLoad 載入快照並重播日誌。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ManifestBenchmark {
+
+	// 每個檔案的片段數
+	private static final int PARTS_PER_FILE = 16;
+
+	@Param({"1", "100", "10000"})
+	public int fileCount;
+
+	private File dir;
+	private File manifestFile;
+	private File logDir;
+	private JsonObject manifest;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticFiles.tempDir("manifest");
+		manifestFile = new File(dir, "update.json");
+		logDir = new File(dir, "log");
+		FileUtils.forceMkdir(logDir);
+
+		Random random = new Random(fileCount);
+		JsonObject files = new JsonObject();
+		for (int i=0;i<fileCount;i++) {
+			JsonArray partChecksums = new JsonArray();
+			for (int j=0;j<PARTS_PER_FILE;j++) {
+				partChecksums.add(randomHash(random));
+			}
+
+			JsonObject info = new JsonObject();
+			info.addProperty("length", PARTS_PER_FILE * 1048576L);
+			info.addProperty("gzLength", PARTS_PER_FILE * 524288L);
+			info.addProperty("mtime", 1514736000L + i);
+			info.addProperty("isoTime", "2018-01-01T00:00:00+08:00");
+			info.addProperty("checksum", randomHash(random));
+			info.add("partChecksums", partChecksums);
+			files.add(String.format(Locale.getDefault(), "file-%05d.map", i), info);
+		}
+
+		JsonObject config = new JsonObject();
+		config.addProperty("spec", "0.1.0");
+		config.addProperty("digest", "MD5");
+		config.addProperty("partLength", 1048576);
+		config.addProperty("fileCount", fileCount);
+
+		manifest = new JsonObject();
+		manifest.add("config", config);
+		manifest.add("files", files);
+		FileUtils.write(manifestFile, new Gson().toJson(manifest), "UTF-8");
+
+		// journalLoad 使用的紀錄
+		journalUpdate();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Benchmark
+	public JsonObject parse(ByteCounter counter) throws Exception {
+		JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+		try {
+			JsonElement root = new JsonParser().parse(reader);
+			counter.bytes += manifestFile.length();
+			return root.getAsJsonObject();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Benchmark
+	public void journalUpdate() throws Exception {
+		JsonObject log = new JsonObject();
+		log.add("config", manifest.get("config"));
+		log.add("files", new JsonObject());
+
+		UpdateJournal journal = new UpdateJournal(logDir);
+		journal.load();
+		journal.begin(log, true);
+		for (Map.Entry<String, JsonElement> e : manifest.getAsJsonObject("files").entrySet()) {
+			JsonObject info = e.getValue().getAsJsonObject();
+			JsonObject logInfo = new JsonObject();
+			logInfo.add("mtime", info.get("mtime"));
+			logInfo.add("checksum", info.get("checksum"));
+			journal.put(e.getKey(), logInfo);
+		}
+		journal.close();
+	}
+
+	@Benchmark
+	public JsonObject journalLoad(ByteCounter counter) {
+		counter.bytes += new File(logDir, UpdateJournal.SNAPSHOT).length() + new File(logDir, UpdateJournal.JOURNAL).length();
+		return UpdateJournal.read(logDir);
+	}
+
+	// 隨機的 MD5 摘要值
+	private static String randomHash(Random random) {
+		byte[] hash = new byte[16];
+		random.nextBytes(hash);
+		return AutoUpdateManager.toHex(hash);
+	}
+
+}
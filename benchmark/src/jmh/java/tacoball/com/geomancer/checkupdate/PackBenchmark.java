@@ -0,0 +1,80 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 發布工具 (ReleasePacker) 的效能測試，處理量以原始檔的位元組計算
+ *
+ * whole 整個檔案壓縮成一個成員，只有摘要計算能平行；
+ * blocks 每個區塊各自壓縮並產生區塊索引，壓縮也分散到所有核心。
+ * 以 -p threads=1,8 比較執行緒數的影響。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PackBenchmark {
+
+	@Param({"1", "64", "1024"})
+	public int sizeMB;
+
+	@Param({"gzip", "xz"})
+	public String codecName;
+
+	@Param({"0"})
+	public int threads;
+
+	private File dir;
+	private File raw;
+	private File releaseDir;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticFiles.tempDir("pack");
+		raw = new File(dir, "taiwan-taco.map");
+		SyntheticFiles.generate(raw, sizeMB * 1048576L);
+		releaseDir = new File(dir, "release");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Benchmark
+	public void whole(ByteCounter counter) throws Exception {
+		pack(false);
+		counter.bytes += raw.length();
+	}
+
+	@Benchmark
+	public void blocks(ByteCounter counter) throws Exception {
+		pack(true);
+		counter.bytes += raw.length();
+	}
+
+	// 以測試參數產生發布目錄，threads 為 0 時使用預設的處理器數
+	private void pack(boolean blockCompress) throws Exception {
+		ReleasePacker packer = new ReleasePacker();
+		packer.setCodec(codecName);
+		packer.setBlockCompress(blockCompress);
+		if (threads > 0) {
+			packer.setThreads(threads);
+		}
+		packer.pack(Collections.singletonList(raw), releaseDir);
+	}
+
+}
@@ -0,0 +1,211 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * 效能測試用的合成檔案
+ *
+ * 內容是固定亂數種子產生的小寫字母，壓縮率接近地圖檔，相同大小每次產生的內容相同。
+ */
+class SyntheticFiles {
+
+	private static final long SEED = 20180101;
+
+	/**
+	 * 建立暫存目錄
+	 */
+	static File tempDir(String name) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "geomancer-jmh-" + name);
+		FileUtils.deleteQuietly(dir);
+		FileUtils.forceMkdir(dir);
+		return dir;
+	}
+
+	/**
+	 * 產生指定大小的合成檔案
+	 *
+	 * @param file   檔案
+	 * @param length 長度
+	 */
+	static void generate(File file, long length) throws IOException {
+		Random random = new Random(SEED);
+		byte[] chunk = new byte[BufferPool.BUFFER_SIZE];
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			long remain = length;
+			while (remain > 0) {
+				int n = (int)Math.min(chunk.length, remain);
+				for (int i=0;i<n;i++) {
+					chunk[i] = (byte)('a' + random.nextInt(16));
+				}
+				out.write(chunk, 0, n);
+				remain -= n;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * 以指定的方式壓縮檔案，每個區塊各自壓縮時產生區塊壓縮檔
+	 *
+	 * @param  source      原始檔
+	 * @param  target      壓縮檔
+	 * @param  codec       gzip 或 xz
+	 * @param  blockLength 區塊大小，0 表示整個檔案壓縮成一個成員
+	 * @return 每個成員的起點
+	 */
+	static long[] compress(File source, File target, String codec, int blockLength) throws IOException {
+		long length = source.length();
+		int blockCount = (blockLength > 0) ? (int)((length + blockLength - 1) / blockLength) : 1;
+		long[] offsets = new long[blockCount];
+		long memberLength = (blockLength > 0) ? blockLength : length;
+
+		CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+		InputStream in = new FileInputStream(source);
+		byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+		try {
+			for (int i=0;i<blockCount;i++) {
+				offsets[i] = out.count;
+				OutputStream member = open(codec, out);
+				long remain = Math.min(memberLength, length - i * memberLength);
+				while (remain > 0) {
+					int n = in.read(buffer, 0, (int)Math.min(buffer.length, remain));
+					member.write(buffer, 0, n);
+					remain -= n;
+				}
+				member.close();
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return offsets;
+	}
+
+	/**
+	 * 產生只有一個檔案的發布目錄，包含更新資訊 (update.json) 與區塊壓縮檔
+	 *
+	 * 區塊大小等於片段大小，更新資訊帶有片段摘要、區塊摘要與區塊索引，與正式發布的格式相同。
+	 *
+	 * @param  raw        原始檔
+	 * @param  releaseDir 發布目錄
+	 * @param  codec      gzip 或 xz
+	 * @param  partLength 片段大小
+	 * @param  digest     摘要演算法
+	 * @param  partDigest 片段摘要演算法
+	 * @return 更新資訊
+	 */
+	static JsonObject release(File raw, File releaseDir, String codec, int partLength, String digest, String partDigest)
+			throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		File compressed = new File(releaseDir, raw.getName() + (codec.equals("xz") ? ".xz" : ".gz"));
+		long[] offsets = compress(raw, compressed, codec, partLength);
+
+		JsonArray blockIndex = new JsonArray();
+		for (long offset : offsets) {
+			blockIndex.add(offset);
+		}
+
+		JsonArray blockChecksums = new JsonArray();
+		for (String checksum : BlockHasher.hash(raw, partLength, digest, threads)) {
+			blockChecksums.add(checksum);
+		}
+
+		JsonArray partChecksums = new JsonArray();
+		for (String checksum : BlockHasher.hash(compressed, partLength, partDigest, threads)) {
+			partChecksums.add(checksum);
+		}
+
+		JsonObject info = new JsonObject();
+		info.addProperty("length", raw.length());
+		info.addProperty("gzLength", compressed.length());
+		info.addProperty("mtime", raw.lastModified() / 1000);
+		info.addProperty("isoTime", "2018-01-01T00:00:00+08:00");
+		info.add("checksum", blockChecksums.get(blockChecksums.size() - 1));
+		info.add("partChecksums", partChecksums);
+		info.add("blockChecksums", blockChecksums);
+		info.add("blockIndex", blockIndex);
+
+		JsonObject files = new JsonObject();
+		files.add(raw.getName(), info);
+
+		JsonObject config = new JsonObject();
+		config.addProperty("spec", "0.1.0");
+		config.addProperty("digest", digest);
+		config.addProperty("partDigest", partDigest);
+		config.addProperty("partLength", partLength);
+		config.addProperty("codec", codec);
+		config.addProperty("fileCount", 1);
+
+		JsonObject manifest = new JsonObject();
+		manifest.add("config", config);
+		manifest.add("files", files);
+		FileUtils.write(new File(releaseDir, "update.json"), new Gson().toJson(manifest), "UTF-8");
+		return manifest;
+	}
+
+	// 開始一個壓縮成員
+	private static OutputStream open(String codec, OutputStream out) throws IOException {
+		if (codec.equals("xz")) {
+			return new org.tukaani.xz.XZOutputStream(new Unclosable(out), new org.tukaani.xz.LZMA2Options(6));
+		}
+		return new java.util.zip.GZIPOutputStream(new Unclosable(out), BufferPool.BUFFER_SIZE);
+	}
+
+	/**
+	 * 計算寫入量的資料流
+	 */
+	private static class CountingOutputStream extends java.io.FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * 關閉時只 flush 的資料流，讓每個壓縮成員可以寫入同一個檔案
+	 */
+	private static class Unclosable extends java.io.FilterOutputStream {
+		Unclosable(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package tacoball.com.geomancer.checkupdate;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整更新流程的效能測試，從本機的 LocalHttpServer 下載並解壓縮一個檔案
+ *
+ * 涵蓋 downloadPart 的複製迴圈、checkPart 的片段驗證與 extract 的解壓縮，
+ * 處理量以解壓縮後的位元組計算。每次操作前清空更新目錄，確保每次都完整下載。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UpdateBenchmark {
+
+	private static final int PART_LENGTH = 1048576;
+
+	@Param({"1", "64", "1024"})
+	public int sizeMB;
+
+	@Param({"SEQUENTIAL", "PARALLEL", "STREAM"})
+	public AutoUpdateManager.DownloadMode mode;
+
+	@Param({"gzip"})
+	public String codecName;
+
+	@Param({"MD5", "XXH64"})
+	public String partDigest;
+
+	private File dir;
+	private File targetDir;
+	private long length;
+	private LocalHttpServer server;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticFiles.tempDir("update");
+		File sourceDir  = new File(dir, "source");
+		File releaseDir = new File(dir, "release");
+		targetDir = new File(dir, "target");
+		FileUtils.forceMkdir(sourceDir);
+		FileUtils.forceMkdir(releaseDir);
+
+		File raw = new File(sourceDir, "taiwan-taco.map");
+		SyntheticFiles.generate(raw, sizeMB * 1048576L);
+		SyntheticFiles.release(raw, releaseDir, codecName, PART_LENGTH, "MD5", partDigest);
+		length = raw.length();
+
+		server = new LocalHttpServer(releaseDir, InetAddress.getByName("127.0.0.1"), 0);
+		server.start();
+	}
+
+	@Setup(Level.Invocation)
+	public void clean() throws Exception {
+		FileUtils.deleteQuietly(targetDir);
+		FileUtils.forceMkdir(targetDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Benchmark
+	public void update(ByteCounter counter) throws Exception {
+		final String[] error = new String[1];
+		AutoUpdateManager manager = new AutoUpdateManager(targetDir, targetDir);
+		manager.setDownloadMode(mode);
+		manager.addListener(new AutoUpdateAdapter() {
+			@Override
+			public void onError(String reason) {
+				error[0] = reason;
+			}
+		});
+
+		manager.start("http://127.0.0.1:" + server.getPort() + "/").join();
+		if (error[0] != null) {
+			throw new IllegalStateException(error[0]);
+		}
+		counter.bytes += length;
+	}
+
+}
@@ -0,0 +1,637 @@
+package tacoball.com.geomancer.checkupdate;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.apache.commons.io.FileUtils;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 更新檔發布工具，由原始檔產生 AutoUpdateManager 使用的發布目錄
+ *
+ * 發布目錄包含更新資訊 update.json 與每個檔案的壓縮檔 (例如 taiwan-taco.map.gz)，
+ * 直接放到靜態 HTTP 伺服器即可做為鏡像站。壓縮檔與更新資訊都先寫入暫存檔再換入，
+ * 更新資訊最後寫入，伺服器不會提供參照到不存在檔案的更新資訊。
+ *
+ * 壓縮與摘要計算都以多個執行緒進行：
+ * 整檔壓縮時每個檔案一個工作，區塊壓縮時每個區塊一個工作並依序寫入，單一大檔也能用上所有核心；
+ * 片段摘要與區塊摘要以 BlockHasher 分段計算。
+ *
+ * 只有區塊摘要沒有區塊索引時 (--blocks)，更新端的差異同步直接以 Range 讀取鏡像站上的原始檔，
+ * 此時原始檔也會複製到發布目錄。
+ *
+ * 相同的輸入與選項產生相同的輸出：檔案依檔名排序，gzip 標頭不含時間，
+ * 修改時間可以用 --mtime 或環境變數 SOURCE_DATE_EPOCH 固定。
+ *
+ * 用法：packer [選項] 輸入檔或目錄... 發布目錄
+ */
+public class ReleasePacker {
+
+	/**
+	 * 更新資訊檔名
+	 */
+	static final String MANIFEST = "update.json";
+
+	private static final String USAGE =
+		"用法: packer [選項] <輸入檔或目錄>... <發布目錄>\n" +
+		"  --digest <演算法>       檔案摘要、區塊摘要與 Merkle 樹的演算法，預設 MD5\n" +
+		"  --part-digest <演算法>  片段摘要演算法，可使用 XXH64 或 CRC32，預設與 --digest 相同\n" +
+		"  --part-length <位元組>  片段大小，預設 1048576\n" +
+		"  --block-length <位元組> 區塊大小，預設與片段大小相同\n" +
+		"  --codec <gzip|xz>       壓縮格式，預設 gzip\n" +
+		"  --level <0-9>           壓縮等級，預設 6\n" +
+		"  --blocks                產生區塊摘要 (blockChecksums) 與 Merkle 樹根節點 (merkleRoot)\n" +
+		"  --block-compress        每個區塊各自壓縮並產生區塊索引 (blockIndex)，包含 --blocks\n" +
+		"  --mirror <網址>         加入 config.mirrors，可以重複指定\n" +
+		"  --spec <版本>           資料格式版本，預設 0.1.0\n" +
+		"  --mtime <秒>            所有檔案的修改時間，預設使用 SOURCE_DATE_EPOCH 或輸入檔的時間\n" +
+		"  --time-zone <時區>      isoTime 的時區，預設 Asia/Taipei\n" +
+		"  --threads <數量>        工作執行緒數，預設為處理器數";
+
+	private String  spec           = "0.1.0";
+	private String  digest         = "MD5";
+	private String  partDigest     = null;    // null 表示與 digest 相同
+	private int     partLength     = 1048576;
+	private int     blockLength    = 0;       // 0 表示與 partLength 相同
+	private Codec   codec          = new GzipCodec();
+	private int     level          = 6;
+	private boolean blockChecksums = false;
+	private boolean blockCompress  = false;
+	private long    mtime          = -1;      // 負數表示使用輸入檔的修改時間
+	private TimeZone timeZone      = TimeZone.getTimeZone("Asia/Taipei");
+	private List<String> mirrors   = new ArrayList<>();
+	private int     threads        = Runtime.getRuntime().availableProcessors();
+	private boolean verbose        = false;
+
+	/**
+	 * 一個檔案的處理結果
+	 */
+	private static class Packed {
+		final File raw;
+		final File compressed;
+		final File tmp;
+		long[]   offsets;         // 區塊壓縮時每個成員的起點
+		String[] blockChecksums;  // 區塊壓縮時順便計算的區塊摘要
+
+		Packed(File raw, File compressed) {
+			this.raw = raw;
+			this.compressed = compressed;
+			this.tmp = new File(compressed.getPath() + ".tmp");
+		}
+	}
+
+	/**
+	 * 設定資料格式版本，對應 config.spec
+	 */
+	public void setSpec(String spec) {
+		this.spec = spec;
+	}
+
+	/**
+	 * 設定檔案摘要、區塊摘要與 Merkle 樹使用的摘要演算法
+	 */
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * 設定片段摘要演算法，可以是快速檢查碼 (見 Digests)
+	 */
+	public void setPartDigest(String partDigest) {
+		this.partDigest = partDigest;
+	}
+
+	/**
+	 * 設定片段大小
+	 */
+	public void setPartLength(int partLength) {
+		if (partLength <= 0) {
+			throw new IllegalArgumentException("片段大小必須大於 0");
+		}
+		this.partLength = partLength;
+	}
+
+	/**
+	 * 設定區塊大小，0 表示與片段大小相同
+	 */
+	public void setBlockLength(int blockLength) {
+		if (blockLength < 0) {
+			throw new IllegalArgumentException("區塊大小不可小於 0");
+		}
+		this.blockLength = blockLength;
+	}
+
+	/**
+	 * 設定壓縮格式
+	 *
+	 * @param name gzip 或 xz
+	 */
+	public void setCodec(String name) {
+		if ("gzip".equals(name)) {
+			codec = new GzipCodec();
+		} else if ("xz".equals(name)) {
+			codec = new XzCodec();
+		} else {
+			throw new IllegalArgumentException("不支援的壓縮格式: " + name);
+		}
+	}
+
+	/**
+	 * 設定壓縮等級，gzip 對應 Deflater 等級，xz 對應預設組合 (xz -0 到 -9)
+	 *
+	 * 手機上解壓縮 xz 的記憶體用量取決於字典大小，建議不超過 6。
+	 */
+	public void setLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("壓縮等級必須在 0 到 9 之間");
+		}
+		this.level = level;
+	}
+
+	/**
+	 * 設定是否產生區塊摘要與 Merkle 樹根節點，供深度檢查與差異同步使用
+	 */
+	public void setBlockChecksums(boolean enabled) {
+		this.blockChecksums = enabled;
+	}
+
+	/**
+	 * 設定是否以區塊壓縮，每個區塊各自壓縮成一個成員並產生區塊索引，同時產生區塊摘要
+	 */
+	public void setBlockCompress(boolean enabled) {
+		this.blockCompress = enabled;
+	}
+
+	/**
+	 * 固定所有檔案的修改時間 (秒)，負數表示使用輸入檔的修改時間
+	 */
+	public void setMtime(long mtime) {
+		this.mtime = mtime;
+	}
+
+	/**
+	 * 設定 isoTime 使用的時區
+	 */
+	public void setTimeZone(TimeZone timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * 加入更新資訊提供的鏡像站
+	 */
+	public void addMirror(String url) {
+		mirrors.add(url);
+	}
+
+	/**
+	 * 設定工作執行緒數
+	 */
+	public void setThreads(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("工作執行緒數必須大於 0");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * 設定是否輸出每個檔案的壓縮結果
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * 產生發布目錄
+	 *
+	 * @param  inputs     輸入檔或目錄，目錄只取第一層的一般檔案
+	 * @param  releaseDir 發布目錄
+	 * @return 更新資訊
+	 */
+	public JsonObject pack(List<File> inputs, File releaseDir)
+			throws IOException, NoSuchAlgorithmException, InterruptedException {
+		String partDigest = (this.partDigest != null) ? this.partDigest : digest;
+		int blockLength = (this.blockLength > 0) ? this.blockLength : partLength;
+
+		// 提早檢查演算法，避免壓縮完才失敗
+		MessageDigest.getInstance(digest);
+		Digests.getInstance(partDigest);
+
+		List<File> files = collect(inputs);
+		FileUtils.forceMkdir(releaseDir);
+
+		List<Packed> packed = new ArrayList<>();
+		for (File raw : files) {
+			packed.add(new Packed(raw, new File(releaseDir, raw.getName() + codec.extension())));
+		}
+
+		// 壓縮
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> tasks = new ArrayList<>();
+			for (final Packed p : packed) {
+				if (blockCompress && p.raw.length() > 0) {
+					long t = System.currentTimeMillis();
+					compressBlocks(p, blockLength, pool);
+					report(p, t);
+				} else {
+					tasks.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							long t = System.currentTimeMillis();
+							compressWhole(p);
+							report(p, t);
+							return null;
+						}
+					}));
+				}
+			}
+			for (Future<Void> task : tasks) {
+				get(task);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// 摘要與更新資訊
+		JsonObject entries = new JsonObject();
+		byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+		for (Packed p : packed) {
+			long length = p.raw.length();
+
+			JsonArray partChecksums = new JsonArray();
+			for (String checksum : BlockHasher.hash(p.tmp, partLength, partDigest, threads)) {
+				partChecksums.add(checksum);
+			}
+
+			// 最後一個片段的摘要值，用來快速判斷本地檔案是否為最新版
+			int lastPart = (length > 0) ? (int)((length - 1) / partLength) : 0;
+			String checksum = AutoUpdateManager.toHex(BlockHasher.hashBlock(p.raw, lastPart, partLength, digest, buffer));
+
+			long fileMtime = (mtime >= 0) ? mtime : p.raw.lastModified() / 1000;
+			JsonObject info = new JsonObject();
+			info.addProperty("length", length);
+			info.addProperty("gzLength", p.tmp.length());
+			info.addProperty("mtime", fileMtime);
+			info.addProperty("isoTime", isoTime(fileMtime));
+			info.addProperty("checksum", checksum);
+			info.add("partChecksums", partChecksums);
+
+			if (blockChecksums || blockCompress) {
+				String[] blocks = p.blockChecksums;
+				if (blocks == null) {
+					blocks = BlockHasher.hash(p.raw, blockLength, digest, threads);
+				}
+				JsonArray array = new JsonArray();
+				for (String block : blocks) {
+					array.add(block);
+				}
+				info.add("blockChecksums", array);
+				info.addProperty("merkleRoot", new MerkleTree(blocks, digest).root());
+			}
+
+			if (p.offsets != null) {
+				JsonArray blockIndex = new JsonArray();
+				for (long offset : p.offsets) {
+					blockIndex.add(offset);
+				}
+				info.add("blockIndex", blockIndex);
+			}
+
+			entries.add(p.raw.getName(), info);
+		}
+
+		JsonObject config = new JsonObject();
+		config.addProperty("spec", spec);
+		config.addProperty("digest", digest);
+		if (!partDigest.equals(digest)) {
+			config.addProperty("partDigest", partDigest);
+		}
+		config.addProperty("partLength", partLength);
+		if (blockLength != partLength) {
+			config.addProperty("blockLength", blockLength);
+		}
+		config.addProperty("codec", codec.name());
+		config.addProperty("fileCount", packed.size());
+		if (!mirrors.isEmpty()) {
+			JsonArray array = new JsonArray();
+			for (String url : mirrors) {
+				array.add(url);
+			}
+			config.add("mirrors", array);
+		}
+
+		JsonObject manifest = new JsonObject();
+		manifest.add("config", config);
+		manifest.add("files", entries);
+
+		// 有區塊摘要但沒有區塊索引時，差異同步直接從鏡像站讀取原始檔的區塊，原始檔也要發布
+		boolean publishRaw = (blockChecksums || blockCompress);
+
+		// 壓縮檔全部換入後才寫入更新資訊
+		for (Packed p : packed) {
+			replace(p.tmp, p.compressed);
+			if (publishRaw && p.offsets == null) {
+				File raw = new File(releaseDir, p.raw.getName());
+				if (!raw.getCanonicalFile().equals(p.raw.getCanonicalFile())) {
+					File tmp = new File(releaseDir, p.raw.getName() + ".tmp");
+					FileUtils.copyFile(p.raw, tmp, false);
+					replace(tmp, raw);
+				}
+			}
+		}
+		File tmp = new File(releaseDir, MANIFEST + ".tmp");
+		FileUtils.write(tmp, new GsonBuilder().setPrettyPrinting().create().toJson(manifest) + "\n", "UTF-8");
+		replace(tmp, new File(releaseDir, MANIFEST));
+		return manifest;
+	}
+
+	/**
+	 * 命令列進入點
+	 */
+	public static void main(String[] args) {
+		ReleasePacker packer = new ReleasePacker();
+		packer.setVerbose(true);
+		List<String> paths = new ArrayList<>();
+
+		String epoch = System.getenv("SOURCE_DATE_EPOCH");
+		try {
+			if (epoch != null && !epoch.isEmpty()) {
+				packer.setMtime(Long.parseLong(epoch));
+			}
+
+			for (int i=0;i<args.length;i++) {
+				String arg = args[i];
+				if (!arg.startsWith("--")) {
+					paths.add(arg);
+				} else if (arg.equals("--blocks")) {
+					packer.setBlockChecksums(true);
+				} else if (arg.equals("--block-compress")) {
+					packer.setBlockCompress(true);
+				} else if (arg.equals("--help")) {
+					System.out.println(USAGE);
+					return;
+				} else {
+					if (i + 1 >= args.length) {
+						throw new IllegalArgumentException(arg + " 缺少參數值");
+					}
+					String value = args[++i];
+					switch (arg) {
+						case "--digest":       packer.setDigest(value); break;
+						case "--part-digest":  packer.setPartDigest(value); break;
+						case "--part-length":  packer.setPartLength(Integer.parseInt(value)); break;
+						case "--block-length": packer.setBlockLength(Integer.parseInt(value)); break;
+						case "--codec":        packer.setCodec(value); break;
+						case "--level":        packer.setLevel(Integer.parseInt(value)); break;
+						case "--mirror":       packer.addMirror(value); break;
+						case "--spec":         packer.setSpec(value); break;
+						case "--mtime":        packer.setMtime(Long.parseLong(value)); break;
+						case "--time-zone":    packer.setTimeZone(TimeZone.getTimeZone(value)); break;
+						case "--threads":      packer.setThreads(Integer.parseInt(value)); break;
+						default:
+							throw new IllegalArgumentException("不明的選項: " + arg);
+					}
+				}
+			}
+			if (paths.size() < 2) {
+				throw new IllegalArgumentException("需要至少一個輸入檔與發布目錄");
+			}
+		} catch(IllegalArgumentException ex) {
+			// NumberFormatException 也在這裡處理
+			System.err.println(ex.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		List<File> inputs = new ArrayList<>();
+		for (String path : paths.subList(0, paths.size() - 1)) {
+			inputs.add(new File(path));
+		}
+		File releaseDir = new File(paths.get(paths.size() - 1));
+
+		long t = System.currentTimeMillis();
+		try {
+			JsonObject manifest = packer.pack(inputs, releaseDir);
+			int fileCount = manifest.getAsJsonObject("config").get("fileCount").getAsInt();
+			System.out.println(String.format(Locale.getDefault(), "已產生 %d 個檔案的更新資訊 %s，耗時 %.1f 秒",
+				fileCount, new File(releaseDir, MANIFEST), (System.currentTimeMillis() - t) / 1000.0));
+		} catch(IOException|NoSuchAlgorithmException|InterruptedException|IllegalArgumentException ex) {
+			System.err.println("發布失敗: " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// 列出輸入檔並依檔名排序，更新資訊以檔名為索引，不允許重複
+	private static List<File> collect(List<File> inputs) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (File input : inputs) {
+			if (input.isDirectory()) {
+				File[] children = input.listFiles();
+				if (children == null) {
+					throw new IOException("無法讀取目錄 " + input);
+				}
+				for (File child : children) {
+					if (child.isFile() && !child.getName().startsWith(".")) {
+						files.add(child);
+					}
+				}
+			} else if (input.isFile()) {
+				files.add(input);
+			} else {
+				throw new IOException("找不到輸入檔 " + input);
+			}
+		}
+
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		Set<String> names = new HashSet<>();
+		for (File f : sorted) {
+			if (!names.add(f.getName())) {
+				throw new IllegalArgumentException("檔名重複: " + f.getName());
+			}
+		}
+		return Arrays.asList(sorted);
+	}
+
+	// 整個檔案壓縮成一個成員
+	private void compressWhole(Packed p) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(p.raw), BufferPool.BUFFER_SIZE);
+		try {
+			OutputStream out = encoder(new BufferedOutputStream(new FileOutputStream(p.tmp), BufferPool.BUFFER_SIZE));
+			try {
+				byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+				int ioLen;
+				while ((ioLen = in.read(buffer)) != -1) {
+					out.write(buffer, 0, ioLen);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// 每個區塊各自壓縮成一個成員，工作執行緒以指定位置讀取同一個 FileChannel，完成的成員依序寫入
+	private void compressBlocks(Packed p, final int blockLength, ExecutorService pool)
+			throws IOException, InterruptedException {
+		FileInputStream fis = new FileInputStream(p.raw);
+		final FileChannel channel = fis.getChannel();
+		final long length = channel.size();
+		int blockCount = (int)((length + blockLength - 1) / blockLength);
+		p.offsets = new long[blockCount];
+		p.blockChecksums = new String[blockCount];
+
+		// 進行中的區塊數上限，限制記憶體用量
+		int window = threads * 2;
+		Queue<Future<byte[][]>> pending = new ArrayDeque<>();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(p.tmp), BufferPool.BUFFER_SIZE);
+		try {
+			long offset = 0;
+			int next = 0;
+			for (int written=0;written<blockCount;written++) {
+				while (next < blockCount && pending.size() < window) {
+					final int blockNumber = next++;
+					pending.add(pool.submit(new Callable<byte[][]>() {
+						@Override
+						public byte[][] call() throws Exception {
+							long position = (long)blockNumber * blockLength;
+							return compressBlock(channel, position, (int)Math.min(blockLength, length - position));
+						}
+					}));
+				}
+
+				byte[][] result = get(pending.remove());
+				p.offsets[written] = offset;
+				p.blockChecksums[written] = AutoUpdateManager.toHex(result[1]);
+				out.write(result[0]);
+				offset += result[0].length;
+			}
+		} finally {
+			for (Future<byte[][]> f : pending) {
+				f.cancel(true);
+			}
+			out.close();
+			fis.close();
+		}
+	}
+
+	// 讀取一個區塊，回傳壓縮後的成員與原始內容的摘要值
+	private byte[][] compressBlock(FileChannel channel, long position, int length)
+			throws IOException, NoSuchAlgorithmException {
+		ByteBuffer block = ByteBuffer.allocate(length);
+		while (block.hasRemaining()) {
+			int ioLen = channel.read(block, position + block.position());
+			if (ioLen == -1) {
+				throw new EOFException();
+			}
+		}
+
+		MessageDigest md = MessageDigest.getInstance(digest);
+		md.update(block.array());
+
+		ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2);
+		OutputStream out = encoder(member, length);
+		out.write(block.array());
+		out.close();
+		return new byte[][] { member.toByteArray(), md.digest() };
+	}
+
+	// 包裝壓縮資料流，關閉時結束壓縮成員並關閉底層資料流
+	private OutputStream encoder(OutputStream out) throws IOException {
+		return encoder(out, 0);
+	}
+
+	// 區塊壓縮時 xz 字典不必大於區塊，減少每個成員配置字典的時間與解壓縮端的記憶體用量
+	private OutputStream encoder(OutputStream out, int blockLength) throws IOException {
+		if (codec instanceof XzCodec) {
+			LZMA2Options options = new LZMA2Options(level);
+			if (blockLength > 0 && blockLength < options.getDictSize()) {
+				options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, blockLength));
+			}
+			return new XZOutputStream(out, options);
+		}
+		return new GZIPOutputStream(out, BufferPool.BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	// 取得工作結果，工作中的例外依原本的型別拋出
+	private static <T> T get(Future<T> task) throws IOException, InterruptedException {
+		try {
+			return task.get();
+		} catch(ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		}
+	}
+
+	// 以指定時區格式化 isoTime，例如 2018-01-01T00:00:00+08:00
+	private String isoTime(long mtime) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US);
+		format.setTimeZone(timeZone);
+		return format.format(new Date(mtime * 1000));
+	}
+
+	// 回報一個檔案的壓縮結果
+	private void report(Packed p, long startTime) {
+		if (!verbose) {
+			return;
+		}
+		System.out.println(String.format(Locale.getDefault(), "%s: %d -> %d bytes，%.1f 秒",
+			p.raw.getName(), p.raw.length(), p.tmp.length(), (System.currentTimeMillis() - startTime) / 1000.0));
+	}
+
+	// 以暫存檔取代目標檔
+	private static void replace(File tmp, File target) throws IOException {
+		if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+			throw new IOException("無法寫入 " + target);
+		}
+	}
+
+}